@@ -0,0 +1,84 @@
+package pa2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time to move a whole file with the original calls, 1 KB per RPC through the registry over loopback
+ * (read(path, skip) and the appending write(path, buffer, bytes)), the number TransferBenchmark is compared against
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BaselineBenchmark {
+
+    private static final int RPC_SIZE = 1024;
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long fileSize;
+
+    private LocalServer local;
+    private String source;
+    private String target;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.local = new LocalServer();
+        this.source = this.local.createFile("source", this.fileSize);
+        this.target = this.local.path("target");
+        this.buffer = LocalServer.randomBytes(RPC_SIZE);
+    }
+
+    /**
+     * Remove the file written by the last upload, the baseline write only appends
+     */
+    @Setup(Level.Invocation)
+    public void truncate() throws Throwable {
+        Pa2.RM.invoke(this.local.server, this.target);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.local.close();
+    }
+
+    @Benchmark
+    public long read(Blackhole blackhole) throws Throwable {
+        long offset = 0;
+        while (offset < this.fileSize){
+            byte[] bytes = (byte[]) Pa2.READ_1KB.invoke(this.local.stub, this.source, offset);
+            blackhole.consume(bytes);
+            offset += bytes.length;
+        }
+        return offset;
+    }
+
+    @Benchmark
+    public long write() throws Throwable {
+        long offset = 0;
+        while (offset < this.fileSize){
+            int bytes = (int) Math.min(RPC_SIZE, this.fileSize - offset);
+            Pa2.APPEND.invoke(this.local.stub, this.target, this.buffer, bytes);
+            offset += bytes;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,90 @@
+package pa2.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uploads per second with several clients uploading their own file at the same time
+ * through the registry over loopback, the number of clients is set with -t
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ConcurrentUploadBenchmark {
+
+    /**
+     * The server every client uploads to
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"1048576", "67108864"})
+        public long fileSize;
+
+        @Param({"65536", "1048576"})
+        public int chunkSize;
+
+        LocalServer local;
+        byte[] buffer;
+        private final AtomicInteger clients = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            this.local = new LocalServer();
+            this.buffer = LocalServer.randomBytes(this.chunkSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.local.close();
+        }
+    }
+
+    /**
+     * One client, uploading to its own file
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        String path;
+
+        @Setup(Level.Trial)
+        public void setup(Server server){
+            this.path = server.local.path("upload-" + server.clients.getAndIncrement());
+        }
+    }
+
+    @Benchmark
+    public long upload(Server server, Client client) throws Throwable {
+        Object transfer = Pa2.OPEN_UPLOAD.invoke(server.local.stub, client.path, server.fileSize, server.chunkSize);
+        long offset = 0;
+        try {
+            while (offset < server.fileSize){
+                int bytes = (int) Math.min(server.chunkSize, server.fileSize - offset);
+                Pa2.WRITE_CHUNK.invoke(transfer, offset, Pa2.WRAP.invoke(server.buffer, bytes));
+                offset += bytes;
+            }
+        } finally {
+            Pa2.CLOSE.invoke(transfer);
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,75 @@
+package pa2.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time to list a directory of entries files through the registry over loopback,
+ * in one dir call (answered from the metadata cache after the first call) or page by page with listDir
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryBenchmark {
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    @Param({"1000"})
+    public int pageSize;
+
+    private LocalServer local;
+    private String directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.local = new LocalServer();
+        Path directory = Files.createDirectory(this.local.root.resolve("huge"));
+        for (int i=0; i<this.entries; i++){
+            Files.createFile(directory.resolve("file-" + i));
+        }
+        this.directory = directory.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.local.close();
+    }
+
+    @Benchmark
+    public String[] dir() throws Throwable {
+        return (String[]) Pa2.DIR.invoke(this.local.stub, this.directory);
+    }
+
+    @Benchmark
+    public int listDir(Blackhole blackhole) throws Throwable {
+        int listed = 0;
+        String cursor = null;
+        do {
+            Object page = Pa2.LIST_DIR.invoke(this.local.stub, this.directory, cursor, this.pageSize);
+            blackhole.consume(page);
+            listed += (int) Pa2.PAGE_SIZE.invoke(page);
+            cursor = (String) Pa2.CURSOR.invoke(page);
+        } while (cursor != null);
+        return listed;
+    }
+}
@@ -0,0 +1,120 @@
+package pa2.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * A server running inside the benchmark's JVM, reachable directly and through a registry over loopback
+ * files are created in a temporary directory that is removed when the server is closed,
+ * on disk or in the server's MemoryStorage to measure RMI and buffer handling without the disk
+ */
+final class LocalServer implements AutoCloseable {
+
+    final Object server; // the server itself, for direct calls
+    final Object stub; // the server as a client sees it, every call goes through RMI over loopback
+    final Path root; // directory the benchmark's files are created in
+
+    private final Registry registry;
+    private final boolean memory; // true if the files are kept in memory by the server
+
+    LocalServer() throws Exception {
+        this("disk");
+    }
+
+    /**
+     * @param storage "disk" or "memory"
+     * @throws Exception if the server could not be started
+     */
+    LocalServer(String storage) throws Exception {
+        this.root = Files.createTempDirectory("pa2-bench").toRealPath();
+        this.memory = storage.equals("memory");
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)){
+            port = socket.getLocalPort();
+        }
+        String url = "rmi://localhost:" + port + "/file-sharing";
+        this.registry = LocateRegistry.createRegistry(port);
+        this.server = Pa2.newServer(url, this.root, storage);
+        // bound in process, the registry refuses stubs of the server's socket factories sent over the wire
+        this.registry.rebind("file-sharing", (java.rmi.Remote) Pa2.publish(this.server));
+        this.stub = Naming.lookup(url);
+    }
+
+    /**
+     * Get the path of a file of the benchmark, as passed to the server
+     * @param name name of the file
+     * @return absolute path in the server's directory
+     */
+    String path(String name){
+        return this.root.resolve(name).toString();
+    }
+
+    /**
+     * Create a file of random bytes
+     * @param name name of the file
+     * @param length length of the file
+     * @return path to the file, as passed to the server
+     * @throws IOException if the file could not be written
+     */
+    String createFile(String name, long length) throws IOException {
+        Path file = this.root.resolve(name);
+        byte[] block = randomBytes(8 * 1024 * 1024);
+        if (this.memory){
+            // only the server can reach its memory, the file is appended to through direct calls
+            try {
+                Pa2.RM.invoke(this.server, file.toString());
+                for (long written = 0; written < length; ){
+                    int bytes = (int) Math.min(block.length, length - written);
+                    if (!(boolean) Pa2.APPEND.invoke(this.server, file.toString(), block, bytes)){
+                        throw new IOException("could not write " + file);
+                    }
+                    written += bytes;
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+            return file.toString();
+        }
+        try (OutputStream output = Files.newOutputStream(file)){
+            for (long written = 0; written < length; ){
+                int bytes = (int) Math.min(block.length, length - written);
+                output.write(block, 0, bytes);
+                written += bytes;
+            }
+        }
+        return file.toString();
+    }
+
+    static byte[] randomBytes(int length){
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() throws Exception {
+        try {
+            Pa2.SHUTDOWN.invoke(this.server);
+        } catch (Throwable e) {
+            throw new Exception(e);
+        }
+        UnicastRemoteObject.unexportObject(this.registry, true);
+        try (Stream<Path> files = Files.walk(this.root)){
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator){
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package pa2.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+
+/**
+ * Calls into the client / server classes
+ * they live in the default package, which a named package cannot refer to, and JMH does not allow benchmarks in the default package,
+ * so every method is looked up once as a MethodHandle and costs about as much as a direct call afterwards
+ */
+final class Pa2 {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    static final Class<?> API = type("FileSharingInterface");
+    static final Class<?> TRANSFER = type("RemoteTransfer");
+    static final Class<?> CHUNK = type("Chunk");
+    static final Class<?> PAGE = type("DirectoryPage");
+
+    // FileSharingInterface
+    static final MethodHandle READ = virtual(API, "read", byte[].class, String.class, long.class, int.class);
+    static final MethodHandle READ_1KB = virtual(API, "read", byte[].class, String.class, long.class);
+    static final MethodHandle WRITE = virtual(API, "write", boolean.class, String.class, long.class, byte[].class, int.class);
+    static final MethodHandle APPEND = virtual(API, "write", boolean.class, String.class, byte[].class, int.class);
+    static final MethodHandle DIR = virtual(API, "dir", String[].class, String.class);
+    static final MethodHandle LIST_DIR = virtual(API, "listDir", PAGE, String.class, String.class, int.class);
+    static final MethodHandle OPEN_UPLOAD = virtual(API, "openUpload", TRANSFER, String.class, long.class, int.class);
+    static final MethodHandle OPEN_DOWNLOAD = virtual(API, "openDownload", TRANSFER, String.class, long.class, int.class);
+    static final MethodHandle RM = virtual(API, "rm", boolean.class, String.class);
+    static final MethodHandle SHUTDOWN = virtual(API, "shutdown", void.class);
+
+    // RemoteTransfer
+    static final MethodHandle READ_CHUNK = virtual(TRANSFER, "readChunk", CHUNK, long.class, int.class);
+    static final MethodHandle WRITE_CHUNK = virtual(TRANSFER, "writeChunk", boolean.class, long.class, CHUNK);
+    static final MethodHandle CLOSE = virtual(TRANSFER, "close", long.class);
+
+    // Chunk and DirectoryPage
+    static final MethodHandle WRAP = statik(CHUNK, "wrap", CHUNK, byte[].class, int.class);
+    static final MethodHandle BYTES = virtual(CHUNK, "bytes", byte[].class);
+    static final MethodHandle PAGE_SIZE = virtual(PAGE, "size", int.class);
+    static final MethodHandle CURSOR = virtual(PAGE, "cursor", String.class);
+
+    private Pa2(){
+    }
+
+    /**
+     * Create a server (its constructor is protected)
+     * @param name URL the server is bound to, used when it shuts down
+     * @return the server
+     * @throws Exception if the server could not be created
+     */
+    static Object newServer(String name) throws Exception {
+        Constructor<?> constructor = type("server").getDeclaredConstructor(String.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(name);
+    }
+
+    /**
+     * Create a server on a given storage, with the durability policy given by -Dpa2.durability=<none|commit|periodic> (none by default)
+     * @param name URL the server is bound to, used when it shuts down
+     * @param root directory the benchmark's files are kept in
+     * @param storage "disk" to keep the files on disk, "memory" to keep them off-heap in a MemoryStorage
+     * @return the server
+     * @throws Exception if the server could not be created
+     */
+    static Object newServer(String name, Path root, String storage) throws Exception {
+        Class<?> params = type("TransferParams");
+        Object defaults = params.getConstructor(int.class, int.class, int.class).newInstance(
+            params.getField("MIN_CHUNK_SIZE").getInt(null),
+            params.getField("MAX_CHUNK_SIZE").getInt(null),
+            params.getField("DEFAULT_CHUNK_SIZE").getInt(null));
+        Object sockets = type("Sockets").getMethod("fromProperties").invoke(null);
+        Object files = storage.equals("memory")
+            ? type("MemoryStorage").getConstructor(Path.class, long.class).newInstance(root, Long.MAX_VALUE)
+            : type("DiskStorage").getConstructor().newInstance();
+        Object durability = type("Durability").getMethod("fromProperties", String.class).invoke(null, System.getProperty("pa2.durability", "none"));
+        Constructor<?> constructor = type("server").getDeclaredConstructor(String.class, params, type("ChunkStore"),
+            type("DigestStore"), type("PendingUploads"), int.class, type("Sockets"), type("Storage"), type("Durability"));
+        constructor.setAccessible(true);
+        return constructor.newInstance(name, defaults, null, null, null, type("server").getField("MAX_TRANSFERS").getInt(null), sockets, files, durability);
+    }
+
+    /**
+     * Export a server behind its instrumented proxy (server.publish is protected)
+     * @param server the server
+     * @return stub to bind in the registry
+     * @throws Exception if the server could not be exported
+     */
+    static Object publish(Object server) throws Exception {
+        Method publish = type("server").getDeclaredMethod("publish");
+        publish.setAccessible(true);
+        return publish.invoke(server);
+    }
+
+    private static Class<?> type(String name){
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> owner, String name, Class<?> result, Class<?>... parameters){
+        try {
+            return LOOKUP.findVirtual(owner, name, MethodType.methodType(result, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle statik(Class<?> owner, String name, Class<?> result, Class<?>... parameters){
+        try {
+            return LOOKUP.findStatic(owner, name, MethodType.methodType(result, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
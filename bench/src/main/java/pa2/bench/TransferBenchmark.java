@@ -0,0 +1,133 @@
+package pa2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time to move a whole file in chunks of chunkSize bytes
+ * direct* call the server in the same JVM (disk and buffer handling only),
+ * rmi* go through the registry over loopback the way the client does,
+ * with read / write per chunk or with a transfer session
+ * storage "memory" keeps the files in the server's MemoryStorage, leaving only RMI and buffer handling
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long fileSize;
+
+    @Param({"1024", "65536", "1048576", "8388608"})
+    public int chunkSize;
+
+    @Param({"disk", "memory"})
+    public String storage;
+
+    private LocalServer local;
+    private String source; // file every read benchmark reads
+    private String target; // file every write benchmark overwrites
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.local = new LocalServer(this.storage);
+        this.source = this.local.createFile("source", this.fileSize);
+        this.target = this.local.createFile("target", this.fileSize);
+        this.buffer = LocalServer.randomBytes(this.chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.local.close();
+    }
+
+    @Benchmark
+    public long directRead(Blackhole blackhole) throws Throwable {
+        return read(this.local.server, blackhole);
+    }
+
+    @Benchmark
+    public long directWrite() throws Throwable {
+        return write(this.local.server);
+    }
+
+    @Benchmark
+    public long rmiRead(Blackhole blackhole) throws Throwable {
+        return read(this.local.stub, blackhole);
+    }
+
+    @Benchmark
+    public long rmiWrite() throws Throwable {
+        return write(this.local.stub);
+    }
+
+    @Benchmark
+    public long rmiDownload(Blackhole blackhole) throws Throwable {
+        Object transfer = Pa2.OPEN_DOWNLOAD.invoke(this.local.stub, this.source, 0L, this.chunkSize);
+        long offset = 0;
+        try {
+            while (offset < this.fileSize){
+                byte[] bytes = (byte[]) Pa2.BYTES.invoke(Pa2.READ_CHUNK.invoke(transfer, offset, this.chunkSize));
+                blackhole.consume(bytes);
+                offset += bytes.length;
+            }
+        } finally {
+            Pa2.CLOSE.invoke(transfer);
+        }
+        return offset;
+    }
+
+    @Benchmark
+    public long rmiUpload() throws Throwable {
+        Object transfer = Pa2.OPEN_UPLOAD.invoke(this.local.stub, this.target, this.fileSize, this.chunkSize);
+        long offset = 0;
+        try {
+            while (offset < this.fileSize){
+                int bytes = (int) Math.min(this.chunkSize, this.fileSize - offset);
+                Pa2.WRITE_CHUNK.invoke(transfer, offset, Pa2.WRAP.invoke(this.buffer, bytes));
+                offset += bytes;
+            }
+        } finally {
+            Pa2.CLOSE.invoke(transfer);
+        }
+        return offset;
+    }
+
+    private long read(Object api, Blackhole blackhole) throws Throwable {
+        long offset = 0;
+        while (offset < this.fileSize){
+            byte[] bytes = (byte[]) Pa2.READ.invoke(api, this.source, offset, this.chunkSize);
+            blackhole.consume(bytes);
+            offset += bytes.length;
+        }
+        return offset;
+    }
+
+    private long write(Object api) throws Throwable {
+        long offset = 0;
+        while (offset < this.fileSize){
+            int bytes = (int) Math.min(this.chunkSize, this.fileSize - offset);
+            Pa2.WRITE.invoke(api, this.target, offset, this.buffer, bytes);
+            offset += bytes;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.Serializable;
+
+/**
+ * One operation of a batch, a batch runs many operations in a single call to the server
+ * operations run in order and one failing does not stop the ones after it
+ * besides metadata, a batch can carry whole small files (PUT) and fetch them (GET), so syncing many small files takes few calls
+ */
+public class BatchOp implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String DIR = "dir";
+    public static final String MKDIR = "mkdir";
+    public static final String RMDIR = "rmdir";
+    public static final String RM = "rm";
+    public static final String EXISTS = "exists";
+    public static final String VALID = "valid";
+    public static final String LENGTH = "length";
+    public static final String PUT = "put";
+    public static final String GET = "get";
+
+    private final String command;
+    private final String path;
+    private final Chunk data; // new content of the file for PUT, null otherwise
+
+    /**
+     * @param command one of DIR, MKDIR, RMDIR, RM, EXISTS, VALID, LENGTH or GET
+     * @param path server's filepath the operation applies to
+     */
+    public BatchOp(String command, String path){
+        this(command, path, null);
+    }
+
+    /**
+     * @param command one of the commands, PUT needs data
+     * @param path server's filepath the operation applies to
+     * @param data new content of the file for PUT, null otherwise
+     */
+    public BatchOp(String command, String path, Chunk data){
+        this.command = command;
+        this.path = path;
+        this.data = data;
+    }
+
+    public String command(){
+        return this.command;
+    }
+
+    public String path(){
+        return this.path;
+    }
+
+    public Chunk data(){
+        return this.data;
+    }
+
+    /**
+     * Check if a client command can be run as part of a batch
+     * @param command name of the command
+     * @return true if the command only touches metadata
+     */
+    public static boolean batchable(String command){
+        return command.equals(DIR) || command.equals(MKDIR) || command.equals(RMDIR) || command.equals(RM);
+    }
+}
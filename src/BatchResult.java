@@ -0,0 +1,52 @@
+import java.io.Serializable;
+
+/**
+ * Result of one operation of a batch
+ */
+public class BatchResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean ok;
+    private final long length; // length of the file for LENGTH, -1 otherwise
+    private final String[] entries; // contents of the directory for DIR, null otherwise
+    private final Chunk data; // content of the file for GET, null otherwise
+
+    /**
+     * @param ok true if the operation succeeded (for EXISTS and VALID, the answer)
+     * @param length length of the file for LENGTH, -1 otherwise
+     * @param entries contents of the directory for DIR, null otherwise
+     */
+    public BatchResult(boolean ok, long length, String[] entries){
+        this(ok, length, entries, null);
+    }
+
+    /**
+     * @param ok true if the operation succeeded (for EXISTS and VALID, the answer)
+     * @param length length of the file for LENGTH and GET, -1 otherwise
+     * @param entries contents of the directory for DIR, null otherwise
+     * @param data content of the file for GET, null otherwise
+     */
+    public BatchResult(boolean ok, long length, String[] entries, Chunk data){
+        this.ok = ok;
+        this.length = length;
+        this.entries = entries;
+        this.data = data;
+    }
+
+    public boolean ok(){
+        return this.ok;
+    }
+
+    public long length(){
+        return this.length;
+    }
+
+    public String[] entries(){
+        return this.entries;
+    }
+
+    public Chunk data(){
+        return this.data;
+    }
+}
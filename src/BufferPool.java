@@ -0,0 +1,78 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pool of direct byte buffers that the server reuses for reading chunks
+ * buffers are grouped by power of two capacities so a released buffer can serve any later request of up to its size
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 12; // 4 KB
+    private static final int MAX_SHIFT = 23; // 8 MB
+
+    private final int buffersPerSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicIntegerArray counts;
+
+    /**
+     * @param buffersPerSize maximum number of idle buffers kept for each capacity
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int buffersPerSize){
+        this.buffersPerSize = buffersPerSize;
+        this.free = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i=0; i<this.free.length; i++){
+            this.free[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.counts = new AtomicIntegerArray(this.free.length);
+    }
+
+    /**
+     * Get a cleared buffer whose limit is the requested size
+     * @param size number of bytes needed
+     * @return buffer from the pool, or a new one if the pool has none of that size
+     */
+    public ByteBuffer acquire(int size){
+        int bucket = bucket(size);
+        if (bucket < 0){
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = this.free[bucket].poll();
+        if (buffer == null){
+            buffer = ByteBuffer.allocateDirect(1 << (bucket + MIN_SHIFT));
+        }
+        else{
+            this.counts.decrementAndGet(bucket);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool, buffers beyond the pool's limit are left to the garbage collector
+     * @param buffer buffer obtained from acquire
+     */
+    public void release(ByteBuffer buffer){
+        int capacity = buffer.capacity();
+        int bucket = bucket(capacity);
+        if (bucket < 0 || capacity != 1 << (bucket + MIN_SHIFT)){
+            return;
+        }
+        if (this.counts.incrementAndGet(bucket) <= this.buffersPerSize){
+            this.free[bucket].offer(buffer);
+        }
+        else{
+            this.counts.decrementAndGet(bucket);
+        }
+    }
+
+    /**
+     * Get the index of the smallest capacity that can hold a number of bytes
+     * @return bucket index, -1 if the size is larger than the largest pooled capacity
+     */
+    private static int bucket(int size){
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        return (shift > MAX_SHIFT) ? -1 : shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Changes under a watched directory since a version, returned by waitForChanges
+ * every changed path is listed once with the last thing that happened to it
+ */
+public class ChangeBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CREATED = "created";
+    public static final String DELETED = "deleted";
+    public static final String MODIFIED = "modified";
+
+    private final List<String> names;
+    private final List<String> kinds;
+    private final long version;
+    private final boolean reset;
+
+    /**
+     * @param names paths of the changed entries relative to the watched directory, "." for the directory itself
+     * @param kinds CREATED, DELETED or MODIFIED, in the same order as the names
+     * @param version version to ask for the next changes with
+     * @param reset true if changes were lost, the directory has to be listed again
+     */
+    public ChangeBatch(List<String> names, List<String> kinds, long version, boolean reset){
+        this.names = names;
+        this.kinds = kinds;
+        this.version = version;
+        this.reset = reset;
+    }
+
+    public int size(){
+        return this.names.size();
+    }
+
+    public String name(int change){
+        return this.names.get(change);
+    }
+
+    public String kind(int change){
+        return this.kinds.get(change);
+    }
+
+    /**
+     * @return version to ask for the next changes with
+     */
+    public long version(){
+        return this.version;
+    }
+
+    /**
+     * @return true if the changes since the version asked for are not known (the version is too old, or from an earlier run of the server),
+     * or the file system dropped events, the directory has to be listed again
+     */
+    public boolean reset(){
+        return this.reset;
+    }
+}
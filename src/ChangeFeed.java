@@ -0,0 +1,370 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Changes made to the server's files, so that clients wait for changes instead of polling dir / getFileLength
+ * - the server reports its own changes, changes made by other programs are picked up through a WatchService
+ *   on every directory under a path a client waits on, up to maxWatches directories (nothing is watched for storage that only the server changes)
+ * - every change gets the next version, only the last change of each path is kept, so a path changed many times between two waits is reported once
+ *   (a path written right after it was created is reported as created),
+ *   once more than capacity paths changed the oldest are dropped and clients that did not see them are told to list again
+ * - a waiting client is answered batchMillis after the first change under its path, with every change made until then
+ * - an event of the file system on a path the server reported a change of less than a second before is taken for the same change and dropped
+ */
+public class ChangeFeed {
+
+    private static final String OVERFLOW = "overflow"; // events under a directory were lost
+    private static final long ECHO_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Last change of a path
+     */
+    private static class Change {
+        private final Path path;
+        private final String kind;
+        private final long version;
+        private final boolean server; // true if the server made the change, false if it was seen by the watcher
+        private final long time; // System.nanoTime
+
+        Change(Path path, String kind, long version, boolean server, long time){
+            this.path = path;
+            this.kind = kind;
+            this.version = version;
+            this.server = server;
+            this.time = time;
+        }
+    }
+
+    private final Storage storage;
+    private final int capacity;
+    private final int maxWatches;
+    private final int maxBatch;
+    private final long batchMillis;
+    private final Predicate<Path> ignored;
+    private final TreeMap<Long, Change> log = new TreeMap<>(); // last change of every path, by version
+    private final Map<Path, Change> latest = new HashMap<>(); // last change of every path in the log
+    private final Set<Path> roots = new HashSet<>(); // paths whose directories are watched
+    private final Map<Path, WatchKey> watches = new HashMap<>(); // watched directories
+    private final WatchService watcher; // null if the storage is not watched
+    private long version; // version of the last change
+    private long oldest; // changes up to this version were dropped
+    private boolean full = false; // true once a directory could not be watched because too many are
+    private boolean closed = false;
+
+    /**
+     * @param storage storage the paths are in, watched for changes made by other programs
+     * @param capacity most paths whose last change is kept
+     * @param maxWatches most directories watched at once
+     * @param maxBatch most changes returned by one wait
+     * @param batchMillis time a waiting client is answered after the first change, to gather the changes made with it
+     * @param ignored paths whose events of the file system are not reported (the server's own files, and files it is writing)
+     */
+    public ChangeFeed(Storage storage, int capacity, int maxWatches, int maxBatch, long batchMillis, Predicate<Path> ignored){
+        this.storage = storage;
+        this.capacity = Math.max(1, capacity);
+        this.maxWatches = maxWatches;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.batchMillis = Math.max(0, batchMillis);
+        this.ignored = ignored;
+
+        // versions start from the time the server started, so a version from an earlier run is never taken for one of this run
+        this.version = System.currentTimeMillis() * 1000;
+        this.oldest = this.version;
+
+        WatchService watcher = null;
+        if (maxWatches > 0){
+            try {
+                watcher = storage.newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                System.err.println("server: changes made by other programs are not reported, file system cannot be watched " + e);
+            }
+        }
+        this.watcher = watcher;
+        if (watcher != null){
+            Thread thread = new Thread(this::watch, "change-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Report a change made by the server
+     * @param path filepath
+     * @param kind ChangeBatch.CREATED, DELETED or MODIFIED
+     */
+    public synchronized void changed(String path, String kind){
+        record(key(path), kind, true);
+    }
+
+    /**
+     * Wait for changes under a path, the path's directories are watched from the first wait on
+     * @param path filepath to a directory (or a file)
+     * @param since version of the last change the caller knows of, 0 to only get the current version
+     * @param timeoutMillis longest time to wait for a change
+     * @return changes after the version, none if nothing changed in time
+     */
+    public ChangeBatch waitFor(String path, long since, long timeoutMillis){
+        Path root = key(path);
+        watchTree(root);
+
+        long now = System.nanoTime();
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        synchronized (this){
+            try {
+                long checked = since; // changes up to this version were looked at
+                while (!this.closed && since >= this.oldest && since <= this.version){
+                    if (deadline > now && changed(root, checked)){
+                        // a change arrived, more changes made with it are gathered until the batch is sent
+                        deadline = Math.min(deadline, now + TimeUnit.MILLISECONDS.toNanos(this.batchMillis));
+                    }
+                    checked = this.version;
+                    if (now >= deadline){
+                        break;
+                    }
+                    wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now)));
+                    now = System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return collect(root, since);
+        }
+    }
+
+    /**
+     * Stop watching the file system and answer every waiting client
+     */
+    public void close(){
+        if (this.watcher != null){
+            try {
+                this.watcher.close();
+            } catch (IOException e) {
+                System.err.println("server: error closing change watcher " + e);
+            }
+        }
+        synchronized (this){
+            this.closed = true;
+            this.watches.clear();
+            notifyAll();
+        }
+    }
+
+    private static Path key(String path){
+        return Paths.get(path).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Log a change as the last change of its path, must be called while holding the feed's lock
+     */
+    private void record(Path path, String kind, boolean server){
+        long now = System.nanoTime();
+        Change last = this.latest.get(path);
+        if (!server && last != null && last.server && now - last.time < ECHO_NANOS){
+            return;
+        }
+        if (last != null){
+            this.log.remove(last.version);
+            // an entry written right after it was created is reported as created, so new files are not missed
+            if (ChangeBatch.MODIFIED.equals(kind) && ChangeBatch.CREATED.equals(last.kind) && now - last.time < TimeUnit.MILLISECONDS.toNanos(this.batchMillis)){
+                kind = ChangeBatch.CREATED;
+            }
+        }
+        Change change = new Change(path, kind, ++this.version, server, now);
+        this.log.put(change.version, change);
+        this.latest.put(path, change);
+        while (this.log.size() > this.capacity){
+            Change dropped = this.log.pollFirstEntry().getValue();
+            this.latest.remove(dropped.path);
+            this.oldest = dropped.version;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Check if a path changed after a version, must be called while holding the feed's lock
+     */
+    private boolean changed(Path root, long since){
+        for (Change change : this.log.tailMap(since, false).values()){
+            if (change.path.startsWith(root) || (OVERFLOW.equals(change.kind) && root.startsWith(change.path))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gather the changes under a path after a version, must be called while holding the feed's lock
+     */
+    private ChangeBatch collect(Path root, long since){
+        List<String> names = new ArrayList<>();
+        List<String> kinds = new ArrayList<>();
+        if (since < this.oldest || since > this.version){
+            return new ChangeBatch(names, kinds, this.version, true);
+        }
+        long version = this.version;
+        boolean reset = false;
+        for (Change change : this.log.tailMap(since, false).values()){
+            if (names.size() >= this.maxBatch){
+                // the rest is returned by the next wait
+                version = change.version - 1;
+                break;
+            }
+            if (OVERFLOW.equals(change.kind)){
+                reset |= change.path.startsWith(root) || root.startsWith(change.path);
+            }
+            else if (change.path.startsWith(root)){
+                String name = root.relativize(change.path).toString().replace(File.separatorChar, '/');
+                names.add(name.isEmpty() ? "." : name);
+                kinds.add(change.kind);
+            }
+        }
+        return new ChangeBatch(names, kinds, version, reset);
+    }
+
+    /**
+     * Watch every directory under a path the first time a client waits on it, a file's directory is watched instead
+     */
+    private void watchTree(Path root){
+        if (this.watcher == null){
+            return;
+        }
+        synchronized (this){
+            if (this.closed || !this.roots.add(root)){
+                return;
+            }
+        }
+        if (this.storage.isDirectory(root)){
+            register(root, false);
+        }
+        else if (root.getParent() != null && this.storage.isDirectory(root.getParent())){
+            watch(root.getParent());
+        }
+    }
+
+    /**
+     * Watch a directory and every directory under it
+     * @param top directory
+     * @param created true to report everything under the directory as created (a directory made by another program may already have entries)
+     */
+    private void register(Path top, boolean created){
+        ArrayDeque<Path> directories = new ArrayDeque<>();
+        directories.add(top);
+        Path directory;
+        while ((directory = directories.poll()) != null){
+            if (!watch(directory)){
+                return;
+            }
+            try (DirectoryStream<Path> entries = this.storage.list(directory, entry -> !this.ignored.test(entry))){
+                for (Path entry : entries){
+                    if (created){
+                        synchronized (this){
+                            record(entry, ChangeBatch.CREATED, false);
+                        }
+                    }
+                    if (this.storage.isDirectory(entry)){
+                        directories.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                // removed while it was walked, its parent reports it
+            }
+        }
+    }
+
+    /**
+     * Watch a directory
+     * @return false if too many directories are watched already
+     */
+    private boolean watch(Path directory){
+        synchronized (this){
+            if (this.closed){
+                return false;
+            }
+            WatchKey key = this.watches.get(directory);
+            if (key != null && key.isValid()){
+                return true;
+            }
+            if (this.watches.size() >= this.maxWatches){
+                if (!this.full){
+                    this.full = true;
+                    System.err.println("server: too many directories to watch for changes, changes made by other programs under " + directory + " are not reported");
+                }
+                return false;
+            }
+            try {
+                key = directory.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | ClosedWatchServiceException e) {
+                // removed in the meantime, its parent reports it
+                return true;
+            }
+            this.watches.put(directory, key);
+            return true;
+        }
+    }
+
+    /**
+     * Background loop that turns file system events into changes, directories made by other programs are watched as well
+     */
+    private void watch(){
+        while (true){
+            WatchKey key;
+            try {
+                key = this.watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            List<Path> created = new ArrayList<>();
+            synchronized (this){
+                for (WatchEvent<?> event : key.pollEvents()){
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+                        record(directory, OVERFLOW, false);
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if (this.ignored.test(path)){
+                        continue;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE){
+                        record(path, ChangeBatch.CREATED, false);
+                        created.add(path);
+                    }
+                    else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE){
+                        record(path, ChangeBatch.DELETED, false);
+                    }
+                    else{
+                        record(path, ChangeBatch.MODIFIED, false);
+                    }
+                }
+                if (!key.reset()){
+                    // a removed root is watched again from the next wait on it, in case it is made again
+                    this.watches.remove(directory, key);
+                    this.roots.remove(directory);
+                }
+            }
+            for (Path path : created){
+                if (this.storage.isDirectory(path)){
+                    register(path, true);
+                }
+            }
+        }
+    }
+}
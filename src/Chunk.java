@@ -0,0 +1,231 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+
+/**
+ * Bytes of a file moved by a transfer
+ * on the server a chunk only points at the bytes (views of memory mapped regions or pooled buffers)
+ * and copies them straight into the RMI stream when it is serialized, so no byte array is allocated per chunk,
+ * on the receiving side the bytes arrive as a plain byte array
+ * a chunk may be compressed on the wire, it is decompressed when its bytes are asked for
+ * the sender stores the CRC32C of the uncompressed bytes in the chunk and the receiver checks it when it asks for the bytes
+ */
+public class Chunk implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int COPY_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[COPY_SIZE]);
+    private static volatile Metrics metrics; // told how long chunks take to serialize, null if nothing is measured
+
+    private transient ByteBuffer[] parts;
+    private transient BufferPool pool; // pool the parts are returned to once they are sent
+    private byte[] bytes; // bytes as they are sent on the wire
+    private boolean deflated; // true if the bytes are compressed with deflate
+    private int rawLength; // number of bytes before compression
+    private int crc; // CRC32C of the bytes before compression
+    private transient boolean checked = true; // false until the CRC32C of a received chunk was checked
+
+    /**
+     * Used by serialization
+     */
+    public Chunk(){
+    }
+
+    /**
+     * @param parts views of the bytes in file order
+     * @param pool pool to give the parts back to once they are sent, null if they are not pooled
+     */
+    public Chunk(ByteBuffer[] parts, BufferPool pool){
+        this.parts = parts;
+        this.pool = pool;
+        this.rawLength = wireLength();
+        CRC32C crc = new CRC32C();
+        for (ByteBuffer part : parts){
+            crc.update(part.duplicate());
+        }
+        this.crc = (int) crc.getValue();
+    }
+
+    private Chunk(ByteBuffer output, BufferPool pool, int rawLength, int crc){
+        this.parts = new ByteBuffer[] {output};
+        this.pool = pool;
+        this.deflated = true;
+        this.rawLength = rawLength;
+        this.crc = crc;
+    }
+
+    /**
+     * Measure how long every chunk takes to be copied into and out of the RMI stream (used by the server)
+     * @param metrics metrics the times and bytes are recorded in
+     */
+    public static void measure(Metrics metrics){
+        Chunk.metrics = metrics;
+    }
+
+    /**
+     * Wrap bytes read from a file
+     * @param buffer buffer holding the bytes
+     * @param bytes number of bytes in the buffer
+     * @return chunk holding the bytes
+     */
+    public static Chunk wrap(byte[] buffer, int bytes){
+        return new Chunk(new ByteBuffer[] {ByteBuffer.wrap(buffer, 0, bytes)}, null);
+    }
+
+    /**
+     * Compress the chunk with deflate
+     * the chunk is returned as it is if compressing does not make it smaller
+     * @param pool pool to borrow the buffer for the compressed bytes from, null to allocate it
+     * @return compressed chunk, or this chunk
+     */
+    public Chunk deflate(BufferPool pool){
+        if (this.parts == null || this.deflated || this.rawLength == 0){
+            return this;
+        }
+        ByteBuffer output = (pool == null) ? ByteBuffer.allocate(this.rawLength - 1) : pool.acquire(this.rawLength - 1);
+        int bytes = Compression.deflate(this.parts, output);
+        if (bytes < 0){
+            if (pool != null){
+                pool.release(output);
+            }
+            return this;
+        }
+        release();
+        output.flip();
+        return new Chunk(output, pool, this.rawLength, this.crc);
+    }
+
+    /**
+     * Get the bytes of the chunk
+     * @return bytes of the file, decompressed if they were compressed on the wire
+     * @throws IOException if the bytes are corrupt (they do not decompress or do not match their CRC32C)
+     */
+    public byte[] bytes() throws IOException {
+        if (this.bytes == null){
+            this.bytes = new byte[wireLength()];
+            int position = 0;
+            for (ByteBuffer part : this.parts){
+                int size = part.remaining();
+                part.duplicate().get(this.bytes, position, size);
+                position += size;
+            }
+            release();
+            this.parts = null;
+        }
+        if (this.deflated){
+            try {
+                this.bytes = Compression.inflate(this.bytes, this.rawLength);
+                this.deflated = false;
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt compressed chunk", e);
+            }
+        }
+        if (!this.checked){
+            CRC32C crc = new CRC32C();
+            crc.update(this.bytes);
+            if ((int) crc.getValue() != this.crc || this.bytes.length != this.rawLength){
+                throw new IOException("chunk does not match its CRC32C");
+            }
+            this.checked = true;
+        }
+        return this.bytes;
+    }
+
+    /**
+     * Get the number of bytes of the file held by the chunk
+     * @return number of bytes before compression
+     */
+    public int length(){
+        return this.rawLength;
+    }
+
+    /**
+     * Check if the chunk is compressed on the wire
+     * @return true if the chunk is compressed, false otherwise
+     */
+    public boolean isDeflated(){
+        return this.deflated;
+    }
+
+    /**
+     * Get the number of bytes the chunk takes on the wire
+     * @return number of bytes after compression
+     */
+    public int wireLength(){
+        if (this.bytes != null){
+            return this.bytes.length;
+        }
+        int length = 0;
+        for (ByteBuffer part : this.parts){
+            length += part.remaining();
+        }
+        return length;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeBoolean(this.deflated);
+        out.writeInt(this.rawLength);
+        out.writeInt(this.crc);
+        long started = System.nanoTime();
+        if (this.parts == null){
+            out.writeInt(this.bytes.length);
+            out.write(this.bytes);
+            sent(this.bytes.length, started);
+            return;
+        }
+        try {
+            out.writeInt(wireLength());
+            byte[] scratch = SCRATCH.get();
+            for (ByteBuffer part : this.parts){
+                ByteBuffer source = part.duplicate();
+                while (source.hasRemaining()){
+                    int size = Math.min(scratch.length, source.remaining());
+                    source.get(scratch, 0, size);
+                    out.write(scratch, 0, size);
+                }
+            }
+            sent(wireLength(), started);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        this.deflated = in.readBoolean();
+        this.rawLength = in.readInt();
+        this.crc = in.readInt();
+        this.checked = false;
+        this.bytes = new byte[in.readInt()];
+        long started = System.nanoTime();
+        in.readFully(this.bytes);
+        Metrics metrics = Chunk.metrics;
+        if (metrics != null){
+            metrics.received(this.bytes.length, System.nanoTime() - started);
+        }
+    }
+
+    private static void sent(int bytes, long started){
+        Metrics metrics = Chunk.metrics;
+        if (metrics != null){
+            metrics.sent(bytes, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Give pooled parts back to their pool
+     */
+    private void release(){
+        if (this.pool != null){
+            for (ByteBuffer part : this.parts){
+                this.pool.release(part);
+            }
+            this.pool = null;
+        }
+    }
+}
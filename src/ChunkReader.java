@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads chunks of files for the server without allocating a byte array per chunk
+ * - files of at least MAP_THRESHOLD bytes are served from memory mapped regions shared by every reader of the file
+ * - smaller files are read into direct buffers borrowed from a pool and given back once the chunk is sent
+ */
+public class ChunkReader {
+
+    public static final long MAP_THRESHOLD = 1024 * 1024;
+
+    private final BufferPool pool;
+
+    /**
+     * @param pool pool of buffers used for files that are not memory mapped
+     */
+    public ChunkReader(BufferPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * Read a range of bytes from an open file and compress it for the wire
+     * @param handle handle to the open file
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read
+     * @param codec codec to compress the chunk with
+     * @return chunk holding the bytes, compressed unless compressing did not make it smaller
+     * @throws IOException if the file could not be read
+     */
+    public Chunk read(FileHandleCache.Handle handle, long offset, int length, String codec) throws IOException {
+        Chunk chunk = read(handle, offset, length);
+        return Compression.DEFLATE.equals(codec) ? chunk.deflate(this.pool) : chunk;
+    }
+
+    /**
+     * Check whether the data of a file starting at an offset is worth compressing by compressing a sample of it
+     * @param handle handle to the open file
+     * @param offset position of the first byte of the sample
+     * @return true if the sample compressed well, false otherwise
+     * @throws IOException if the file could not be read
+     */
+    public boolean worthCompressing(FileHandleCache.Handle handle, long offset) throws IOException {
+        Chunk sample = read(handle, offset, Compression.SAMPLE_SIZE);
+        return Compression.worthCompressing(ByteBuffer.wrap(sample.bytes()));
+    }
+
+    /**
+     * Read a range of bytes from an open file
+     * @param handle handle to the open file
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read
+     * @return chunk holding the bytes, fewer than length if the end of the file is reached
+     * @throws IOException if the file could not be read
+     */
+    public Chunk read(FileHandleCache.Handle handle, long offset, int length) throws IOException {
+        long size = handle.size();
+        length = (int) Math.max(0, Math.min(length, size - offset));
+
+        if (size >= MAP_THRESHOLD){
+            List<ByteBuffer> parts = new ArrayList<>(2);
+            while (length > 0){
+                ByteBuffer part = handle.mapped(offset, length);
+                if (!part.hasRemaining()){
+                    break;
+                }
+                parts.add(part);
+                offset += part.remaining();
+                length -= part.remaining();
+            }
+            return new Chunk(parts.toArray(new ByteBuffer[0]), null);
+        }
+
+        ByteBuffer buffer = this.pool.acquire(length);
+        try {
+            while (buffer.hasRemaining()){
+                if (handle.read(buffer, offset + buffer.position()) < 0){
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            this.pool.release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return new Chunk(new ByteBuffer[] {buffer}, this.pool);
+    }
+}
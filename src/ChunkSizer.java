@@ -0,0 +1,61 @@
+/**
+ * Picks the size of the next chunk of a transfer
+ * in adaptive mode the size doubles while chunks complete well within the target time
+ * and halves when chunks are slow or fail, always staying within the bounds the server agreed to
+ */
+public class ChunkSizer {
+
+    private static final long TARGET_NANOS = 250_000_000L; // time one chunk should take to move
+
+    private final int min;
+    private final int max;
+    private final boolean adaptive;
+    private int size;
+
+    /**
+     * @param min smallest chunk size
+     * @param max largest chunk size
+     * @param initial chunk size to start with
+     * @param adaptive true to adapt the size to the measured chunk times, false to keep it fixed
+     */
+    public ChunkSizer(int min, int max, int initial, boolean adaptive){
+        this.min = min;
+        this.max = max;
+        this.size = Math.max(min, Math.min(max, initial));
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Get the size to use for the next chunk
+     * @return chunk size in bytes
+     */
+    public synchronized int next(){
+        return this.size;
+    }
+
+    /**
+     * Record how long a chunk took to move
+     * @param bytes number of bytes in the chunk
+     * @param nanos time the chunk took
+     */
+    public synchronized void record(int bytes, long nanos){
+        if (!this.adaptive){
+            return;
+        }
+        if (nanos < TARGET_NANOS / 2 && bytes >= this.size){
+            this.size = (int) Math.min(this.max, this.size * 2L);
+        }
+        else if (nanos > TARGET_NANOS * 2){
+            this.size = Math.max(this.min, this.size / 2);
+        }
+    }
+
+    /**
+     * Record that a chunk could not be moved
+     */
+    public synchronized void failed(){
+        if (this.adaptive){
+            this.size = Math.max(this.min, this.size / 2);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Optional deduplicating storage for the server
+ * chunks are stored once under DIRECTORY, named by their SHA-256,
+ * and a deduplicated file is a small manifest at its path that lists its chunks
+ * chunks are reference counted over every manifest and removed once no manifest uses them
+ *
+ * a manifest starts with MAGIC, followed by one "<hash> <length>" line per chunk
+ * only files the store wrote itself are manifests: every manifest has a record under INDEX, named by the SHA-256 of its path,
+ * holding the SHA-256 of the manifest's bytes, so an uploaded file that merely starts with MAGIC stays a regular file
+ * manifests are turned back into regular files before anything writes to them
+ * manifests and rebuilt files are written to a new file next to the path (named like Storage.createTemporary names them)
+ * and moved over it
+ */
+public class ChunkStore {
+
+    public static final String DIRECTORY = ".pa2-chunks";
+    private static final byte[] MAGIC = "PA2-MANIFEST 7f3c9a1e5b2d4f60\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String INDEX = "manifests"; // directory of the manifest records, inside DIRECTORY
+
+    private final Path root; // where chunks are stored
+    private final Path index; // where manifest records are stored
+    private final Map<String, Integer> refs = new HashMap<>();
+    private final Map<Path, String> manifests = new ConcurrentHashMap<>(); // SHA-256 of the bytes of every manifest, by path
+
+    /**
+     * Open the store and count the references of every chunk, chunks left over from unfinished uploads are removed
+     * @param root directory the server serves files from
+     * @throws IOException if the store could not be opened
+     */
+    public ChunkStore(Path root) throws IOException {
+        root = root.toAbsolutePath().normalize();
+        this.root = root.resolve(DIRECTORY);
+        this.index = this.root.resolve(INDEX);
+        boolean indexed = Files.isDirectory(this.index) || !Files.isDirectory(this.root);
+        Files.createDirectories(this.index);
+
+        if (indexed){
+            try (DirectoryStream<Path> records = Files.newDirectoryStream(this.index)){
+                for (Path record : records){
+                    load(record);
+                }
+            }
+        }
+        else{
+            // a store written before manifests were recorded, the manifests already in the tree are recorded once
+            try (Stream<Path> files = Files.walk(root)){
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).filter(f -> !f.startsWith(this.root))::iterator){
+                    byte[] bytes = Files.readAllBytes(file);
+                    if (parse(bytes) != null){
+                        record(file, ContentChunker.hex(ContentChunker.sha256().digest(bytes)));
+                    }
+                }
+            }
+        }
+        for (Path file : this.manifests.keySet()){
+            Manifest manifest = readManifest(file);
+            if (manifest != null){
+                for (String hash : manifest.hashes()){
+                    this.refs.merge(hash, 1, Integer::sum);
+                }
+            }
+        }
+        try (Stream<Path> chunks = Files.walk(this.root)){
+            for (Path chunk : (Iterable<Path>) chunks.filter(Files::isRegularFile).filter(f -> !f.startsWith(this.index))::iterator){
+                if (!this.refs.containsKey(chunk.getFileName().toString())){
+                    Files.deleteIfExists(chunk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a path is the store's own directory (hidden from clients)
+     * @param path filepath
+     * @return true if the path is the store's directory
+     */
+    public boolean isStore(Path path){
+        return path.toAbsolutePath().normalize().equals(this.root);
+    }
+
+    /**
+     * Get the file a chunk is stored in
+     * @param hash SHA-256 of the chunk
+     * @return path to the chunk
+     */
+    public Path chunkPath(String hash){
+        return this.root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Read the manifest at a path
+     * @param file filepath
+     * @return the manifest, null if the store did not write the file as a manifest (or it was changed since)
+     * @throws IOException if the file could not be read
+     */
+    public Manifest readManifest(Path file) throws IOException {
+        String digest = this.manifests.get(key(file));
+        if (digest == null || !Files.isRegularFile(file)){
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        if (!digest.equals(ContentChunker.hex(ContentChunker.sha256().digest(bytes)))){
+            return null;
+        }
+        return parse(bytes);
+    }
+
+    /**
+     * Parse the bytes of a manifest
+     * @return the manifest, null if the bytes do not start with MAGIC or one of the lines is not a valid chunk
+     */
+    private static Manifest parse(byte[] bytes){
+        if (bytes.length < MAGIC.length || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)){
+            return null;
+        }
+        List<String> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        for (String line : new String(bytes, MAGIC.length, bytes.length - MAGIC.length, StandardCharsets.US_ASCII).split("\n")){
+            if (!line.isEmpty()){
+                // a chunk's hash names the file it is read from, so only well-formed lines are trusted
+                String[] fields = line.split(" ");
+                if (fields.length != 2 || !valid(fields[0])){
+                    return null;
+                }
+                int length;
+                try {
+                    length = Integer.parseInt(fields[1]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (length <= 0){
+                    return null;
+                }
+                hashes.add(fields[0]);
+                lengths.add(length);
+            }
+        }
+        return new Manifest(hashes, lengths);
+    }
+
+    /**
+     * Get the length of a file, resolving manifests
+     * @param file filepath
+     * @return length of the file's content
+     * @throws IOException if the file could not be read
+     */
+    public long length(Path file) throws IOException {
+        Manifest manifest = readManifest(file);
+        return (manifest == null) ? Files.size(file) : manifest.length();
+    }
+
+    /**
+     * Find which chunks the store does not hold yet
+     * @param hashes SHA-256 of the chunks
+     * @return hashes of the missing chunks
+     */
+    public List<String> missing(List<String> hashes){
+        List<String> missing = new ArrayList<>();
+        for (String hash : hashes){
+            if (!valid(hash) || !Files.isRegularFile(chunkPath(hash))){
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Store a chunk, the chunk is kept until a manifest refers to it or the server restarts
+     * @param hash SHA-256 the client computed for the chunk
+     * @param bytes bytes of the chunk
+     * @return true if the chunk is stored, false if the bytes do not match the hash
+     * @throws IOException if the chunk could not be written
+     */
+    public boolean put(String hash, byte[] bytes) throws IOException {
+        if (!valid(hash) || !hash.equals(ContentChunker.hex(ContentChunker.sha256().digest(bytes)))){
+            return false;
+        }
+        Path chunk = chunkPath(hash);
+        if (Files.isRegularFile(chunk)){
+            return true;
+        }
+        Files.createDirectories(chunk.getParent());
+        Path temp = Files.createTempFile(chunk.getParent(), hash, ".tmp");
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, chunk, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    /**
+     * Make a path a deduplicated file, replacing whatever file was there
+     * @param path filepath
+     * @param manifest chunks of the file
+     * @return true if the file was written, false if a chunk is missing from the store or its length does not match the stored chunk
+     * @throws IOException if the manifest could not be written
+     */
+    public synchronized boolean commit(Path path, Manifest manifest) throws IOException {
+        if (!missing(manifest.hashes()).isEmpty()){
+            return false;
+        }
+        for (int i=0; i<manifest.chunks(); i++){
+            if (manifest.length(i) <= 0 || manifest.length(i) != Files.size(chunkPath(manifest.hash(i)))){
+                return false;
+            }
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int i=0; i<manifest.chunks(); i++){
+            builder.append(manifest.hash(i)).append(' ').append(manifest.length(i)).append('\n');
+        }
+        byte[] body = builder.toString().getBytes(StandardCharsets.US_ASCII);
+        MessageDigest sha256 = ContentChunker.sha256();
+        sha256.update(MAGIC);
+        sha256.update(body);
+
+        // the record is written first, it does not match whatever file is at the path until the manifest is moved there
+        Manifest old = readManifest(path);
+        Path temp = temporary(path);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)){
+                ByteBuffer[] buffers = {ByteBuffer.wrap(MAGIC), ByteBuffer.wrap(body)};
+                while (buffers[1].hasRemaining()){
+                    channel.write(buffers);
+                }
+            }
+            record(path, ContentChunker.hex(sha256.digest()));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        for (String hash : manifest.hashes()){
+            this.refs.merge(hash, 1, Integer::sum);
+        }
+        release(old);
+        return true;
+    }
+
+    /**
+     * Drop the references of the manifest at a path, called before the file is removed or replaced
+     * @param path filepath
+     * @throws IOException if the file could not be read
+     */
+    public synchronized void forget(Path path) throws IOException {
+        release(readManifest(path));
+        unrecord(path);
+    }
+
+    /**
+     * Turn the manifest at a path back into a regular file so it can be written to
+     * @param path filepath
+     * @throws IOException if the file could not be rebuilt
+     */
+    public synchronized void materialize(Path path) throws IOException {
+        Manifest manifest = readManifest(path);
+        if (manifest == null){
+            return;
+        }
+        Path temp = temporary(path);
+        try {
+            try (FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)){
+                for (String hash : manifest.hashes()){
+                    try (FileChannel source = FileChannel.open(chunkPath(hash), StandardOpenOption.READ)){
+                        long size = source.size();
+                        for (long position = 0; position < size; ){
+                            position += source.transferTo(position, size - position, target);
+                        }
+                    }
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        unrecord(path);
+        release(manifest);
+    }
+
+    /**
+     * Record that the store wrote a manifest to a path
+     * @param digest SHA-256 of the manifest's bytes
+     */
+    private void record(Path path, String digest) throws IOException {
+        Path record = recordPath(path);
+        String body = digest + "\n" + key(path) + "\n";
+        Path temp = Files.createTempFile(this.index, record.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, body.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        this.manifests.put(key(path), digest);
+    }
+
+    /**
+     * Drop the record of a path once it no longer holds a manifest
+     */
+    private void unrecord(Path path) throws IOException {
+        this.manifests.remove(key(path));
+        Files.deleteIfExists(recordPath(path));
+    }
+
+    /**
+     * Load a record when the store is opened, records whose file was removed or changed by another program are dropped
+     */
+    private void load(Path record) throws IOException {
+        String[] lines = new String(Files.readAllBytes(record), StandardCharsets.UTF_8).split("\n");
+        if (record.getFileName().toString().endsWith(".tmp") || lines.length < 2){
+            Files.deleteIfExists(record);
+            return;
+        }
+        Path file = Paths.get(lines[1]);
+        this.manifests.put(key(file), lines[0]);
+        if (readManifest(file) == null){
+            unrecord(file);
+        }
+    }
+
+    private Path recordPath(Path path){
+        String name = key(path).toString();
+        return this.index.resolve(ContentChunker.hex(ContentChunker.sha256().digest(name.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private static Path key(Path path){
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Drop one reference to every chunk of a manifest and remove the chunks nobody refers to anymore
+     */
+    private void release(Manifest manifest) throws IOException {
+        if (manifest == null){
+            return;
+        }
+        for (String hash : manifest.hashes()){
+            Integer count = this.refs.get(hash);
+            if (count == null || count <= 1){
+                this.refs.remove(hash);
+                Files.deleteIfExists(chunkPath(hash));
+            }
+            else{
+                this.refs.put(hash, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Get a new name next to a path for a file that is moved over the path, the file is created with CREATE_NEW
+     */
+    private static Path temporary(Path path){
+        return path.toAbsolutePath().resolveSibling(Storage.TEMPORARY_PREFIX + UUID.randomUUID());
+    }
+
+    /**
+     * Check that a hash looks like a SHA-256 so it can be used as a file name
+     */
+    private static boolean valid(String hash){
+        return hash != null && hash.matches("[0-9a-f]{64}");
+    }
+}
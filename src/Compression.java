@@ -0,0 +1,113 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codecs that chunks can be compressed with on the wire
+ * every chunk is compressed on its own so chunks can still be moved in any order,
+ * a chunk that does not get smaller is sent as it is
+ */
+public class Compression {
+
+    public static final String NONE = "none";
+    public static final String DEFLATE = "deflate";
+    public static final List<String> CODECS = Arrays.asList(NONE, DEFLATE);
+
+    public static final int SAMPLE_SIZE = 64 * 1024; // bytes looked at to decide whether data is worth compressing
+    private static final double MAX_SAMPLE_RATIO = 0.9; // samples that do not shrink below this are treated as incompressible
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private Compression(){
+    }
+
+    /**
+     * Check if a codec is supported
+     * @param codec name of the codec
+     * @return true if the codec is supported, false otherwise
+     */
+    public static boolean supported(String codec){
+        return CODECS.contains(codec);
+    }
+
+    /**
+     * Compress a sample of the data to decide whether compressing the rest is worth it
+     * @param sample first bytes of the data
+     * @return true if the sample compressed well, false if the data looks incompressible (already compressed, encrypted, ...)
+     */
+    public static boolean worthCompressing(ByteBuffer sample){
+        int length = Math.min(sample.remaining(), SAMPLE_SIZE);
+        if (length == 0){
+            return false;
+        }
+        ByteBuffer input = sample.duplicate();
+        input.limit(input.position() + length);
+        ByteBuffer output = ByteBuffer.allocate((int) (length * MAX_SAMPLE_RATIO));
+        return deflate(new ByteBuffer[] {input}, output) >= 0;
+    }
+
+    /**
+     * Compress bytes with deflate
+     * @param input bytes to compress, in order
+     * @param output buffer the compressed bytes are put in, compression gives up once it is full
+     * @return number of compressed bytes, -1 if the compressed bytes did not fit in the output
+     */
+    public static int deflate(ByteBuffer[] input, ByteBuffer output){
+        Deflater deflater = DEFLATER.get();
+        int start = output.position();
+        try {
+            for (ByteBuffer part : input){
+                deflater.setInput(part.duplicate());
+                while (!deflater.needsInput()){
+                    if (!output.hasRemaining()){
+                        return -1;
+                    }
+                    deflater.deflate(output);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()){
+                if (!output.hasRemaining()){
+                    return -1;
+                }
+                deflater.deflate(output);
+            }
+            return output.position() - start;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Decompress bytes compressed with deflate
+     * @param input compressed bytes
+     * @param length number of bytes the data had before it was compressed
+     * @return decompressed bytes
+     * @throws DataFormatException if the input is not valid deflate data of the given length
+     */
+    public static byte[] inflate(byte[] input, int length) throws DataFormatException {
+        Inflater inflater = INFLATER.get();
+        try {
+            byte[] output = new byte[length];
+            inflater.setInput(input);
+            int position = 0;
+            while (position < length && !inflater.finished()){
+                int bytes = inflater.inflate(output, position, length - position);
+                if (bytes == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                position += bytes;
+            }
+            if (position != length){
+                throw new DataFormatException("expected " + length + " bytes but got " + position);
+            }
+            return output;
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.SplittableRandom;
+
+/**
+ * Splits a file into content-defined chunks and hashes them (a gear hash like FastCDC)
+ * boundaries depend only on the bytes around them, so an insert or delete only changes the chunks next to it
+ * and the same data gets the same chunks in every file it appears in
+ */
+public class ContentChunker {
+
+    public static final int MIN_SIZE = 256 * 1024;
+    public static final int AVERAGE_SIZE = 1024 * 1024;
+    public static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    // a boundary is found every AVERAGE_SIZE bytes on average, the top bits of the hash depend on the last 64 bytes
+    private static final long MASK = (AVERAGE_SIZE - 1L) << (64 - Integer.numberOfTrailingZeros(AVERAGE_SIZE));
+    private static final long[] GEAR = new long[256];
+    static {
+        // fixed seed so every client finds the same boundaries
+        SplittableRandom random = new SplittableRandom(0x5eed_c0de_2024L);
+        for (int i=0; i<GEAR.length; i++){
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Receives every chunk in file order
+     */
+    public interface Sink {
+        /**
+         * @param offset position of the first byte of the chunk
+         * @param length number of bytes in the chunk
+         * @param hash SHA-256 of the chunk (lowercase hex)
+         * @throws IOException if the chunk could not be handled
+         */
+        void accept(long offset, int length, String hash) throws IOException;
+    }
+
+    /**
+     * Split a file into chunks
+     * @param input the file
+     * @param sink receives the chunks
+     * @throws IOException if the file could not be read
+     */
+    public static void split(InputStream input, Sink sink) throws IOException {
+        MessageDigest sha256 = sha256();
+        byte[] buffer = new byte[1024 * 1024];
+        long offset = 0; // start of the current chunk
+        int length = 0; // bytes in the current chunk
+        long hash = 0;
+
+        int bytes;
+        while ((bytes = input.read(buffer)) > 0){
+            int start = 0;
+            for (int i=0; i<bytes; i++){
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                length++;
+                if ((length >= MIN_SIZE && (hash & MASK) == 0) || length >= MAX_SIZE){
+                    sha256.update(buffer, start, i + 1 - start);
+                    sink.accept(offset, length, hex(sha256.digest()));
+                    offset += length;
+                    length = 0;
+                    hash = 0;
+                    start = i + 1;
+                }
+            }
+            sha256.update(buffer, start, bytes - start);
+        }
+        if (length > 0){
+            sink.accept(offset, length, hex(sha256.digest()));
+        }
+    }
+
+    /**
+     * @return digest used to name chunks
+     */
+    public static MessageDigest sha256(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param bytes digest
+     * @return lowercase hex form of the digest
+     */
+    public static String hex(byte[] bytes){
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes){
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the client's copy of a file into the steps needed to rebuild it on the server from the server's old copy
+ * the client's file is scanned once with a rolling checksum, every window that matches a block of the old copy
+ * becomes a copy step and everything in between is sent as literal bytes
+ */
+public class DeltaEncoder {
+
+    /**
+     * Receives the steps in batches, in file order
+     */
+    public interface Sink {
+        /**
+         * @param ops next steps
+         * @param scanned number of bytes of the client's file covered so far
+         * @throws IOException if the steps could not be sent
+         */
+        void accept(List<DeltaOp> ops, long scanned) throws IOException;
+    }
+
+    private final FileSignature signature;
+    private final int batchSize;
+    private final Map<Integer, List<Integer>> blocks = new HashMap<>();
+
+    private final List<DeltaOp> ops = new ArrayList<>();
+    private int batched = 0; // literal bytes in the current batch
+    private long literalBytes = 0;
+    private long copiedBytes = 0;
+
+    /**
+     * @param signature signature of the server's copy
+     * @param batchSize number of literal bytes sent per batch
+     */
+    public DeltaEncoder(FileSignature signature, int batchSize){
+        this.signature = signature;
+        this.batchSize = batchSize;
+        for (int block=0; block<signature.blocks(); block++){
+            this.blocks.computeIfAbsent(signature.weak(block), k -> new ArrayList<>(1)).add(block);
+        }
+    }
+
+    /**
+     * Scan the client's file and send the steps to rebuild it
+     * @param input the client's file
+     * @param sink receives the steps
+     * @throws IOException if the file could not be read or the steps could not be sent
+     */
+    public void encode(InputStream input, Sink sink) throws IOException {
+        int blockSize = this.signature.blockSize();
+        byte[] buffer = new byte[Math.max(4 * blockSize, 1024 * 1024)];
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        MessageDigest md5 = FileSignature.md5();
+
+        long base = 0; // offset in the file of buffer[0]
+        int filled = 0; // number of bytes in the buffer
+        int position = 0; // start of the window
+        int literalStart = 0; // start of the literal bytes not sent yet
+        boolean eof = false;
+        boolean rolling = false; // true if the checksum holds the current window
+
+        while (true){
+
+            // keep the window and the byte after it in the buffer
+            if (filled - position <= blockSize && !eof){
+                literal(buffer, literalStart, position, base + position, sink);
+                System.arraycopy(buffer, position, buffer, 0, filled - position);
+                base += position;
+                filled -= position;
+                position = 0;
+                literalStart = 0;
+                while (filled < buffer.length){
+                    int bytes = input.read(buffer, filled, buffer.length - filled);
+                    if (bytes < 0){
+                        eof = true;
+                        break;
+                    }
+                    filled += bytes;
+                }
+            }
+
+            // what is left is shorter than a block
+            if (filled - position < blockSize){
+                literal(buffer, literalStart, filled, base + filled, sink);
+                break;
+            }
+
+            if (!rolling){
+                checksum.reset(buffer, position, blockSize);
+                rolling = true;
+            }
+
+            int block = match(checksum.value(), md5, buffer, position, blockSize);
+            if (block >= 0){
+                literal(buffer, literalStart, position, base + position, sink);
+                copy(block, base + position + blockSize, sink);
+                position += blockSize;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+
+            // send literal bytes in batches so they are not all kept in memory
+            if (position - literalStart >= this.batchSize){
+                literal(buffer, literalStart, position, base + position, sink);
+                literalStart = position;
+            }
+
+            if (position + blockSize < filled){
+                checksum.roll(buffer[position], buffer[position + blockSize]);
+                position++;
+            }
+            else{
+                // the window reached the end of the file without a match
+                position = filled;
+            }
+        }
+
+        flush(base + filled, sink);
+    }
+
+    /**
+     * @return number of bytes sent as literal bytes
+     */
+    public long literalBytes(){
+        return this.literalBytes;
+    }
+
+    /**
+     * @return number of bytes copied from the server's old copy
+     */
+    public long copiedBytes(){
+        return this.copiedBytes;
+    }
+
+    /**
+     * Find the block of the server's copy that the window matches
+     * @return index of the block, -1 if there is no match
+     */
+    private int match(int weak, MessageDigest md5, byte[] buffer, int offset, int length){
+        List<Integer> candidates = this.blocks.get(weak);
+        if (candidates == null){
+            return -1;
+        }
+        byte[] strong = FileSignature.strong(md5, buffer, offset, length);
+        for (int block : candidates){
+            if (this.signature.strongMatches(block, strong)){
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private void literal(byte[] buffer, int from, int to, long scanned, Sink sink) throws IOException {
+        if (to <= from){
+            return;
+        }
+        this.ops.add(DeltaOp.literal(Arrays.copyOfRange(buffer, from, to)));
+        this.batched += to - from;
+        this.literalBytes += to - from;
+        if (this.batched >= this.batchSize){
+            flush(scanned, sink);
+        }
+    }
+
+    private void copy(int block, long scanned, Sink sink) throws IOException {
+        this.copiedBytes += this.signature.blockSize();
+        if (this.ops.isEmpty() || !this.ops.get(this.ops.size() - 1).extend(block)){
+            this.ops.add(DeltaOp.copy(block, 1));
+        }
+        if (this.ops.size() >= 4096){
+            flush(scanned, sink);
+        }
+    }
+
+    private void flush(long scanned, Sink sink) throws IOException {
+        sink.accept(new ArrayList<>(this.ops), scanned);
+        this.ops.clear();
+        this.batched = 0;
+    }
+}
@@ -0,0 +1,66 @@
+import java.io.Serializable;
+
+/**
+ * One step of rebuilding a file on the server from its old copy
+ * either copy a run of blocks from the old copy or write literal bytes sent by the client
+ */
+public class DeltaOp implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long block; // first block to copy
+    private int count; // number of blocks to copy
+    private final byte[] literal; // bytes to write, null for a copy
+
+    private DeltaOp(long block, int count, byte[] literal){
+        this.block = block;
+        this.count = count;
+        this.literal = literal;
+    }
+
+    /**
+     * @param block index of the first block of the old copy
+     * @param count number of blocks
+     * @return step that copies blocks from the old copy
+     */
+    public static DeltaOp copy(long block, int count){
+        return new DeltaOp(block, count, null);
+    }
+
+    /**
+     * @param bytes bytes to write
+     * @return step that writes literal bytes
+     */
+    public static DeltaOp literal(byte[] bytes){
+        return new DeltaOp(-1, 0, bytes);
+    }
+
+    public boolean isCopy(){
+        return this.literal == null;
+    }
+
+    public long block(){
+        return this.block;
+    }
+
+    public int count(){
+        return this.count;
+    }
+
+    public byte[] literal(){
+        return this.literal;
+    }
+
+    /**
+     * Extend a copy by the block right after it
+     * @param block index of the block to add
+     * @return true if the block was added, false if it does not follow this copy
+     */
+    public boolean extend(long block){
+        if (!isCopy() || this.block + this.count != block){
+            return false;
+        }
+        this.count++;
+        return true;
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.util.List;
+
+/**
+ * Server side of a RemoteDelta
+ * the rebuilt file is written sequentially, copy steps are served from the old copy with transferTo
+ * and literal bytes are appended as they arrive,
+ * and the temporary file (a new file made next to it by Storage.createTemporary) is renamed over the old copy on commit
+ */
+public class DeltaSession extends UnicastRemoteObject implements RemoteDelta, Unreferenced{
+
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+    private final int blockSize;
+    private final FileHandleCache handles;
+    private final Storage storage; // storage the rebuilt file is written to
+    private final ChunkStore store; // null if deduplication is off
+    private final MetadataCache metadata;
+    private final ChangeFeed changes;
+    private final PathLocks locks;
+    private final Scheduler.Lane lane; // transfer slot the steps are applied through
+    private boolean claimed = true; // the caller claims the path, the claim is released once the session ends
+    private FileHandleCache.Handle source; // old copy
+    private final Path temp;
+    private FileChannel target; // rebuilt file
+    private long position = 0;
+
+    /**
+     * @param sockets settings of the connections the session is exported with
+     * @param handles cache that the old copy's channel is borrowed from
+     * @param storage storage the file is rebuilt in
+     * @param store store whose references are dropped if the old copy is deduplicated, null if deduplication is off
+     * @param metadata cache that forgets the file once it is replaced
+     * @param changes feed told about the file once it is replaced
+     * @param locks locks whose claim on the path is released once the delta is committed or aborted
+     * @param lane transfer slot the steps are applied through, given back once the delta is committed or aborted
+     * @param path filepath to the file
+     * @param blockSize block size of the signature the client built the steps from
+     * @throws IOException if the old copy or the temporary file could not be opened
+     */
+    protected DeltaSession(Sockets sockets, FileHandleCache handles, Storage storage, ChunkStore store, MetadataCache metadata, ChangeFeed changes, PathLocks locks, Scheduler.Lane lane, String path, int blockSize) throws IOException {
+        super(0, sockets.client(), sockets.server());
+        this.handles = handles;
+        this.storage = storage;
+        this.store = store;
+        this.metadata = metadata;
+        this.changes = changes;
+        this.locks = locks;
+        this.lane = lane;
+        this.path = path;
+        this.blockSize = blockSize;
+        this.source = handles.acquire(path, false);
+        Path temp = null;
+        try {
+            temp = storage.createTemporary(Paths.get(path));
+            this.target = storage.open(temp, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            if (temp != null){
+                try {
+                    storage.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+            handles.release(this.source);
+            UnicastRemoteObject.unexportObject(this, true);
+            throw e;
+        }
+        this.temp = temp;
+    }
+
+    @Override
+    public synchronized boolean apply(List<DeltaOp> ops) throws RemoteException {
+        if (this.target == null){
+            return false;
+        }
+        long cost = 0;
+        for (DeltaOp op : ops){
+            cost += op.isCopy() ? (long) op.count() * this.blockSize : op.literal().length;
+        }
+        return this.lane.run(cost, () -> write(ops));
+    }
+
+    /**
+     * Apply steps to the rebuilt file, runs on a disk worker while the session's lock is held by the caller
+     */
+    private boolean write(List<DeltaOp> ops){
+        try {
+            for (DeltaOp op : ops){
+                if (op.isCopy()){
+                    long from = op.block() * this.blockSize;
+                    long count = (long) op.count() * this.blockSize;
+                    if (from + count > this.source.size()){
+                        System.err.println("server: delta for " + this.path + " refers to blocks past the end of the file");
+                        return false;
+                    }
+                    while (count > 0){
+                        long bytes = this.source.transferTo(from, count, this.target);
+                        from += bytes;
+                        count -= bytes;
+                        this.position += bytes;
+                    }
+                }
+                else{
+                    ByteBuffer literal = ByteBuffer.wrap(op.literal());
+                    while (literal.hasRemaining()){
+                        this.position += this.target.write(literal);
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("server: error applying delta to " + this.path + " " + e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized long commit() throws RemoteException {
+        if (this.target == null){
+            return -1;
+        }
+        try {
+            this.target.force(true);
+            this.target.close();
+            this.target = null;
+            release();
+
+            // readers that still hold the old copy open keep reading it, new readers see the rebuilt file
+            this.handles.invalidate(this.path);
+            if (this.store != null){
+                this.store.forget(Paths.get(this.path));
+            }
+            this.storage.move(this.temp, Paths.get(this.path));
+            this.metadata.invalidate(this.path);
+            this.changes.changed(this.path, ChangeBatch.MODIFIED);
+            return this.position;
+        } catch (IOException e) {
+            System.err.println("server: error committing delta to " + this.path + " " + e);
+            abort();
+            return -1;
+        } finally {
+            unexport();
+        }
+    }
+
+    @Override
+    public synchronized void abort() throws RemoteException {
+        try {
+            if (this.target != null){
+                this.target.close();
+                this.target = null;
+            }
+            this.storage.deleteIfExists(this.temp);
+        } catch (IOException e) {
+            System.err.println("server: error aborting delta to " + this.path + " " + e);
+        }
+        release();
+        unexport();
+    }
+
+    /**
+     * Called by RMI once no client holds a reference to this session
+     */
+    @Override
+    public void unreferenced() {
+        try {
+            abort();
+        } catch (RemoteException e) {
+            System.err.println("server: error releasing delta to " + this.path + " " + e);
+        }
+    }
+
+    private void release(){
+        if (this.source != null){
+            this.handles.release(this.source);
+            this.source = null;
+        }
+    }
+
+    private void unexport(){
+        if (this.claimed){
+            this.locks.unclaim(this.path);
+            this.claimed = false;
+        }
+        this.lane.close();
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // already unexported
+        }
+    }
+}
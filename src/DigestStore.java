@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sidecar store for the SHA-256 of the server's files, so a digest is only computed once per version of a file
+ * every digest is kept under DIRECTORY in a small file named by the SHA-256 of the file's path,
+ * together with the length and modification time the file had when it was hashed,
+ * a digest whose file has changed since is ignored and replaced the next time the file is hashed
+ * files kept in memory have their digests kept in memory as well, as long as the server runs
+ */
+public class DigestStore {
+
+    public static final String DIRECTORY = ".pa2-digests";
+
+    private final Path root; // where digests are stored, null if they are kept in memory
+    private final Storage storage; // storage the files are read from, null for the disk
+    private final Map<Path, String> memory; // sidecar bodies by file, null if they are stored on disk
+
+    /**
+     * @param root directory the server serves files from
+     * @throws IOException if the store could not be created
+     */
+    public DigestStore(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize().resolve(DIRECTORY);
+        this.storage = null;
+        this.memory = null;
+        Files.createDirectories(this.root);
+    }
+
+    /**
+     * Keep the digests in memory
+     * @param storage storage the files are kept in
+     */
+    public DigestStore(Storage storage){
+        this.root = null;
+        this.storage = storage;
+        this.memory = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Check if a path is the store's own directory (hidden from clients)
+     * @param path filepath
+     * @return true if the path is the store's directory
+     */
+    public boolean isStore(Path path){
+        return this.root != null && path.toAbsolutePath().normalize().equals(this.root);
+    }
+
+    /**
+     * Get the stored digest of a file
+     * @param file filepath
+     * @return SHA-256 of the file (lowercase hex), null if none is stored or the file changed since it was hashed
+     */
+    public String get(Path file){
+        try {
+            BasicFileAttributes attributes = attributes(file);
+            String body = (this.memory == null) ? new String(Files.readAllBytes(sidecar(file)), StandardCharsets.US_ASCII) : this.memory.get(key(file));
+            if (body == null){
+                return null;
+            }
+            String[] fields = body.split("\n")[0].split(" ");
+            if (fields.length == 3 && fields[0].equals(stamp(attributes)) && fields[1].equals(Long.toString(attributes.size()))){
+                return fields[2];
+            }
+        } catch (IOException e) {
+            // nothing stored yet
+        }
+        return null;
+    }
+
+    /**
+     * Store the digest of a file
+     * @param file filepath
+     * @param attributes attributes the file had before it was hashed, the digest is ignored if the file changed since
+     * @param digest SHA-256 of the file (lowercase hex)
+     */
+    public void put(Path file, BasicFileAttributes attributes, String digest){
+        String body = stamp(attributes) + " " + attributes.size() + " " + digest + "\n" + file.toAbsolutePath().normalize() + "\n";
+        if (this.memory != null){
+            this.memory.put(key(file), body);
+            return;
+        }
+        Path sidecar = sidecar(file);
+        try {
+            Path temp = Files.createTempFile(this.root, sidecar.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, body.getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            System.err.println("server: error storing digest of " + file + " " + e);
+        }
+    }
+
+    /**
+     * Store the digest of a file as it is now, used once nothing can change the file between the hash and the call
+     * @param file filepath
+     * @param digest SHA-256 of the file (lowercase hex)
+     */
+    public void put(Path file, String digest){
+        try {
+            put(file, attributes(file), digest);
+        } catch (IOException e) {
+            System.err.println("server: error storing digest of " + file + " " + e);
+        }
+    }
+
+    /**
+     * Drop the stored digest of a file, called when the file is removed
+     * @param file filepath
+     */
+    public void forget(Path file){
+        if (this.memory != null){
+            this.memory.remove(key(file));
+            return;
+        }
+        try {
+            Files.deleteIfExists(sidecar(file));
+        } catch (IOException e) {
+            System.err.println("server: error removing digest of " + file + " " + e);
+        }
+    }
+
+    private BasicFileAttributes attributes(Path file) throws IOException {
+        if (this.storage != null){
+            return this.storage.attributes(file, LinkOption.NOFOLLOW_LINKS);
+        }
+        return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private static Path key(Path file){
+        return file.toAbsolutePath().normalize();
+    }
+
+    private Path sidecar(Path file){
+        String name = file.toAbsolutePath().normalize().toString();
+        return this.root.resolve(ContentChunker.hex(ContentChunker.sha256().digest(name.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * Modification time in nanoseconds, as precise as the file system keeps it
+     */
+    private static String stamp(BasicFileAttributes attributes){
+        return Long.toString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+    }
+}
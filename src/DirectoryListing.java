@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * A directory listing the server keeps open between pages
+ * entries are read from the directory streams as pages are asked for, so the server never holds the whole listing,
+ * a recursive listing walks the tree depth first and only keeps one open stream per level (symbolic links are not followed)
+ */
+public class DirectoryListing {
+
+    private final Storage storage;
+    private final Path root;
+    private final boolean recursive;
+    private final DirectoryStream.Filter<Path> filter;
+    private final Deque<DirectoryStream<Path>> streams = new ArrayDeque<>();
+    private final Deque<Iterator<Path>> iterators = new ArrayDeque<>();
+    private long lastUsed = System.nanoTime();
+
+    /**
+     * @param storage storage the directory is in
+     * @param root directory to list
+     * @param recursive true to also list everything under the subdirectories
+     * @param filter entries to list, directories that are filtered out are not walked into either
+     * @throws IOException if the directory could not be opened
+     */
+    public DirectoryListing(Storage storage, Path root, boolean recursive, DirectoryStream.Filter<Path> filter) throws IOException {
+        this.storage = storage;
+        this.root = root;
+        this.recursive = recursive;
+        this.filter = filter;
+        push(root);
+    }
+
+    /**
+     * Get the next entry of the listing
+     * @return path of the entry, null once every entry was listed
+     */
+    public synchronized Path next(){
+        this.lastUsed = System.nanoTime();
+        while (!this.iterators.isEmpty()){
+            Iterator<Path> iterator = this.iterators.peek();
+            if (!iterator.hasNext()){
+                pop();
+                continue;
+            }
+            Path entry = iterator.next();
+            if (this.recursive && isDirectory(entry)){
+                try {
+                    push(entry);
+                } catch (IOException e) {
+                    // the directory is still listed, only its contents are skipped
+                    System.err.println("server: error listing " + entry + " " + e);
+                }
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Get the name to show for an entry
+     * @param entry path returned by next
+     * @return file name, or the path relative to the listed directory for a recursive listing
+     */
+    public String name(Path entry){
+        return this.recursive ? this.root.relativize(entry).toString() : entry.getFileName().toString();
+    }
+
+    /**
+     * @return time the listing was last read from (System.nanoTime)
+     */
+    public synchronized long lastUsed(){
+        return this.lastUsed;
+    }
+
+    /**
+     * Close every stream that is still open
+     */
+    public synchronized void close(){
+        while (!this.streams.isEmpty()){
+            pop();
+        }
+    }
+
+    private void push(Path directory) throws IOException {
+        DirectoryStream<Path> stream = this.storage.list(directory, this.filter);
+        this.streams.push(stream);
+        this.iterators.push(stream.iterator());
+    }
+
+    private boolean isDirectory(Path entry){
+        try {
+            return this.storage.attributes(entry, LinkOption.NOFOLLOW_LINKS).isDirectory();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void pop(){
+        this.iterators.pop();
+        try {
+            this.streams.pop().close();
+        } catch (IOException e) {
+            System.err.println("server: error closing listing " + e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a directory listing
+ * the server keeps the listing open between pages, the cursor of a page is passed back to get the next one
+ */
+public class DirectoryPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> names;
+    private final List<FileAttributes> attributes;
+    private final String cursor;
+
+    /**
+     * @param names names of the entries (paths relative to the listed directory for a recursive listing)
+     * @param attributes attributes of the entries, in the same order as the names
+     * @param cursor cursor to get the next page with, null if this is the last page
+     */
+    public DirectoryPage(List<String> names, List<FileAttributes> attributes, String cursor){
+        this.names = names;
+        this.attributes = attributes;
+        this.cursor = cursor;
+    }
+
+    public int size(){
+        return this.names.size();
+    }
+
+    public String name(int entry){
+        return this.names.get(entry);
+    }
+
+    public FileAttributes attributes(int entry){
+        return this.attributes.get(entry);
+    }
+
+    /**
+     * @return cursor to get the next page with, null if the listing is complete
+     */
+    public String cursor(){
+        return this.cursor;
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Local copies of downloaded files kept by the client, so a file that did not change on the server is not downloaded again
+ * - entries are keyed by the server and the server's path, every entry is a copy of the file and a ".meta" file with its validators
+ * - an entry is valid while the server reports the same length and modification time (and the same SHA-256 if it reports one)
+ * - once the cache is larger than its limit the least recently used entries are removed
+ *
+ * meta format: the first line holds the server's path, the second "length lastModified sha256"
+ */
+public class DownloadCache {
+
+    private static final int COPY_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final String server; // host:port of the server the files come from
+    private final long maxBytes;
+    private final boolean link; // true to hard link restored files to the cache instead of copying them
+
+    /**
+     * @param directory directory the cache is kept in, created if needed
+     * @param server host:port of the server the files come from
+     * @param maxBytes largest number of bytes the cached files may take
+     * @param link true to hard link restored files to the cache instead of copying them (the downloaded file must then not be modified)
+     * @throws IOException if the directory could not be created
+     */
+    public DownloadCache(Path directory, String server, long maxBytes, boolean link) throws IOException {
+        this.directory = directory;
+        this.server = server;
+        this.maxBytes = maxBytes;
+        this.link = link;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Put the cached copy of a file at a path if the server's file did not change since it was cached
+     * @param serverPath path to the file on the server
+     * @param attributes attributes the server reports for the file now
+     * @param target where to put the file
+     * @return true if the file was restored from the cache, false if it has to be downloaded
+     * @throws IOException if the cached copy could not be copied
+     */
+    public boolean restore(String serverPath, FileAttributes attributes, Path target) throws IOException {
+        String key = key(serverPath);
+        Path data = this.directory.resolve(key);
+        Path meta = this.directory.resolve(key + ".meta");
+        if (!Files.isRegularFile(meta) || !Files.isRegularFile(data)){
+            return false;
+        }
+
+        // a meta file that cannot be read (cut short or corrupt) is a miss like a stale one
+        boolean valid;
+        try {
+            List<String> lines = Files.readAllLines(meta, StandardCharsets.UTF_8);
+            String[] validators = (lines.size() == 2 && lines.get(0).equals(normalize(serverPath))) ? lines.get(1).split(" ") : null;
+            valid = validators != null && validators.length == 3 && Long.parseLong(validators[0]) == attributes.length() 
+                && Long.parseLong(validators[1]) == attributes.lastModified() && Files.size(data) == attributes.length()
+                && (attributes.digest() == null || attributes.digest().equals(validators[2]));
+        } catch (NumberFormatException | CharacterCodingException e) {
+            valid = false;
+        }
+        if (!valid){
+            remove(key);
+            return false;
+        }
+
+        if (this.link){
+            Files.deleteIfExists(target);
+            Files.createLink(target, data);
+        }
+        else{
+            Files.copy(data, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.setLastModifiedTime(meta, FileTime.fromMillis(System.currentTimeMillis())); // mark the entry as recently used
+        return true;
+    }
+
+    /**
+     * Add a downloaded file to the cache
+     * @param serverPath path to the file on the server
+     * @param before attributes the server reported before the download
+     * @param after attributes the server reports after the download, the file is not cached if they differ from before
+     * @param file the downloaded file
+     * @throws IOException if the file could not be cached
+     */
+    public void store(String serverPath, FileAttributes before, FileAttributes after, Path file) throws IOException {
+        if (!after.isFile() || before.length() != after.length() || before.lastModified() != after.lastModified() || Files.size(file) != after.length()){
+            return;
+        }
+        if (after.length() > this.maxBytes){
+            return;
+        }
+
+        String key = key(serverPath);
+        Path temp = Files.createTempFile(this.directory, key, ".tmp");
+        try {
+            // hash the file while copying it so the cache can be checked against the server's digest
+            MessageDigest sha256 = ContentChunker.sha256();
+            try (InputStream input = Files.newInputStream(file); OutputStream output = Files.newOutputStream(temp)){
+                byte[] buffer = new byte[COPY_SIZE];
+                int bytes;
+                while ((bytes = input.read(buffer)) >= 0){
+                    sha256.update(buffer, 0, bytes);
+                    output.write(buffer, 0, bytes);
+                }
+            }
+            Files.move(temp, this.directory.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            String meta = normalize(serverPath) + "\n" + after.length() + " " + after.lastModified() + " " + ContentChunker.hex(sha256.digest()) + "\n";
+            Files.write(temp, meta.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, this.directory.resolve(key + ".meta"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict();
+    }
+
+    /**
+     * Remove the least recently used entries until the cache fits in its limit
+     * @throws IOException if the cache could not be listed
+     */
+    public void evict() throws IOException {
+        List<Path> metas = new ArrayList<>();
+        try (Stream<Path> files = Files.list(this.directory)){
+            files.filter(f -> f.getFileName().toString().endsWith(".meta")).forEach(metas::add);
+        }
+
+        long total = 0;
+        List<String> keys = new ArrayList<>();
+        Map<String, Long> lastUsed = new HashMap<>();
+        Map<String, Long> sizes = new HashMap<>();
+        for (Path meta : metas){
+            String name = meta.getFileName().toString();
+            String key = name.substring(0, name.length() - ".meta".length());
+            try {
+                sizes.put(key, Files.size(this.directory.resolve(key)));
+                lastUsed.put(key, Files.getLastModifiedTime(meta).toMillis());
+                keys.add(key);
+                total += sizes.get(key);
+            } catch (IOException e) {
+                remove(key); // half written or half removed entry
+            }
+        }
+
+        keys.sort(Comparator.comparingLong(lastUsed::get));
+        for (String key : keys){
+            if (total <= this.maxBytes){
+                break;
+            }
+            remove(key);
+            total -= sizes.get(key);
+        }
+    }
+
+    private void remove(String key) throws IOException {
+        Files.deleteIfExists(this.directory.resolve(key + ".meta"));
+        Files.deleteIfExists(this.directory.resolve(key));
+    }
+
+    /**
+     * Name of the entry of a file, the SHA-256 of the server and the normalized path
+     */
+    private String key(String serverPath){
+        return ContentChunker.hex(ContentChunker.sha256().digest((this.server + "\n" + normalize(serverPath)).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String normalize(String serverPath){
+        return Paths.get(serverPath).normalize().toString();
+    }
+}
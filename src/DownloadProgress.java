@@ -0,0 +1,173 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of a download that is split into byte ranges fetched in parallel
+ * the progress of every range is saved in a sidecar file next to the download ("<file>.part")
+ * so that a resumed download only fetches the bytes that are still missing
+ *
+ * sidecar format: the first line holds the length of the server's file,
+ * every following line holds "start end done" for one range
+ */
+public class DownloadProgress {
+
+    private final Path sidecar;
+    private final long fileSize;
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] done;
+
+    private DownloadProgress(Path sidecar, long fileSize, long[] starts, long[] ends, long[] done){
+        this.sidecar = sidecar;
+        this.fileSize = fileSize;
+        this.starts = starts;
+        this.ends = ends;
+        this.done = done;
+    }
+
+    /**
+     * Get the sidecar file that holds the progress of a download
+     * @param clientFile file being downloaded
+     * @return path to the sidecar file
+     */
+    public static Path sidecar(File clientFile){
+        return new File(clientFile.getPath() + ".part").toPath();
+    }
+
+    /**
+     * Split the missing part of a download into ranges of about the same size
+     * @param clientFile file being downloaded
+     * @param start number of bytes the client already has
+     * @param fileSize length of the server's file
+     * @param ranges number of ranges to split into
+     * @return progress with nothing downloaded yet
+     */
+    public static DownloadProgress split(File clientFile, long start, long fileSize, int ranges){
+        long remaining = fileSize - start;
+        ranges = (int) Math.max(1, Math.min(ranges, remaining));
+        long[] starts = new long[ranges];
+        long[] ends = new long[ranges];
+        for (int i=0; i<ranges; i++){
+            starts[i] = start + remaining * i / ranges;
+            ends[i] = start + remaining * (i + 1) / ranges;
+        }
+        return new DownloadProgress(sidecar(clientFile), fileSize, starts, ends, starts.clone());
+    }
+
+    /**
+     * Load the saved progress of a download
+     * @param clientFile file being downloaded
+     * @param fileSize length of the server's file
+     * @return saved progress, null if there is none or it belongs to a file of a different length
+     */
+    public static DownloadProgress load(File clientFile, long fileSize){
+        Path sidecar = sidecar(clientFile);
+        if (!Files.isRegularFile(sidecar) || !clientFile.isFile()){
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(sidecar, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || Long.parseLong(lines.get(0).trim()) != fileSize || clientFile.length() != fileSize){
+                return null;
+            }
+            int ranges = lines.size() - 1;
+            long[] starts = new long[ranges];
+            long[] ends = new long[ranges];
+            long[] done = new long[ranges];
+            for (int i=0; i<ranges; i++){
+                String[] fields = lines.get(i + 1).trim().split(" ");
+                starts[i] = Long.parseLong(fields[0]);
+                ends[i] = Long.parseLong(fields[1]);
+                done[i] = Long.parseLong(fields[2]);
+                if (starts[i] > done[i] || done[i] > ends[i] || ends[i] > fileSize){
+                    return null;
+                }
+            }
+            return new DownloadProgress(sidecar, fileSize, starts, ends, done);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public int ranges(){
+        return this.starts.length;
+    }
+
+    public synchronized long done(int range){
+        return this.done[range];
+    }
+
+    /**
+     * @return number of bytes at the start of the file that are complete without a gap
+     */
+    public synchronized long contiguous(){
+        long prefix = this.starts[0];
+        for (int i=0; i<this.starts.length && this.starts[i] == prefix; i++){
+            prefix = this.done[i];
+            if (this.done[i] < this.ends[i]){
+                break;
+            }
+        }
+        return prefix;
+    }
+
+    public long start(int range){
+        return this.starts[range];
+    }
+
+    public long end(int range){
+        return this.ends[range];
+    }
+
+    /**
+     * Get the number of bytes downloaded over all ranges (including bytes the client had before the split)
+     * @return number of bytes downloaded
+     */
+    public synchronized long completed(){
+        long missing = 0;
+        for (int i=0; i<this.starts.length; i++){
+            missing += this.ends[i] - this.done[i];
+        }
+        return this.fileSize - missing;
+    }
+
+    /**
+     * Record that every byte of a range before an offset has been downloaded and save the progress
+     * @param range index of the range
+     * @param offset offset up to which the range is downloaded
+     * @throws IOException if the sidecar file could not be written
+     */
+    public synchronized void advance(int range, long offset) throws IOException {
+        this.done[range] = offset;
+        save();
+    }
+
+    /**
+     * Write the progress to the sidecar file
+     * @throws IOException if the sidecar file could not be written
+     */
+    public synchronized void save() throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(Long.toString(this.fileSize));
+        for (int i=0; i<this.starts.length; i++){
+            lines.add(this.starts[i] + " " + this.ends[i] + " " + this.done[i]);
+        }
+        Path temp = this.sidecar.resolveSibling(this.sidecar.getFileName() + ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, this.sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove the sidecar file once the download is complete
+     * @throws IOException if the sidecar file could not be removed
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(this.sidecar);
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When the bytes written by the server are forced to the disk (fsync), and when a client is told that its file is written
+ * - NONE: bytes are left to the operating system, a finished upload is acknowledged once it was handed to the operating system,
+ *   a crash of the machine can lose bytes of any file written in the last few seconds
+ * - COMMIT: a finished upload is acknowledged once its file was forced, an acknowledged file survives a crash
+ * - PERIODIC: written files are also forced in the background every syncBytes bytes or syncMillis milliseconds,
+ *   so a crash loses at most that much of an upload in progress (and a resumed upload sends only that much again),
+ *   a finished upload is acknowledged once the next round of forces covered it
+ *   (uploads finishing at the same time wait for the same round, so the files are forced together)
+ * small files sent whole by a batch are forced before they are moved over the old file with any policy other than NONE
+ * (deltas always are), so a crash leaves either the old or the new file
+ * the single write calls have no end of their own, the files they wrote are committed once, when the file is next stat'ed or read
+ * (or the server shuts down), instead of once per call
+ */
+public class Durability {
+
+    public static final String NONE = "none";
+    public static final String COMMIT = "commit";
+    public static final String PERIODIC = "periodic";
+
+    private final String policy;
+    private final long syncBytes;
+    private final long syncMillis;
+    private final AtomicLong forces = new AtomicLong(); // files forced so far
+
+    // guarded by this, used by PERIODIC only
+    private final Map<FileChannel, Long> dirty = new LinkedHashMap<>(); // written files and their bytes not forced yet
+    private final Map<FileChannel, IOException> failures = new HashMap<>(); // files whose last force failed
+    private long dirtyBytes = 0;
+    private long dirtySince = 0; // time the first byte not forced yet was written (System.nanoTime)
+    private long requested = 0; // last round a commit waits for
+    private long started = 0; // rounds started
+    private long completed = 0; // rounds completed
+    private boolean closed = false;
+
+    /**
+     * @param policy NONE, COMMIT or PERIODIC
+     * @param syncBytes PERIODIC forces the written files once this many bytes were written
+     * @param syncMillis PERIODIC forces the written files once the oldest write not forced is this old
+     */
+    public Durability(String policy, long syncBytes, long syncMillis){
+        if (!NONE.equals(policy) && !COMMIT.equals(policy) && !PERIODIC.equals(policy)){
+            throw new IllegalArgumentException("unknown durability policy " + policy);
+        }
+        this.policy = policy;
+        this.syncBytes = Math.max(1, syncBytes);
+        this.syncMillis = Math.max(1, syncMillis);
+        if (PERIODIC.equals(policy)){
+            Thread thread = new Thread(this::sync, "durability-sync");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Make a policy whose PERIODIC limits are read from the pa2.durability.* system properties
+     * - bytes: bytes written between background forces (default 64 MB)
+     * - millis: longest a written byte waits to be forced (default 1000)
+     * @param policy NONE, COMMIT or PERIODIC
+     * @return the policy
+     */
+    public static Durability fromProperties(String policy){
+        return new Durability(policy,
+            Long.getLong("pa2.durability.bytes", 64L * 1024 * 1024),
+            Long.getLong("pa2.durability.millis", 1000));
+    }
+
+    /**
+     * @return the policy, NONE, COMMIT or PERIODIC
+     */
+    public String policy(){
+        return this.policy;
+    }
+
+    /**
+     * @return number of times a file was forced to the disk
+     */
+    public long forces(){
+        return this.forces.get();
+    }
+
+    /**
+     * Tell the policy that bytes were written to a file
+     * @param channel channel the bytes were written through
+     * @param bytes number of bytes
+     */
+    public void written(FileChannel channel, long bytes){
+        if (!PERIODIC.equals(this.policy)){
+            return;
+        }
+        synchronized (this){
+            if (this.dirty.isEmpty()){
+                this.dirtySince = System.nanoTime();
+            }
+            this.dirty.merge(channel, bytes, Long::sum);
+            this.dirtyBytes += bytes;
+            if (this.dirtyBytes >= this.syncBytes){
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until the bytes written to a file are as durable as the policy asks, called before a write is acknowledged
+     * @param channel channel the bytes were written through
+     * @throws IOException if the file could not be forced
+     */
+    public void commit(FileChannel channel) throws IOException {
+        if (NONE.equals(this.policy)){
+            return;
+        }
+        if (COMMIT.equals(this.policy)){
+            force(channel);
+            return;
+        }
+
+        // a round that already started may have missed the file, the one after it covers it
+        synchronized (this){
+            this.dirty.putIfAbsent(channel, 0L);
+            long round = this.started + 1;
+            this.requested = Math.max(this.requested, round);
+            notifyAll();
+            try {
+                while (this.completed < round && !this.closed){
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for " + channel + " to be forced", e);
+            }
+            if (this.completed < round){
+                this.dirty.remove(channel);
+                force(channel);
+            }
+            IOException failure = this.failures.remove(channel);
+            if (failure != null){
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Stop the background forces, files written since the last round are forced first
+     */
+    public void close(){
+        synchronized (this){
+            this.closed = true;
+            notifyAll();
+        }
+    }
+
+    private void force(FileChannel channel) throws IOException {
+        channel.force(true);
+        this.forces.incrementAndGet();
+    }
+
+    /**
+     * Force the written files in rounds, a round starts once enough bytes were written, the oldest write is old enough,
+     * or a commit is waiting
+     */
+    private void sync(){
+        long syncNanos = this.syncMillis * 1000000L;
+        while (true){
+            Map<FileChannel, Long> round;
+            boolean last;
+            synchronized (this){
+                try {
+                    while (!this.closed && this.requested <= this.started && this.dirtyBytes < this.syncBytes){
+                        if (this.dirty.isEmpty()){
+                            wait();
+                            continue;
+                        }
+                        long left = syncNanos - (System.nanoTime() - this.dirtySince);
+                        if (left <= 0){
+                            break;
+                        }
+                        wait(Math.max(1, left / 1000000L));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                last = this.closed;
+                round = new LinkedHashMap<>(this.dirty);
+                this.dirty.clear();
+                this.dirtyBytes = 0;
+                this.started++;
+            }
+
+            Map<FileChannel, IOException> failed = new HashMap<>();
+            for (FileChannel channel : round.keySet()){
+                try {
+                    force(channel);
+                } catch (ClosedChannelException e) {
+                    // the file was closed after its upload was committed, nothing waits for it
+                } catch (IOException e) {
+                    System.err.println("server: error forcing file to disk " + e);
+                    failed.put(channel, e);
+                }
+            }
+
+            synchronized (this){
+                this.failures.putAll(failed);
+                this.completed++;
+                notifyAll();
+            }
+            if (last){
+                return;
+            }
+        }
+    }
+}
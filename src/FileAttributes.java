@@ -0,0 +1,72 @@
+import java.io.Serializable;
+
+/**
+ * What the server knows about a path, returned by a single call so a transfer can be set up without
+ * asking about the path's existence, validity and length separately
+ */
+public class FileAttributes implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String FILE = "file";
+    public static final String DIRECTORY = "directory";
+    public static final String MISSING = "missing";
+    public static final String OTHER = "other"; // anything that is neither a regular file nor a directory
+
+    private final String type;
+    private final long length;
+    private final long lastModified;
+    private final boolean parentValid;
+    private final String digest;
+
+    /**
+     * @param type one of FILE, DIRECTORY, MISSING or OTHER
+     * @param length length of the file's content, 0 if the path is not a file
+     * @param lastModified time the path was last modified in milliseconds since the epoch, 0 if it does not exist
+     * @param parentValid true if the path's parent is an existing directory
+     * @param digest SHA-256 of the file (lowercase hex), null if it was not asked for or the path is not a file
+     */
+    public FileAttributes(String type, long length, long lastModified, boolean parentValid, String digest){
+        this.type = type;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.parentValid = parentValid;
+        this.digest = digest;
+    }
+
+    public String type(){
+        return this.type;
+    }
+
+    public long length(){
+        return this.length;
+    }
+
+    public long lastModified(){
+        return this.lastModified;
+    }
+
+    public boolean parentValid(){
+        return this.parentValid;
+    }
+
+    public String digest(){
+        return this.digest;
+    }
+
+    public boolean isFile(){
+        return FILE.equals(this.type);
+    }
+
+    public boolean isDirectory(){
+        return DIRECTORY.equals(this.type);
+    }
+
+    /**
+     * Check if a file can be written at the path, same as filepathValid
+     * @return true if the parent is a directory and the path is not a directory
+     */
+    public boolean writable(){
+        return this.parentValid && !isDirectory();
+    }
+}
@@ -0,0 +1,457 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of open file channels used by the server so that consecutive chunk reads / writes
+ * on the same file do not have to open and close the file every time
+ * - entries are keyed by the normalized absolute path
+ * - the least recently used entry is evicted once the cache is full
+ * - entries that have not been used for a while are closed by a background sweeper
+ */
+public class FileHandleCache {
+
+    /**
+     * An open channel together with the bookkeeping needed to close it safely
+     * a handle is only closed once it has been evicted and no caller is still using it
+     */
+    public static class Handle {
+        public static final long REGION_SIZE = 64L * 1024 * 1024; // size of the memory mapped regions of a file
+
+        private final String key;
+        private final FileChannel channel; // null for deduplicated files
+        private final Manifest manifest; // chunks of a deduplicated file, null for regular files
+        private final ChunkStore store;
+        private final Storage storage; // storage the channel was opened by, maps its regions
+        private final boolean writable;
+        private int users = 0;
+        private boolean evicted = false;
+        private long lastUsed = System.nanoTime();
+        private final ConcurrentHashMap<Long, ByteBuffer> regions = new ConcurrentHashMap<>();
+
+        private Handle(String key, FileChannel channel, Manifest manifest, ChunkStore store, Storage storage, boolean writable){
+            this.key = key;
+            this.channel = channel;
+            this.manifest = manifest;
+            this.store = store;
+            this.storage = storage;
+            this.writable = writable;
+        }
+
+        /**
+         * Get the channel of the file, only regular files have one (writable handles are always regular files)
+         * @return open channel, null for a deduplicated file
+         */
+        public FileChannel channel(){
+            return this.channel;
+        }
+
+        /**
+         * @return length of the file's content
+         * @throws IOException if the length could not be read
+         */
+        public long size() throws IOException {
+            return (this.manifest != null) ? this.manifest.length() : this.channel.size();
+        }
+
+        /**
+         * Read bytes starting at a position, like FileChannel.read
+         * @param target buffer to read into
+         * @param position offset of the first byte
+         * @return number of bytes read, -1 if the position is at or past the end of the file
+         * @throws IOException if the file could not be read
+         */
+        public int read(ByteBuffer target, long position) throws IOException {
+            if (this.manifest == null){
+                return this.channel.read(target, position);
+            }
+            if (position >= size()){
+                return -1;
+            }
+            int total = 0;
+            while (target.hasRemaining()){
+                ByteBuffer view = mapped(position, target.remaining());
+                if (!view.hasRemaining()){
+                    break;
+                }
+                position += view.remaining();
+                total += view.remaining();
+                target.put(view);
+            }
+            return total;
+        }
+
+        /**
+         * Copy bytes to another channel, like FileChannel.transferTo
+         * @param position offset of the first byte
+         * @param count maximum number of bytes
+         * @param target channel to copy to
+         * @return number of bytes copied
+         * @throws IOException if the file could not be read or the target could not be written
+         */
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (this.manifest == null){
+                return this.channel.transferTo(position, count, target);
+            }
+            return target.write(mapped(position, (int) Math.min(count, Integer.MAX_VALUE)));
+        }
+
+        /**
+         * Hash the start of the file through its memory mapped regions
+         * @param length number of bytes to hash
+         * @return SHA-256 digest that hashed the first length bytes, can be updated with the bytes that follow
+         * @throws IOException if the file could not be read
+         */
+        public MessageDigest sha256(long length) throws IOException {
+            MessageDigest sha256 = ContentChunker.sha256();
+            for (long position = 0; position < length; ){
+                ByteBuffer view = mapped(position, (int) Math.min(length - position, REGION_SIZE));
+                if (!view.hasRemaining()){
+                    throw new IOException(this.key + " is shorter than " + length + " bytes");
+                }
+                position += view.remaining();
+                sha256.update(view);
+            }
+            return sha256;
+        }
+
+        /**
+         * Get a read-only view of part of the file backed by a memory mapped region
+         * regions are mapped on first use and shared by every reader of the file until the handle is evicted,
+         * ranges the storage cannot map yet are read into a copy
+         * @param offset position of the first byte
+         * @param length maximum number of bytes
+         * @return view of the bytes, shorter than length at the end of the file or where the range crosses into the next region
+         * @throws IOException if the region could not be mapped
+         */
+        public ByteBuffer mapped(long offset, int length) throws IOException {
+            long size = size();
+            if (offset >= size || length <= 0){
+                return ByteBuffer.allocate(0);
+            }
+
+            // the regions of a deduplicated file are its chunks
+            if (this.manifest != null){
+                int chunk = this.manifest.chunkAt(offset);
+                ByteBuffer region = this.regions.get((long) chunk);
+                if (region == null){
+                    try (FileChannel source = FileChannel.open(this.store.chunkPath(this.manifest.hash(chunk)), StandardOpenOption.READ)){
+                        region = source.map(FileChannel.MapMode.READ_ONLY, 0, source.size());
+                    }
+                    this.regions.put((long) chunk, region);
+                }
+                int from = (int) (offset - this.manifest.offset(chunk));
+                int to = (int) Math.min(region.capacity(), from + (long) length);
+                return region.duplicate().position(from).limit(to).slice();
+            }
+
+            long regionSize = this.storage.regionSize();
+            long index = offset / regionSize;
+            long regionStart = index * regionSize;
+            long regionLength = Math.min(regionSize, size - regionStart);
+
+            // remap the region if the file grew or shrank since it was mapped, a view is never read past the end of the file
+            ByteBuffer region = this.regions.get(index);
+            if (region == null || region.capacity() != regionLength){
+                region = this.storage.map(this.channel, regionStart, regionLength);
+                if (region == null){
+                    // the storage cannot map the range yet, it is read into a copy that is not kept
+                    this.regions.remove(index);
+                    ByteBuffer copy = ByteBuffer.allocate((int) Math.min(length, regionStart + regionLength - offset));
+                    while (copy.hasRemaining() && this.channel.read(copy, offset + copy.position()) >= 0){
+                    }
+                    return copy.flip();
+                }
+                this.regions.put(index, region);
+            }
+
+            int from = (int) (offset - regionStart);
+            int to = (int) Math.min(Math.min(region.capacity(), regionLength), from + (long) length);
+            return region.duplicate().position(from).limit(to).slice();
+        }
+
+        /**
+         * Cut the file back to a length, like FileChannel.truncate
+         * the mapped regions are dropped so no later read touches the bytes past the new end
+         * @param size new length of the file
+         * @throws IOException if the file could not be truncated
+         */
+        public void truncate(long size) throws IOException {
+            this.channel.truncate(size);
+            this.regions.clear();
+        }
+    }
+
+    private final int capacity;
+    private final long idleTimeoutNanos;
+    private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledExecutorService sweeper;
+    private final ChunkStore store; // resolves deduplicated files, null if deduplication is off
+    private final Storage storage; // storage the files are opened from
+
+    /**
+     * @param capacity maximum number of channels kept open at once
+     * @param idleTimeoutMillis channels not used for this long are closed
+     */
+    public FileHandleCache(int capacity, long idleTimeoutMillis){
+        this(capacity, idleTimeoutMillis, null);
+    }
+
+    /**
+     * @param capacity maximum number of channels kept open at once
+     * @param idleTimeoutMillis channels not used for this long are closed
+     * @param store store that deduplicated files are read from, null if deduplication is off
+     */
+    public FileHandleCache(int capacity, long idleTimeoutMillis, ChunkStore store){
+        this(capacity, idleTimeoutMillis, store, new DiskStorage());
+    }
+
+    /**
+     * @param capacity maximum number of channels kept open at once
+     * @param idleTimeoutMillis channels not used for this long are closed
+     * @param store store that deduplicated files are read from, null if deduplication is off (only used with DiskStorage)
+     * @param storage storage the files are opened from
+     */
+    public FileHandleCache(int capacity, long idleTimeoutMillis, ChunkStore store, Storage storage){
+        this.capacity = capacity;
+        this.store = store;
+        this.storage = storage;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "file-handle-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        this.sweeper.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Turn a path into the key used by the cache
+     * @param path filepath
+     * @return normalized absolute path
+     */
+    public static String key(String path){
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Get an open channel for a file, opening it if it is not already cached
+     * every successful acquire must be matched by a call to release
+     * @param path filepath to the file
+     * @param writable true if the channel will be written to (the file is created if needed)
+     * @return handle to the open channel
+     * @throws IOException if the file could not be opened
+     */
+    public Handle acquire(String path, boolean writable) throws IOException {
+        String key = key(path);
+        List<Handle> closable = new ArrayList<>();
+        Handle handle;
+
+        synchronized (this){
+            handle = reuse(key, writable);
+        }
+
+        // files are opened outside of the lock so opening one file does not hold up calls on the others
+        if (handle == null){
+            Handle opened = open(key, writable);
+            synchronized (this){
+                handle = reuse(key, writable);
+                if (handle == null){
+                    handle = opened;
+                    opened = null;
+                    Handle replaced = this.handles.put(key, handle);
+                    if (replaced != null){
+                        retire(replaced, closable); // a read-only channel cannot be reused for writing
+                    }
+
+                    // evict the least recently used channels once the cache is full
+                    Iterator<Handle> iterator = this.handles.values().iterator();
+                    while (this.handles.size() > this.capacity && iterator.hasNext()){
+                        Handle eldest = iterator.next();
+                        if (eldest != handle){
+                            iterator.remove();
+                            retire(eldest, closable);
+                        }
+                    }
+                    handle.users++;
+                    handle.lastUsed = System.nanoTime();
+                }
+            }
+            // another call opened the file at the same time
+            if (opened != null){
+                closable.add(opened);
+            }
+        }
+
+        closeAll(closable);
+        return handle;
+    }
+
+    /**
+     * Take the cached handle of a file if it can be used, must be called while holding the cache's lock
+     * @return the handle with one more user, null if the file has to be opened
+     */
+    private Handle reuse(String key, boolean writable){
+        Handle handle = this.handles.get(key);
+        if (handle == null || (writable && !handle.writable)){
+            return null;
+        }
+        handle.users++;
+        handle.lastUsed = System.nanoTime();
+        return handle;
+    }
+
+    /**
+     * @return number of files the cache holds open
+     */
+    public synchronized int size(){
+        return this.handles.size();
+    }
+
+    /**
+     * Give back a handle obtained from acquire
+     * @param handle handle to release
+     */
+    public void release(Handle handle){
+        boolean close = false;
+        synchronized (this){
+            handle.users--;
+            handle.lastUsed = System.nanoTime();
+            close = handle.evicted && handle.users == 0;
+        }
+        if (close){
+            closeQuietly(handle);
+        }
+    }
+
+    /**
+     * Close the cached channel of a file (used when the file is removed or replaced)
+     * @param path filepath to the file
+     */
+    public void invalidate(String path){
+        List<Handle> closable = new ArrayList<>();
+        synchronized (this){
+            Handle handle = this.handles.remove(key(path));
+            if (handle != null){
+                retire(handle, closable);
+            }
+        }
+        closeAll(closable);
+    }
+
+    /**
+     * Close the cached channels of every file under a directory
+     * @param path filepath to the directory
+     */
+    public void invalidateTree(String path){
+        String prefix = key(path);
+        List<Handle> closable = new ArrayList<>();
+        synchronized (this){
+            Iterator<Map.Entry<String, Handle>> iterator = this.handles.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<String, Handle> entry = iterator.next();
+                if (Paths.get(entry.getKey()).startsWith(prefix)){
+                    iterator.remove();
+                    retire(entry.getValue(), closable);
+                }
+            }
+        }
+        closeAll(closable);
+    }
+
+    /**
+     * Close every cached channel and stop the background sweeper
+     */
+    public void close(){
+        this.sweeper.shutdownNow();
+        List<Handle> closable = new ArrayList<>();
+        synchronized (this){
+            for (Handle handle : this.handles.values()){
+                retire(handle, closable);
+            }
+            this.handles.clear();
+        }
+        closeAll(closable);
+    }
+
+    /**
+     * Close channels that have not been used within the idle timeout
+     */
+    private void evictIdle(){
+        long now = System.nanoTime();
+        List<Handle> closable = new ArrayList<>();
+        synchronized (this){
+            Iterator<Handle> iterator = this.handles.values().iterator();
+            while (iterator.hasNext()){
+                Handle handle = iterator.next();
+                if (handle.users == 0 && now - handle.lastUsed > this.idleTimeoutNanos){
+                    iterator.remove();
+                    retire(handle, closable);
+                }
+            }
+        }
+        closeAll(closable);
+    }
+
+    /**
+     * Mark a handle as evicted, it is closed right away if nobody is using it
+     * must be called while holding the cache's lock
+     */
+    private static void retire(Handle handle, List<Handle> closable){
+        handle.evicted = true;
+        if (handle.users == 0){
+            closable.add(handle);
+        }
+    }
+
+    /**
+     * Open a file, deduplicated files are read through their manifest and turned back into regular files before writing
+     */
+    private Handle open(String key, boolean writable) throws IOException {
+        Path path = Paths.get(key);
+        if (writable){
+            if (this.store != null){
+                this.store.materialize(path);
+            }
+            FileChannel channel = this.storage.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            return new Handle(key, channel, null, this.store, this.storage, true);
+        }
+        Manifest manifest = (this.store == null) ? null : this.store.readManifest(path);
+        if (manifest != null){
+            return new Handle(key, null, manifest, this.store, this.storage, false);
+        }
+        return new Handle(key, this.storage.open(path, StandardOpenOption.READ), null, this.store, this.storage, false);
+    }
+
+    private static void closeAll(List<Handle> handles){
+        for (Handle handle : handles){
+            closeQuietly(handle);
+        }
+    }
+
+    private static void closeQuietly(Handle handle){
+        if (handle.channel == null){
+            return;
+        }
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            System.err.println("server: error closing " + handle.key + " " + e);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface FileSharingInterface extends Remote{
 
@@ -18,6 +19,38 @@ public interface FileSharingInterface extends Remote{
      */
     public String[] dir(String path) throws RemoteException;
 
+    /**
+     * List a page of the contents of a directory with the attributes of every entry
+     * @param path server's file path 
+     * @param cursor cursor of the previous page, null for the first page
+     * @param pageSize largest number of entries to return
+     * @return page of entries, null if the path is not a directory or the cursor expired
+     * @throws RemoteException remote communication exception 
+     */
+    public DirectoryPage listDir(String path, String cursor, int pageSize) throws RemoteException;
+
+    /**
+     * List a page of everything under a directory, subdirectories included
+     * @param path server's file path 
+     * @param cursor cursor of the previous page, null for the first page
+     * @param pageSize largest number of entries to return
+     * @return page of entries named by their path relative to the directory, null if the path is not a directory or the cursor expired
+     * @throws RemoteException remote communication exception 
+     */
+    public DirectoryPage listTree(String path, String cursor, int pageSize) throws RemoteException;
+
+    /**
+     * Wait for files under a directory to be created, removed or changed
+     * the call returns as soon as something changed (changes made together come in one batch), or once the timeout is over,
+     * the version of the returned batch is passed to the next call, the first call returns right away with the current version
+     * @param path server's file path 
+     * @param sinceVersion version of the last batch of changes, 0 for the first call
+     * @param timeoutMillis longest time to wait for a change
+     * @return changes made since the version, told to list the directory again if they are not known
+     * @throws RemoteException remote communication exception 
+     */
+    public ChangeBatch waitForChanges(String path, long sinceVersion, long timeoutMillis) throws RemoteException;
+
     /**
      * Create a new directory 
      * @param path filepath to the new directory
@@ -66,6 +99,23 @@ public interface FileSharingInterface extends Remote{
      */
     public long getFileLength(String path) throws RemoteException;
 
+    /**
+     * Get the type, length, modification time and parent validity of a path in a single call
+     * @param path Server's filepath 
+     * @return attributes of the path, never null (the type is MISSING if nothing exists at the path)
+     * @throws RemoteException remote communication exception
+     */
+    public FileAttributes stat(String path) throws RemoteException;
+
+    /**
+     * Get the attributes of a path, optionally with the SHA-256 of the file
+     * @param path Server's filepath 
+     * @param digest true to also hash the file (reads the whole file)
+     * @return attributes of the path, null if the file could not be hashed
+     * @throws RemoteException remote communication exception
+     */
+    public FileAttributes stat(String path, boolean digest) throws RemoteException;
+
     /**
      * Write bytes to a file
      * @param path filepath to the file 
@@ -76,6 +126,16 @@ public interface FileSharingInterface extends Remote{
      */
     public boolean write(String path, byte[] buffer, int bytes) throws RemoteException;
 
+    /**
+     * Write bytes to a file at a given offset
+     * @param path filepath to the file 
+     * @param offset position in the file to write the first byte to
+     * @param buffer bytes to be written 
+     * @param bytes the number of bytes to write
+     * @return true if operation succeeded, false otherwise 
+     * @throws RemoteException remote communication exception
+     */
+    public boolean write(String path, long offset, byte[] buffer, int bytes) throws RemoteException;
 
     /**
      * Read bytes from a file
@@ -85,5 +145,102 @@ public interface FileSharingInterface extends Remote{
      * @throws RemoteException remote communication exception
      */
     public byte[] read(String path, long skip) throws RemoteException;
-    
+
+    /**
+     * Read a range of bytes from a file
+     * @param path filepath to the file
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read (at most the server's largest chunk size)
+     * @return bytes read from the file, fewer than length if the end of the file is reached, null if the file could not be read
+     * @throws RemoteException remote communication exception
+     */
+    public byte[] read(String path, long offset, int length) throws RemoteException;
+
+    /**
+     * Get the chunk sizes the server is willing to use for transfers
+     * @return smallest, largest and default chunk size
+     * @throws RemoteException remote communication exception
+     */
+    public TransferParams getTransferParams() throws RemoteException;
+
+    /**
+     * Open an upload, data written through the returned transfer is appended to the file
+     * the file is grown to its expected length right away, and cut back to the bytes received if the upload is closed early
+     * @param path filepath to the file
+     * @param expectedLength total length the file will have once the upload is done
+     * @param chunkSize number of bytes the client would like to send per call
+     * @return transfer to write the file through, null if the file could not be opened
+     * @throws RemoteException remote communication exception
+     */
+    public RemoteTransfer openUpload(String path, long expectedLength, int chunkSize) throws RemoteException;
+
+    /**
+     * Open a download
+     * @param path filepath to the file
+     * @param offset number of bytes to skip
+     * @param chunkSize number of bytes the client would like to receive per call
+     * @return transfer to read the file through, null if the file could not be opened
+     * @throws RemoteException remote communication exception
+     */
+    public RemoteTransfer openDownload(String path, long offset, int chunkSize) throws RemoteException;
+
+    /**
+     * Get the block checksums of a file, used to upload only the parts of a file that changed
+     * @param path filepath to the file
+     * @param blockSize number of bytes per block
+     * @return signature of the file, null if the file could not be read
+     * @throws RemoteException remote communication exception
+     */
+    public FileSignature getSignature(String path, int blockSize) throws RemoteException;
+
+    /**
+     * Start rebuilding a file from its current copy and the changes sent by the client
+     * @param path filepath to the file
+     * @param blockSize block size of the signature the changes were computed against
+     * @return delta to send the changes through, null if the file could not be opened
+     * @throws RemoteException remote communication exception
+     */
+    public RemoteDelta openDelta(String path, int blockSize) throws RemoteException;
+
+    /**
+     * Find which chunks the server's chunk store does not hold yet
+     * @param hashes SHA-256 of the chunks (lowercase hex)
+     * @return hashes of the missing chunks, null if the server does not deduplicate
+     * @throws RemoteException remote communication exception
+     */
+    public List<String> missingChunks(List<String> hashes) throws RemoteException;
+
+    /**
+     * Add a chunk to the server's chunk store
+     * @param hash SHA-256 of the chunk (lowercase hex)
+     * @param chunk bytes of the chunk, may be compressed on the wire
+     * @return true if the chunk is stored, false if the bytes do not match the hash or the server does not deduplicate
+     * @throws RemoteException remote communication exception
+     */
+    public boolean putChunk(String hash, Chunk chunk) throws RemoteException;
+
+    /**
+     * Create or replace a file made of chunks held by the server's chunk store
+     * @param path filepath to the file
+     * @param manifest chunks of the file in order
+     * @return true if operation succeeded, false if a chunk is missing or the server does not deduplicate
+     * @throws RemoteException remote communication exception
+     */
+    public boolean commitManifest(String path, Manifest manifest) throws RemoteException;
+
+    /**
+     * Run many metadata operations in a single call
+     * @param ops operations to run, in order
+     * @return one result per operation in the same order, null if the batch is larger than the server accepts
+     * @throws RemoteException remote communication exception
+     */
+    public List<BatchResult> batch(List<BatchOp> ops) throws RemoteException;
+
+    /**
+     * Get the server's metrics: calls, errors and latencies per method, where the time of disk work went and bytes moved
+     * @return metrics as plain text
+     * @throws RemoteException remote communication exception
+     */
+    public String stats() throws RemoteException;
+
 }
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Checksums of every block of a file, used to upload only the parts of a file that changed
+ * each full block has a weak rolling checksum to find candidate matches quickly
+ * and a strong checksum (MD5) to confirm them, a short last block is not included
+ */
+public class FileSignature implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int MIN_BLOCK_SIZE = 4 * 1024;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    public static final int STRONG_LENGTH = 16;
+
+    private final int blockSize;
+    private final long length;
+    private final int[] weak;
+    private final byte[] strong; // STRONG_LENGTH bytes per block
+
+    private FileSignature(int blockSize, long length, int[] weak, byte[] strong){
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Pick a block size for a file, about the square root of its length
+     * @param length length of the file
+     * @return block size in bytes
+     */
+    public static int blockSize(long length){
+        int size = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt((double) length)));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Compute the signature of an open file
+     * @param handle handle to the open file
+     * @param blockSize number of bytes per block
+     * @return signature of the file
+     * @throws IOException if the file could not be read
+     */
+    public static FileSignature compute(FileHandleCache.Handle handle, int blockSize) throws IOException {
+        long length = handle.size();
+        int blocks = (int) (length / blockSize);
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_LENGTH];
+        MessageDigest md5 = md5();
+
+        // read many blocks at a time
+        int blocksPerRead = Math.max(1, (1024 * 1024) / blockSize);
+        byte[] buffer = new byte[blocksPerRead * blockSize];
+        for (int block=0; block<blocks; ){
+            int count = Math.min(blocksPerRead, blocks - block);
+            ByteBuffer target = ByteBuffer.wrap(buffer, 0, count * blockSize);
+            long position = (long) block * blockSize;
+            while (target.hasRemaining()){
+                if (handle.read(target, position + target.position()) < 0){
+                    throw new IOException("file shrank while computing its signature");
+                }
+            }
+            for (int i=0; i<count; i++, block++){
+                weak[block] = RollingChecksum.of(buffer, i * blockSize, blockSize);
+                md5.update(buffer, i * blockSize, blockSize);
+                System.arraycopy(md5.digest(), 0, strong, block * STRONG_LENGTH, STRONG_LENGTH);
+            }
+        }
+        return new FileSignature(blockSize, length, weak, strong);
+    }
+
+    /**
+     * Compute the strong checksum of a block
+     * @param md5 digest to use
+     * @param buffer bytes
+     * @param offset position of the first byte of the block
+     * @param length number of bytes in the block
+     * @return strong checksum of the block
+     */
+    public static byte[] strong(MessageDigest md5, byte[] buffer, int offset, int length){
+        md5.update(buffer, offset, length);
+        return md5.digest();
+    }
+
+    /**
+     * @return digest used for the strong checksums
+     */
+    public static MessageDigest md5(){
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int blockSize(){
+        return this.blockSize;
+    }
+
+    public long length(){
+        return this.length;
+    }
+
+    public int blocks(){
+        return this.weak.length;
+    }
+
+    public int weak(int block){
+        return this.weak[block];
+    }
+
+    /**
+     * Check if a strong checksum matches the one of a block
+     * @param block index of the block
+     * @param strong strong checksum to compare
+     * @return true if they match, false otherwise
+     */
+    public boolean strongMatches(int block, byte[] strong){
+        int from = block * STRONG_LENGTH;
+        return Arrays.equals(this.strong, from, from + STRONG_LENGTH, strong, 0, STRONG_LENGTH);
+    }
+}
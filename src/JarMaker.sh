@@ -1,3 +1,3 @@
-javac FileSharingInterface.java client.java server.java;
-jar cf pa2.jar FileSharingInterface.class client.class server.class;
-rm FileSharingInterface.class client.class server.class;
+javac *.java;
+jar cf pa2.jar *.class;
+rm *.class;
@@ -0,0 +1,72 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * List of the content-hashed chunks a deduplicated file is made of, in file order
+ */
+public class Manifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] hashes;
+    private final int[] lengths;
+    private final long[] offsets; // offset of the first byte of every chunk
+
+    /**
+     * @param hashes SHA-256 of every chunk (lowercase hex)
+     * @param lengths number of bytes in every chunk
+     */
+    public Manifest(List<String> hashes, List<Integer> lengths){
+        this.hashes = hashes.toArray(new String[0]);
+        this.lengths = new int[this.hashes.length];
+        this.offsets = new long[this.hashes.length];
+        long offset = 0;
+        for (int i=0; i<this.hashes.length; i++){
+            this.lengths[i] = lengths.get(i);
+            this.offsets[i] = offset;
+            offset += this.lengths[i];
+        }
+    }
+
+    public int chunks(){
+        return this.hashes.length;
+    }
+
+    public String hash(int chunk){
+        return this.hashes[chunk];
+    }
+
+    public int length(int chunk){
+        return this.lengths[chunk];
+    }
+
+    public long offset(int chunk){
+        return this.offsets[chunk];
+    }
+
+    public List<String> hashes(){
+        return Arrays.asList(this.hashes);
+    }
+
+    /**
+     * @return length of the whole file
+     */
+    public long length(){
+        int last = this.hashes.length - 1;
+        return (last < 0) ? 0 : this.offsets[last] + this.lengths[last];
+    }
+
+    /**
+     * Find the chunk that holds a byte of the file
+     * @param position offset of the byte
+     * @return index of the chunk, -1 if the position is past the end of the file
+     */
+    public int chunkAt(long position){
+        if (position < 0 || position >= length()){
+            return -1;
+        }
+        int index = Arrays.binarySearch(this.offsets, position);
+        return (index >= 0) ? index : -index - 2;
+    }
+}
@@ -0,0 +1,761 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage that keeps every file off-heap in the server's memory, for scratch servers and for measuring the server without a disk
+ * - a file is a list of direct buffers (segments) of SEGMENT_SIZE bytes each, allocated whole and never replaced,
+ *   so a mapped region of a file is one of its segments, is read without copying and sees later writes
+ * - a file shorter than one segment keeps its bytes in a single buffer that grows by doubling,
+ *   its bytes cannot be mapped (map returns null) since the buffer may still be replaced, they are read instead
+ * - at most maxBytes are allocated for segments, writes past that fail like a full disk
+ *   (direct memory is also bounded by -XX:MaxDirectMemorySize)
+ * - a removed or replaced file stays readable through the channels that are still open on it,
+ *   it no longer counts against maxBytes and its memory is freed once nothing refers to it
+ * - only the server changes the storage, so nothing needs to be watched
+ */
+public class MemoryStorage implements Storage {
+
+    public static final long SEGMENT_SIZE = ChunkReader.MAP_THRESHOLD; // the files ChunkReader maps are all made of whole segments
+    private static final int MIN_SEGMENT = 4096;
+
+    private final long maxBytes;
+    private final AtomicLong allocated = new AtomicLong(); // bytes of every segment
+    private final AtomicLong clock = new AtomicLong(); // last modification time handed out, in nanoseconds
+    private final Map<Path, Node> nodes = new HashMap<>(); // every directory and file, guarded by this
+
+    /**
+     * @param root directory the server serves files from, it and its parents exist from the start
+     * @param maxBytes most bytes allocated for the content of files
+     */
+    public MemoryStorage(Path root, long maxBytes){
+        this.maxBytes = maxBytes;
+        Node child = null;
+        for (Path path = key(root); path != null; path = path.getParent()){
+            Node directory = new Node(true);
+            if (child != null){
+                directory.children.add(child.name);
+            }
+            directory.name = (path.getFileName() == null) ? "" : path.getFileName().toString();
+            this.nodes.put(path, directory);
+            child = directory;
+        }
+    }
+
+    /**
+     * @return number of bytes allocated for the content of files
+     */
+    public long allocated(){
+        return this.allocated.get();
+    }
+
+    @Override
+    public synchronized BasicFileAttributes attributes(Path path, LinkOption... options) throws IOException {
+        return node(key(path)).attributes();
+    }
+
+    @Override
+    public synchronized DirectoryStream<Path> list(Path directory, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        Path key = key(directory);
+        Node node = node(key);
+        if (!node.directory){
+            throw new NotDirectoryException(directory.toString());
+        }
+        List<Path> entries = new ArrayList<>(node.children.size());
+        for (String name : node.children){
+            entries.add(directory.resolve(name));
+        }
+        return new Listing(entries, filter);
+    }
+
+    @Override
+    public synchronized void createDirectory(Path directory) throws IOException {
+        Path key = key(directory);
+        create(key, true);
+    }
+
+    @Override
+    public synchronized void delete(Path path) throws IOException {
+        Path key = key(path);
+        Node node = node(key);
+        if (node.directory && !node.children.isEmpty()){
+            throw new DirectoryNotEmptyException(path.toString());
+        }
+        if (key.getParent() == null){
+            throw new FileSystemException(path.toString(), null, "the root cannot be removed");
+        }
+        this.nodes.remove(key);
+        unlink(key);
+        node.free();
+    }
+
+    @Override
+    public FileChannel open(Path file, OpenOption... options) throws IOException {
+        List<OpenOption> opened = Arrays.asList(options);
+        boolean write = opened.contains(StandardOpenOption.WRITE) || opened.contains(StandardOpenOption.APPEND);
+        boolean read = opened.contains(StandardOpenOption.READ) || !write;
+        Path key = key(file);
+        Node node;
+        synchronized (this){
+            node = this.nodes.get(key);
+            if (node != null && write && opened.contains(StandardOpenOption.CREATE_NEW)){
+                throw new FileAlreadyExistsException(file.toString());
+            }
+            if (node == null){
+                if (!write || !(opened.contains(StandardOpenOption.CREATE) || opened.contains(StandardOpenOption.CREATE_NEW))){
+                    throw new NoSuchFileException(file.toString());
+                }
+                node = create(key, false);
+            }
+        }
+        if (node.directory){
+            throw new FileSystemException(file.toString(), null, "Is a directory");
+        }
+        if (write && opened.contains(StandardOpenOption.TRUNCATE_EXISTING)){
+            node.truncate(0);
+        }
+        return new Channel(node, read, write, opened.contains(StandardOpenOption.APPEND));
+    }
+
+    @Override
+    public synchronized void move(Path source, Path target) throws IOException {
+        Path from = key(source);
+        Path to = key(target);
+        Node node = node(from);
+        if (from.equals(to)){
+            return;
+        }
+        if (to.startsWith(from)){
+            throw new FileSystemException(source.toString(), target.toString(), "a directory cannot be moved into itself");
+        }
+        Node replaced = this.nodes.get(to);
+        if (replaced != null && replaced.directory && !replaced.children.isEmpty()){
+            throw new DirectoryNotEmptyException(target.toString());
+        }
+        Node parent = (to.getParent() == null) ? null : this.nodes.get(to.getParent());
+        if (parent == null || !parent.directory){
+            throw new NoSuchFileException(target.toString());
+        }
+
+        // a directory takes everything under it along
+        Map<Path, Node> moved = new HashMap<>();
+        Iterator<Map.Entry<Path, Node>> iterator = this.nodes.entrySet().iterator();
+        while (iterator.hasNext()){
+            Map.Entry<Path, Node> entry = iterator.next();
+            if (entry.getKey().startsWith(from)){
+                moved.put(to.resolve(from.relativize(entry.getKey())), entry.getValue());
+                iterator.remove();
+            }
+        }
+        unlink(from);
+        if (replaced != null){
+            this.nodes.remove(to);
+            replaced.free();
+        }
+        this.nodes.putAll(moved);
+        node.name = to.getFileName().toString();
+        parent.children.add(node.name);
+        parent.modified = now();
+    }
+
+    @Override
+    public ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (!(channel instanceof Channel)){
+            throw new IOException("the channel was not opened by this storage");
+        }
+        return ((Channel) channel).node.map(position, size);
+    }
+
+    @Override
+    public long regionSize(){
+        return SEGMENT_SIZE;
+    }
+
+    @Override
+    public WatchService newWatchService(){
+        return null;
+    }
+
+    @Override
+    public synchronized void close(){
+        for (Node node : this.nodes.values()){
+            node.free();
+        }
+        this.nodes.clear();
+    }
+
+    /**
+     * Modification time in nanoseconds, every call returns a later time than the one before,
+     * so a file changed twice within the clock's resolution does not keep its modification time (digests are keyed on it)
+     */
+    private long now(){
+        long wall = System.currentTimeMillis() * 1000000L;
+        return this.clock.updateAndGet(last -> Math.max(last + 1, wall));
+    }
+
+    private static Path key(Path path){
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Must be called while holding the storage's lock
+     */
+    private Node node(Path key) throws NoSuchFileException {
+        Node node = this.nodes.get(key);
+        if (node == null){
+            throw new NoSuchFileException(key.toString());
+        }
+        return node;
+    }
+
+    /**
+     * Add a directory or an empty file, must be called while holding the storage's lock
+     */
+    private Node create(Path key, boolean directory) throws IOException {
+        if (this.nodes.containsKey(key)){
+            throw new FileAlreadyExistsException(key.toString());
+        }
+        Node parent = (key.getParent() == null) ? null : this.nodes.get(key.getParent());
+        if (parent == null || !parent.directory){
+            throw new NoSuchFileException(key.toString());
+        }
+        Node node = new Node(directory);
+        node.name = key.getFileName().toString();
+        this.nodes.put(key, node);
+        parent.children.add(node.name);
+        parent.modified = now();
+        return node;
+    }
+
+    /**
+     * Remove a path from its directory, must be called while holding the storage's lock
+     */
+    private void unlink(Path key){
+        Node parent = this.nodes.get(key.getParent());
+        if (parent != null){
+            parent.children.remove(key.getFileName().toString());
+            parent.modified = now();
+        }
+    }
+
+    /**
+     * Allocate a segment
+     * @param counted true to count the segment against maxBytes
+     */
+    private ByteBuffer allocate(int capacity, boolean counted) throws IOException {
+        if (!counted){
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        if (this.allocated.addAndGet(capacity) > this.maxBytes){
+            this.allocated.addAndGet(-capacity);
+            throw new IOException("no space left in memory storage (" + this.maxBytes + " bytes)");
+        }
+        try {
+            return ByteBuffer.allocateDirect(capacity);
+        } catch (OutOfMemoryError e) {
+            this.allocated.addAndGet(-capacity);
+            throw new IOException("no direct memory left for memory storage, raise -XX:MaxDirectMemorySize", e);
+        }
+    }
+
+    /**
+     * A directory or a file
+     * the names of a directory's entries are guarded by the storage's lock, the content of a file by the file itself
+     * every byte of a segment past the end of the file is zero
+     */
+    private class Node {
+        private final boolean directory;
+        private final long created = now();
+        private volatile long modified = this.created;
+        private String name;
+        private final TreeSet<String> children; // names in a directory, null for a file
+        private ByteBuffer[] segments = new ByteBuffer[0];
+        private volatile long size = 0;
+        private boolean counted = true; // false once the file is removed, its segments no longer count against maxBytes
+
+        Node(boolean directory){
+            this.directory = directory;
+            this.children = directory ? new TreeSet<>() : null;
+        }
+
+        BasicFileAttributes attributes(){
+            return new Attributes(this.directory, this.directory ? 0 : this.size, this.created, this.modified);
+        }
+
+        synchronized int read(ByteBuffer target, long position){
+            if (position >= this.size){
+                return target.hasRemaining() ? -1 : 0;
+            }
+            int length = (int) Math.min(target.remaining(), this.size - position);
+            for (int done = 0; done < length; ){
+                ByteBuffer segment = this.segments[(int) ((position + done) / SEGMENT_SIZE)];
+                int from = (int) ((position + done) % SEGMENT_SIZE);
+                int bytes = Math.min(length - done, segment.capacity() - from);
+                target.put(segment.duplicate().position(from).limit(from + bytes));
+                done += bytes;
+            }
+            return length;
+        }
+
+        synchronized int write(ByteBuffer source, long position) throws IOException {
+            int length = source.remaining();
+            long end = position + length;
+            reserve(end);
+            for (int done = 0; done < length; ){
+                ByteBuffer segment = this.segments[(int) ((position + done) / SEGMENT_SIZE)];
+                int from = (int) ((position + done) % SEGMENT_SIZE);
+                int bytes = Math.min(length - done, segment.capacity() - from);
+                ByteBuffer part = source.duplicate();
+                part.limit(part.position() + bytes);
+                segment.duplicate().position(from).put(part);
+                source.position(source.position() + bytes);
+                done += bytes;
+            }
+            if (end > this.size){
+                this.size = end;
+            }
+            this.modified = now();
+            return length;
+        }
+
+        synchronized void truncate(long length){
+            if (length >= this.size){
+                return;
+            }
+            int keep = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            for (int i=keep; i<this.segments.length; i++){
+                account(-this.segments[i].capacity());
+            }
+            this.segments = Arrays.copyOf(this.segments, keep);
+
+            // keep the bytes past the end zero, so a later write past the end leaves zeros in the gap
+            if (keep > 0){
+                ByteBuffer last = this.segments[keep - 1];
+                int from = (int) (length - (keep - 1) * SEGMENT_SIZE);
+                int to = (int) Math.min(last.capacity(), this.size - (keep - 1) * SEGMENT_SIZE);
+                last.duplicate().position(from).put(new byte[Math.max(0, to - from)]);
+            }
+            this.size = length;
+            this.modified = now();
+        }
+
+        /**
+         * Get a read-only view of a range, without copying if the range is within one segment
+         */
+        synchronized ByteBuffer view(long position, long length) throws IOException {
+            if (position < 0 || length < 0 || position + length > this.size){
+                throw new IOException("range is not within the file");
+            }
+            int index = (int) (position / SEGMENT_SIZE);
+            int from = (int) (position % SEGMENT_SIZE);
+            if (from + length <= SEGMENT_SIZE){
+                return this.segments[index].duplicate().position(from).limit(from + (int) length).slice().asReadOnlyBuffer();
+            }
+            ByteBuffer copy = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE));
+            read(copy, position);
+            return copy.flip().asReadOnlyBuffer();
+        }
+
+        /**
+         * Get a read-only view of a range within one whole segment, it sees later writes since the segment is never replaced
+         * @return view of the bytes, null if the range is in a buffer that can still grow or crosses into the next segment
+         */
+        synchronized ByteBuffer map(long position, long length) throws IOException {
+            if (position < 0 || length < 0 || position + length > this.size){
+                throw new IOException("range is not within the file");
+            }
+            if (length == 0){
+                return ByteBuffer.allocate(0);
+            }
+            int index = (int) (position / SEGMENT_SIZE);
+            int from = (int) (position % SEGMENT_SIZE);
+            ByteBuffer segment = this.segments[index];
+            if (segment.capacity() < SEGMENT_SIZE || from + length > SEGMENT_SIZE){
+                return null;
+            }
+            return segment.duplicate().position(from).limit(from + (int) length).slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Make room for the file to be end bytes long
+         * a file of a single segment grows it by doubling, once the file needs a second segment every segment is whole
+         * (a buffer that is not whole is never mapped, so replacing it does not leave views behind)
+         */
+        private void reserve(long end) throws IOException {
+            int count = (int) ((end + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            int first = Math.max(0, this.segments.length - 1); // segments before the last one are already whole
+            if (count <= first){
+                return;
+            }
+
+            // the new segments are only put in place once all of them were allocated, so a failed allocation leaves the file as it was
+            ByteBuffer[] segments = Arrays.copyOf(this.segments, Math.max(count, this.segments.length));
+            long released = 0;
+            try {
+                for (int i=first; i<count; i++){
+                    long needed = (count == 1) ? end : SEGMENT_SIZE;
+                    ByteBuffer segment = segments[i];
+                    if (segment != null && segment.capacity() >= needed){
+                        continue;
+                    }
+                    int old = (segment == null) ? 0 : segment.capacity();
+                    int capacity = (int) ((count == 1) ? Math.min(SEGMENT_SIZE, Math.max(Math.max(needed, MIN_SEGMENT), 2L * old)) : SEGMENT_SIZE);
+                    ByteBuffer grown = allocate(capacity, this.counted);
+                    if (segment != null){
+                        grown.put(segment.duplicate().clear()).clear();
+                        released += old;
+                    }
+                    segments[i] = grown;
+                }
+            } catch (IOException e) {
+                for (int i=first; i<count; i++){
+                    if (segments[i] != null && (i >= this.segments.length || segments[i] != this.segments[i])){
+                        account(-segments[i].capacity());
+                    }
+                }
+                throw e;
+            }
+            account(-released);
+            this.segments = segments;
+        }
+
+        /**
+         * Stop counting the segments against the storage's limit, the memory is freed once no channel refers to it
+         */
+        synchronized void free(){
+            for (ByteBuffer segment : this.segments){
+                if (segment != null){
+                    account(-segment.capacity());
+                }
+            }
+            this.counted = false;
+        }
+
+        private void account(long bytes){
+            if (this.counted){
+                MemoryStorage.this.allocated.addAndGet(bytes);
+            }
+        }
+    }
+
+    /**
+     * Attributes of a path when they were read
+     */
+    private static class Attributes implements BasicFileAttributes {
+        private final boolean directory;
+        private final long size;
+        private final long created;
+        private final long modified;
+
+        Attributes(boolean directory, long size, long created, long modified){
+            this.directory = directory;
+            this.size = size;
+            this.created = created;
+            this.modified = modified;
+        }
+
+        @Override
+        public FileTime lastModifiedTime(){
+            return FileTime.from(this.modified, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public FileTime lastAccessTime(){
+            return FileTime.from(this.modified, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public FileTime creationTime(){
+            return FileTime.from(this.created, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public boolean isRegularFile(){
+            return !this.directory;
+        }
+
+        @Override
+        public boolean isDirectory(){
+            return this.directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink(){
+            return false;
+        }
+
+        @Override
+        public boolean isOther(){
+            return false;
+        }
+
+        @Override
+        public long size(){
+            return this.size;
+        }
+
+        @Override
+        public Object fileKey(){
+            return null;
+        }
+    }
+
+    /**
+     * Entries of a directory when it was opened
+     */
+    private static class Listing implements DirectoryStream<Path> {
+        private final List<Path> entries;
+        private final DirectoryStream.Filter<? super Path> filter;
+
+        Listing(List<Path> entries, DirectoryStream.Filter<? super Path> filter){
+            this.entries = entries;
+            this.filter = filter;
+        }
+
+        @Override
+        public Iterator<Path> iterator(){
+            Iterator<Path> entries = this.entries.iterator();
+            return new Iterator<Path>(){
+                private Path next;
+
+                @Override
+                public boolean hasNext(){
+                    try {
+                        while (this.next == null && entries.hasNext()){
+                            Path entry = entries.next();
+                            if (Listing.this.filter.accept(entry)){
+                                this.next = entry;
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new DirectoryIteratorException(e);
+                    }
+                    return this.next != null;
+                }
+
+                @Override
+                public Path next(){
+                    if (!hasNext()){
+                        throw new NoSuchElementException();
+                    }
+                    Path entry = this.next;
+                    this.next = null;
+                    return entry;
+                }
+            };
+        }
+
+        @Override
+        public void close(){
+        }
+    }
+
+    /**
+     * Channel to a file, positional reads and writes go straight to the file's segments
+     */
+    private static class Channel extends FileChannel {
+        private final Node node;
+        private final boolean readable;
+        private final boolean writable;
+        private final boolean append;
+        private long position = 0;
+
+        Channel(Node node, boolean readable, boolean writable, boolean append){
+            this.node = node;
+            this.readable = readable;
+            this.writable = writable;
+            this.append = append;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer target) throws IOException {
+            int bytes = read(target, this.position);
+            if (bytes > 0){
+                this.position += bytes;
+            }
+            return bytes;
+        }
+
+        @Override
+        public synchronized long read(ByteBuffer[] targets, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i=offset; i<offset + length; i++){
+                int bytes = read(targets[i]);
+                if (bytes < 0){
+                    return (total == 0) ? -1 : total;
+                }
+                total += bytes;
+                if (targets[i].hasRemaining()){
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer source) throws IOException {
+            if (this.append){
+                this.position = this.node.size;
+            }
+            int bytes = write(source, this.position);
+            this.position += bytes;
+            return bytes;
+        }
+
+        @Override
+        public synchronized long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i=offset; i<offset + length; i++){
+                total += write(sources[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            open();
+            return this.position;
+        }
+
+        @Override
+        public synchronized FileChannel position(long position) throws IOException {
+            open();
+            this.position = position;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            open();
+            return this.node.size;
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            open();
+            if (!this.writable){
+                throw new NonWritableChannelException();
+            }
+            this.node.truncate(size);
+            synchronized (this){
+                this.position = Math.min(this.position, size);
+            }
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            open();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            open();
+            if (!this.readable){
+                throw new NonReadableChannelException();
+            }
+            count = Math.max(0, Math.min(count, this.node.size - position));
+            long done = 0;
+            while (done < count){
+                ByteBuffer view = this.node.view(position + done, Math.min(count - done, SEGMENT_SIZE - (position + done) % SEGMENT_SIZE));
+                int bytes = target.write(view);
+                done += bytes;
+                if (view.hasRemaining()){
+                    break;
+                }
+            }
+            return done;
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+            open();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+            long done = 0;
+            while (done < count){
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - done));
+                int bytes = source.read(buffer);
+                if (bytes <= 0){
+                    break;
+                }
+                buffer.flip();
+                done += write(buffer, position + done);
+            }
+            return done;
+        }
+
+        @Override
+        public int read(ByteBuffer target, long position) throws IOException {
+            open();
+            if (!this.readable){
+                throw new NonReadableChannelException();
+            }
+            return this.node.read(target, position);
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) throws IOException {
+            open();
+            if (!this.writable){
+                throw new NonWritableChannelException();
+            }
+            return this.node.write(source, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size){
+            throw new UnsupportedOperationException("files in memory are mapped with MemoryStorage.map");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared){
+            throw new UnsupportedOperationException("files in memory cannot be locked");
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared){
+            throw new UnsupportedOperationException("files in memory cannot be locked");
+        }
+
+        @Override
+        protected void implCloseChannel(){
+        }
+
+        private void open() throws ClosedChannelException {
+            if (!isOpen()){
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of the attributes of paths and the listings of directories, used by the server so that
+ * clients polling dir / fileExists / getFileLength do not hit the disk on every call
+ * - entries are keyed by the normalized absolute path and evicted least recently used first
+ * - the server invalidates entries itself when it changes a path
+ * - changes made by other programs are picked up through a WatchService on every directory that has cached entries,
+ *   the directory is watched before a value is loaded, and the value is only cached if nothing was invalidated meanwhile,
+ *   so a change made while the value was read is never missed (changes are seen as soon as the platform reports them),
+ *   nothing is watched for storage that only the server changes
+ * - paths with an upload in progress are never cached
+ */
+public class MetadataCache {
+
+    private final int capacity;
+    private final int maxListings;
+    private final int maxWatches;
+    private final LinkedHashMap<Path, FileAttributes> attributes = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Path, String[]> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Path, WatchKey> watches = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, Integer> writing = new ConcurrentHashMap<>(); // paths with an upload in progress
+    private final boolean enabled; // false if the cache is turned off
+    private final WatchService watcher; // null if the storage is not watched
+    private long generation = 0; // bumped by every invalidation, values loaded across an invalidation are not cached
+
+    /**
+     * @param capacity maximum number of paths whose attributes are kept, 0 to turn the cache off
+     * @param maxListings maximum number of directory listings kept
+     * @param maxWatches maximum number of directories watched at once
+     */
+    public MetadataCache(int capacity, int maxListings, int maxWatches){
+        this(capacity, maxListings, maxWatches, new DiskStorage());
+    }
+
+    /**
+     * @param capacity maximum number of paths whose attributes are kept, 0 to turn the cache off
+     * @param maxListings maximum number of directory listings kept
+     * @param maxWatches maximum number of directories watched at once
+     * @param storage storage the paths are in, watched for changes made by other programs
+     */
+    public MetadataCache(int capacity, int maxListings, int maxWatches, Storage storage){
+        this.capacity = capacity;
+        this.maxListings = maxListings;
+        this.maxWatches = maxWatches;
+
+        WatchService watcher = null;
+        boolean enabled = capacity > 0;
+        if (enabled){
+            try {
+                watcher = storage.newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                System.err.println("server: metadata is not cached, file system cannot be watched " + e);
+                enabled = false;
+            }
+        }
+        this.enabled = enabled;
+        this.watcher = watcher;
+        if (watcher != null){
+            Thread thread = new Thread(this::watch, "metadata-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Get the attributes of a path, loading them on a miss
+     * @param path filepath
+     * @param loader reads the attributes from the disk
+     * @return attributes of the path
+     */
+    public FileAttributes attributes(String path, Function<Path, FileAttributes> loader){
+        Path key = key(path);
+        if (!this.enabled || this.writing.containsKey(key)){
+            return loader.apply(key);
+        }
+        long generation;
+        boolean watched;
+        boolean watchedSelf;
+        synchronized (this){
+            FileAttributes cached = this.attributes.get(key);
+            if (cached != null){
+                return cached;
+            }
+            watched = watch(key.getParent());
+            watchedSelf = watched(key);
+            generation = this.generation;
+        }
+
+        FileAttributes loaded = loader.apply(key);
+        if (loaded == null){
+            return null;
+        }
+        synchronized (this){
+            // a directory's attributes change with its entries, so the directory itself has to be watched as well,
+            // one that was not watched before the load is watched now and cached the next time it is loaded
+            if (loaded.isDirectory() && !watchedSelf){
+                watch(key);
+            }
+            else if (watched && generation == this.generation && !this.writing.containsKey(key)){
+                this.attributes.put(key, loaded);
+                trim(this.attributes, this.capacity);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Get the listing of a directory, loading it on a miss
+     * @param path filepath to the directory
+     * @param loader lists the directory, returns null if it is not a directory
+     * @return names in the directory, null if the path is not a directory
+     */
+    public String[] listing(String path, Function<Path, String[]> loader){
+        Path key = key(path);
+        if (!this.enabled){
+            return loader.apply(key);
+        }
+        long generation;
+        boolean watched;
+        synchronized (this){
+            String[] cached = this.listings.get(key);
+            if (cached != null){
+                return cached;
+            }
+            watched = watch(key);
+            generation = this.generation;
+        }
+
+        String[] loaded = loader.apply(key);
+        if (loaded == null || loaded.length > this.capacity){
+            return loaded;
+        }
+        synchronized (this){
+            if (watched && generation == this.generation){
+                this.listings.put(key, loaded);
+                trim(this.listings, this.maxListings);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Forget a path that was created, removed or written to, along with the listing and attributes of its directory
+     * @param path filepath
+     */
+    public synchronized void invalidate(String path){
+        invalidate(key(path), false);
+    }
+
+    /**
+     * Forget a directory and everything cached under it (used when a directory is created or removed)
+     * @param path filepath to the directory
+     */
+    public synchronized void invalidateTree(String path){
+        invalidate(key(path), true);
+    }
+
+    /**
+     * Stop caching a path while it is being uploaded to, every call must be matched by a call to finishWriting
+     * @param path filepath
+     */
+    public void startWriting(String path){
+        Path key = key(path);
+        this.writing.merge(key, 1, Integer::sum);
+        invalidate(path);
+    }
+
+    /**
+     * Resume caching a path once an upload to it is done
+     * @param path filepath
+     */
+    public void finishWriting(String path){
+        Path key = key(path);
+        this.writing.computeIfPresent(key, (k, count) -> (count <= 1) ? null : count - 1);
+        invalidate(path);
+    }
+
+    /**
+     * Stop watching the file system and drop every entry
+     */
+    public void close(){
+        if (this.watcher != null){
+            try {
+                this.watcher.close();
+            } catch (IOException e) {
+                System.err.println("server: error closing metadata watcher " + e);
+            }
+        }
+        synchronized (this){
+            this.attributes.clear();
+            this.listings.clear();
+            this.watches.clear();
+        }
+    }
+
+    private static Path key(String path){
+        return Paths.get(path).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Must be called while holding the cache's lock
+     */
+    private void invalidate(Path key, boolean tree){
+        this.generation++;
+        this.attributes.remove(key);
+        this.listings.remove(key);
+        Path parent = key.getParent();
+        if (parent != null){
+            this.attributes.remove(parent);
+            this.listings.remove(parent);
+        }
+        if (tree){
+            this.attributes.keySet().removeIf(path -> path.startsWith(key));
+            this.listings.keySet().removeIf(path -> path.startsWith(key));
+        }
+    }
+
+    /**
+     * Make sure a directory is watched, the least recently used watch is dropped (with what it covered) once there are too many
+     * must be called while holding the cache's lock
+     * @return true if the directory is watched
+     */
+    private boolean watch(Path directory){
+        if (directory == null){
+            return false;
+        }
+        if (this.watcher == null){
+            return true;
+        }
+        WatchKey key = this.watches.get(directory);
+        if (key != null && key.isValid()){
+            return true;
+        }
+        try {
+            key = directory.register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            return false;
+        }
+        this.watches.put(directory, key);
+
+        Iterator<Map.Entry<Path, WatchKey>> iterator = this.watches.entrySet().iterator();
+        while (this.watches.size() > this.maxWatches && iterator.hasNext()){
+            Map.Entry<Path, WatchKey> eldest = iterator.next();
+            if (eldest.getKey().equals(directory)){
+                continue;
+            }
+            iterator.remove();
+            eldest.getValue().cancel();
+            invalidate(eldest.getKey(), true);
+        }
+        return true;
+    }
+
+    /**
+     * Must be called while holding the cache's lock
+     * @return true if the directory is watched already
+     */
+    private boolean watched(Path directory){
+        if (this.watcher == null){
+            return true;
+        }
+        WatchKey key = this.watches.get(directory);
+        return key != null && key.isValid();
+    }
+
+    /**
+     * Background loop that turns file system events into invalidations
+     */
+    private void watch(){
+        while (true){
+            WatchKey key;
+            try {
+                key = this.watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            List<WatchEvent<?>> events = key.pollEvents();
+            synchronized (this){
+                for (WatchEvent<?> event : events){
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+                        invalidate(directory, true);
+                    }
+                    else{
+                        // a created or removed entry may be a directory with cached entries under it
+                        Path path = directory.resolve((Path) event.context());
+                        invalidate(path, event.kind() != StandardWatchEventKinds.ENTRY_MODIFY);
+                    }
+                }
+                if (!key.reset()){
+                    this.watches.remove(directory, key);
+                    invalidate(directory, true);
+                }
+            }
+        }
+    }
+
+    private static <V> void trim(LinkedHashMap<Path, V> map, int capacity){
+        Iterator<Path> iterator = map.keySet().iterator();
+        while (map.size() > capacity && iterator.hasNext()){
+            iterator.next();
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms of the server
+ * - every method of FileSharingInterface is timed by a proxy placed in front of the server (instrument)
+ * - disk work is split into the time it waited for a worker and the time the worker took (recorded by the Scheduler)
+ * - chunks time how long they take to be copied into and out of the RMI stream and count the bytes moved
+ * comparing the three tells whether a slow call spent its time queuing, on disk or in serialization,
+ * whatever is left of the time the client saw was spent by RMI and the network
+ * recording never allocates, so it can stay on in production
+ */
+public class Metrics implements MetricsMXBean {
+
+    /**
+     * Log-linear histogram of values (HdrHistogram-style), every power of two is split into 16 buckets
+     * so a recorded value is kept within about 6%, recording is a few atomic increments
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value value to record, negative values are recorded as 0
+         */
+        public void record(long value){
+            value = Math.max(0, value);
+            this.counts.incrementAndGet(index(value));
+            this.count.incrementAndGet();
+            this.max.accumulateAndGet(value, Math::max);
+        }
+
+        /**
+         * @return number of recorded values
+         */
+        public long count(){
+            return this.count.get();
+        }
+
+        /**
+         * @return largest recorded value
+         */
+        public long max(){
+            return this.max.get();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return a value at least as large as the given percentage of the recorded values, 0 if nothing was recorded
+         */
+        public long percentile(double percentile){
+            long count = this.count.get();
+            if (count == 0){
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i=0; i<this.counts.length(); i++){
+                seen += this.counts.get(i);
+                if (seen >= rank){
+                    return Math.min(highest(i), this.max.get());
+                }
+            }
+            return this.max.get();
+        }
+
+        private static int index(long value){
+            if (value < SUB_BUCKETS){
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Largest value that falls into a bucket
+         */
+        private static long highest(int index){
+            if (index < SUB_BUCKETS){
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = index % SUB_BUCKETS;
+            return ((1L << exponent) | (sub << (exponent - SUB_BITS))) + (1L << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    /**
+     * Counters of one method, overloads of a method share them
+     */
+    private static class MethodStats {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final Histogram latency = new Histogram();
+    }
+
+    private final long started = System.nanoTime();
+    private final Map<String, MethodStats> methods = new TreeMap<>(); // filled once, only read afterwards
+    private final Histogram queueWait = new Histogram();
+    private final Histogram disk = new Histogram();
+    private final Histogram serialization = new Histogram();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    /**
+     * @param api remote interface whose methods are counted
+     */
+    public Metrics(Class<?> api){
+        for (Method method : api.getMethods()){
+            this.methods.put(method.getName(), new MethodStats());
+        }
+    }
+
+    /**
+     * Put a proxy in front of a remote object that times every call made through it
+     * @param api remote interface of the object
+     * @param target object the calls are passed on to
+     * @return proxy implementing the interface, export it instead of the object
+     */
+    public <T> T instrument(Class<T> api, T target){
+        InvocationHandler handler = (proxy, method, args) -> {
+            MethodStats stats = this.methods.get(method.getName());
+            long started = System.nanoTime();
+            try {
+                Object result = method.invoke(target, args);
+                if (result == null ? method.getReturnType() != void.class : Boolean.FALSE.equals(result)){
+                    stats.failures.incrementAndGet();
+                }
+                if (result instanceof byte[]){
+                    this.bytesOut.addAndGet(((byte[]) result).length);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                stats.errors.incrementAndGet();
+                throw e.getCause();
+            } finally {
+                if (args != null){
+                    for (Object arg : args){
+                        if (arg instanceof byte[]){
+                            this.bytesIn.addAndGet(((byte[]) arg).length);
+                        }
+                    }
+                }
+                stats.calls.incrementAndGet();
+                stats.latency.record(System.nanoTime() - started);
+            }
+        };
+        return api.cast(Proxy.newProxyInstance(api.getClassLoader(), new Class<?>[] {api}, handler));
+    }
+
+    /**
+     * Report a value that is read whenever the metrics are dumped
+     * @param name name of the value
+     * @param gauge reads the value
+     */
+    public synchronized void gauge(String name, LongSupplier gauge){
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * @param nanos time a piece of disk work waited for a worker
+     */
+    public void queued(long nanos){
+        this.queueWait.record(nanos);
+    }
+
+    /**
+     * @param nanos time a worker took to run a piece of disk work
+     */
+    public void ran(long nanos){
+        this.disk.record(nanos);
+    }
+
+    /**
+     * @param bytes bytes of a chunk written into the RMI stream
+     * @param nanos time the copy took
+     */
+    public void sent(long bytes, long nanos){
+        this.bytesOut.addAndGet(bytes);
+        this.serialization.record(nanos);
+    }
+
+    /**
+     * @param bytes bytes of a chunk read from the RMI stream
+     * @param nanos time the copy took
+     */
+    public void received(long bytes, long nanos){
+        this.bytesIn.addAndGet(bytes);
+        this.serialization.record(nanos);
+    }
+
+    @Override
+    public Map<String, Long> getCalls(){
+        Map<String, Long> values = new TreeMap<>();
+        this.methods.forEach((name, stats) -> values.put(name, stats.calls.get()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getErrors(){
+        Map<String, Long> values = new TreeMap<>();
+        this.methods.forEach((name, stats) -> values.put(name, stats.errors.get()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getFailures(){
+        Map<String, Long> values = new TreeMap<>();
+        this.methods.forEach((name, stats) -> values.put(name, stats.failures.get()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50(){
+        Map<String, Long> values = new TreeMap<>();
+        this.methods.forEach((name, stats) -> values.put(name, micros(stats.latency.percentile(50))));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99(){
+        Map<String, Long> values = new TreeMap<>();
+        this.methods.forEach((name, stats) -> values.put(name, micros(stats.latency.percentile(99))));
+        return values;
+    }
+
+    @Override
+    public long getQueueWaitP99(){
+        return micros(this.queueWait.percentile(99));
+    }
+
+    @Override
+    public long getDiskP99(){
+        return micros(this.disk.percentile(99));
+    }
+
+    @Override
+    public long getSerializationP99(){
+        return micros(this.serialization.percentile(99));
+    }
+
+    @Override
+    public long getBytesIn(){
+        return this.bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut(){
+        return this.bytesOut.get();
+    }
+
+    @Override
+    public long getActiveTransfers(){
+        return gauge("active transfers");
+    }
+
+    @Override
+    public long getQueuedWork(){
+        return gauge("queued disk work");
+    }
+
+    @Override
+    public long getOpenHandles(){
+        return gauge("open handles");
+    }
+
+    @Override
+    public String dump(){
+        StringBuilder text = new StringBuilder();
+        text.append("uptime ").append((System.nanoTime() - this.started) / 1000000000L).append(" s\n");
+        text.append(String.format("%-18s %10s %8s %8s %10s %10s %10s %10s%n", "method", "calls", "errors", "failed", "p50 us", "p90 us", "p99 us", "max us"));
+        this.methods.forEach((name, stats) -> {
+            if (stats.calls.get() > 0){
+                text.append(String.format("%-18s %10d %8d %8d %10d %10d %10d %10d%n", name, stats.calls.get(), stats.errors.get(), stats.failures.get(),
+                    micros(stats.latency.percentile(50)), micros(stats.latency.percentile(90)), micros(stats.latency.percentile(99)), micros(stats.latency.max())));
+            }
+        });
+        text.append(String.format("%-18s %10s %8s %8s %10s %10s %10s %10s%n", "stage", "count", "", "", "p50 us", "p90 us", "p99 us", "max us"));
+        stage(text, "queue wait", this.queueWait);
+        stage(text, "disk", this.disk);
+        stage(text, "serialization", this.serialization);
+        text.append("bytes in ").append(this.bytesIn.get()).append(", bytes out ").append(this.bytesOut.get()).append('\n');
+        synchronized (this){
+            this.gauges.forEach((name, gauge) -> text.append(name).append(' ').append(gauge.getAsLong()).append('\n'));
+        }
+        return text.toString();
+    }
+
+    private static void stage(StringBuilder text, String name, Histogram histogram){
+        text.append(String.format("%-18s %10d %8s %8s %10d %10d %10d %10d%n", name, histogram.count(), "", "",
+            micros(histogram.percentile(50)), micros(histogram.percentile(90)), micros(histogram.percentile(99)), micros(histogram.max())));
+    }
+
+    private synchronized long gauge(String name){
+        LongSupplier gauge = this.gauges.get(name);
+        return (gauge == null) ? 0 : gauge.getAsLong();
+    }
+
+    private static long micros(long nanos){
+        return nanos / 1000;
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Map;
+
+/**
+ * Management interface of the server's Metrics, registered with the platform MBean server as "pa2:type=Metrics"
+ * latencies are in microseconds
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return number of calls per method of FileSharingInterface
+     */
+    public Map<String, Long> getCalls();
+
+    /**
+     * @return number of calls per method that threw an exception
+     */
+    public Map<String, Long> getErrors();
+
+    /**
+     * @return number of calls per method that returned false or null
+     */
+    public Map<String, Long> getFailures();
+
+    /**
+     * @return median time spent in the server per method
+     */
+    public Map<String, Long> getLatencyP50();
+
+    /**
+     * @return 99th percentile of the time spent in the server per method
+     */
+    public Map<String, Long> getLatencyP99();
+
+    /**
+     * @return 99th percentile of the time disk work waited for a worker
+     */
+    public long getQueueWaitP99();
+
+    /**
+     * @return 99th percentile of the time disk work took once a worker ran it
+     */
+    public long getDiskP99();
+
+    /**
+     * @return 99th percentile of the time a chunk took to be copied into or out of the RMI stream
+     */
+    public long getSerializationP99();
+
+    /**
+     * @return bytes of file data received from clients
+     */
+    public long getBytesIn();
+
+    /**
+     * @return bytes of file data sent to clients
+     */
+    public long getBytesOut();
+
+    /**
+     * @return number of uploads, downloads and deltas open
+     */
+    public long getActiveTransfers();
+
+    /**
+     * @return number of pieces of disk work waiting for a worker
+     */
+    public long getQueuedWork();
+
+    /**
+     * @return number of file channels held open by the server
+     */
+    public long getOpenHandles();
+
+    /**
+     * @return every metric as plain text, the same text the stats remote call returns
+     */
+    public String dump();
+}
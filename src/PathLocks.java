@@ -0,0 +1,101 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Coordinates access to the same path by concurrent calls, without a lock shared by every path
+ * - single calls that read or write a file hold the read or write lock of the path's stripe for the length of the call,
+ *   so a call never sees another call's half done write (paths are spread over a fixed number of stripes by their hash)
+ * - an upload, delta or other multi-call write claims its path for its whole lifetime,
+ *   other writers and readers of the path are turned away until the claim is released
+ * - a download shares its path for its whole lifetime, writes and claims of the path are turned away until every share is released,
+ *   so a download never reads a file that is being rewritten under it
+ */
+public class PathLocks {
+
+    private final ReadWriteLock[] stripes;
+    private static final int CLAIMED = -1;
+
+    private final Map<String, Integer> holders = new ConcurrentHashMap<>(); // CLAIMED for a write, else the number of downloads
+
+    /**
+     * @param stripes number of locks the paths are spread over, rounded up to a power of two
+     */
+    public PathLocks(int stripes){
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReadWriteLock[size];
+        for (int i=0; i<size; i++){
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Get the lock guarding a path
+     * @param path filepath
+     * @return lock of the path's stripe
+     */
+    public ReadWriteLock lock(String path){
+        int hash = FileHandleCache.key(path).hashCode();
+        hash ^= (hash >>> 16);
+        return this.stripes[hash & (this.stripes.length - 1)];
+    }
+
+    /**
+     * Claim a path for a write that spans several calls
+     * @param path filepath
+     * @return true if the path was claimed, false if another write already claimed it or a download is reading it
+     */
+    public boolean claim(String path){
+        return this.holders.putIfAbsent(FileHandleCache.key(path), CLAIMED) == null;
+    }
+
+    /**
+     * Release a claim obtained from claim
+     * @param path filepath
+     */
+    public void unclaim(String path){
+        this.holders.remove(FileHandleCache.key(path), CLAIMED);
+    }
+
+    /**
+     * Share a path for a read that spans several calls
+     * @param path filepath
+     * @return true if the path was shared, false if a write claimed it
+     */
+    public boolean share(String path){
+        return this.holders.merge(FileHandleCache.key(path), 1, (count, one) -> (count == CLAIMED) ? CLAIMED : count + 1) != CLAIMED;
+    }
+
+    /**
+     * Release a share obtained from share
+     * @param path filepath
+     */
+    public void unshare(String path){
+        this.holders.computeIfPresent(FileHandleCache.key(path), (key, count) -> {
+            if (count == CLAIMED){
+                return count;
+            }
+            return (count <= 1) ? null : Integer.valueOf(count - 1);
+        });
+    }
+
+    /**
+     * Check if a write that spans several calls is in progress on a path
+     * @param path filepath
+     * @return true if the path is claimed
+     */
+    public boolean claimed(String path){
+        Integer count = this.holders.get(FileHandleCache.key(path));
+        return count != null && count == CLAIMED;
+    }
+
+    /**
+     * Check if a write or a download that spans several calls is in progress on a path, a path in use is not written to
+     * @param path filepath
+     * @return true if the path is claimed or shared
+     */
+    public boolean busy(String path){
+        return this.holders.containsKey(FileHandleCache.key(path));
+    }
+}
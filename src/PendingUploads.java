@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Record of the uploads that grew their file to its final length before the bytes arrived
+ * every such upload keeps a small file under DIRECTORY, named by the SHA-256 of the file's path,
+ * holding the length the file had before the upload, the record is removed once the upload is closed
+ * records left over by a server that stopped without closing its uploads are recovered when the store is opened:
+ * the file is cut back to the length it had before the upload, so its length does not claim bytes that never arrived
+ * and the upload is resumed from there
+ */
+public class PendingUploads {
+
+    public static final String DIRECTORY = ".pa2-uploads";
+
+    private final Path root; // where records are stored
+
+    /**
+     * Open the store, cutting back the files of uploads that were not closed
+     * @param root directory the server serves files from
+     * @throws IOException if the store could not be opened
+     */
+    public PendingUploads(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize().resolve(DIRECTORY);
+        Files.createDirectories(this.root);
+
+        try (DirectoryStream<Path> records = Files.newDirectoryStream(this.root)){
+            for (Path record : records){
+                recover(record);
+            }
+        }
+    }
+
+    /**
+     * Check if a path is the store's own directory (hidden from clients)
+     * @param path filepath
+     * @return true if the path is the store's directory
+     */
+    public boolean isStore(Path path){
+        return path.toAbsolutePath().normalize().equals(this.root);
+    }
+
+    /**
+     * Record that an upload is about to grow a file past the bytes it holds
+     * @param file filepath
+     * @param length number of bytes of the file that are complete
+     * @throws IOException if the record could not be written
+     */
+    public void begin(Path file, long length) throws IOException {
+        Path record = record(file);
+        String body = length + "\n" + file.toAbsolutePath().normalize() + "\n";
+        Path temp = Files.createTempFile(this.root, record.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, body.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Drop the record of an upload once its file holds only bytes that arrived
+     * @param file filepath
+     */
+    public void finish(Path file){
+        try {
+            Files.deleteIfExists(record(file));
+        } catch (IOException e) {
+            System.err.println("server: error removing upload record of " + file + " " + e);
+        }
+    }
+
+    /**
+     * Cut a file back to the length in its record and drop the record, temporary files of records are dropped as they are
+     */
+    private static void recover(Path record){
+        try {
+            String[] lines = new String(Files.readAllBytes(record), StandardCharsets.UTF_8).split("\n");
+            if (!record.getFileName().toString().endsWith(".tmp") && lines.length >= 2){
+                long length = Long.parseLong(lines[0]);
+                Path file = Paths.get(lines[1]);
+                if (Files.isRegularFile(file) && Files.size(file) > length){
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)){
+                        channel.truncate(length);
+                        channel.force(true);
+                    }
+                    System.out.println("server: " + file + " was being uploaded to, cut back to " + length + " bytes");
+                }
+            }
+            Files.deleteIfExists(record);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("server: error recovering upload record " + record + " " + e);
+        }
+    }
+
+    private Path record(Path file){
+        String name = file.toAbsolutePath().normalize().toString();
+        return this.root.resolve(ContentChunker.hex(ContentChunker.sha256().digest(name.getBytes(StandardCharsets.UTF_8))));
+    }
+}
@@ -0,0 +1,31 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Rebuilds a file on the server from its old copy and the steps sent by the client
+ * the new copy is written to a temporary file next to the old one and replaces it only when committed
+ */
+public interface RemoteDelta extends Remote{
+
+    /**
+     * Apply the next steps, in file order
+     * @param ops steps to apply
+     * @return true if operation succeeded, false otherwise
+     * @throws RemoteException remote communication exception
+     */
+    public boolean apply(List<DeltaOp> ops) throws RemoteException;
+
+    /**
+     * Replace the old copy with the rebuilt file
+     * @return length of the rebuilt file, -1 if it could not replace the old copy
+     * @throws RemoteException remote communication exception
+     */
+    public long commit() throws RemoteException;
+
+    /**
+     * Throw away the rebuilt file and keep the old copy
+     * @throws RemoteException remote communication exception
+     */
+    public void abort() throws RemoteException;
+}
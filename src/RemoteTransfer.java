@@ -0,0 +1,102 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * A single upload or download opened through FileSharingInterface
+ * data is moved in chunks of the size negotiated when the transfer was opened
+ */
+public interface RemoteTransfer extends Remote{
+
+    /**
+     * Get the chunk size agreed on by the server
+     * @return maximum number of bytes moved per call
+     * @throws RemoteException remote communication exception
+     */
+    public int chunkSize() throws RemoteException;
+
+    /**
+     * Ask for the chunks of the transfer to be compressed on the wire
+     * for downloads the server compresses a sample of the file first and refuses if the data does not compress
+     * @param codec name of the codec, one of the codecs listed in the server's TransferParams
+     * @return codec that will be used, Compression.NONE if the request was refused
+     * @throws RemoteException remote communication exception
+     */
+    public String useCompression(String codec) throws RemoteException;
+
+    /**
+     * Hash the part of the file before the offset the transfer started at,
+     * used to check that a resumed transfer continues the same file before any more bytes are moved
+     * @return SHA-256 of the first bytes of the file (lowercase hex), null if the file could not be read
+     * @throws RemoteException remote communication exception
+     */
+    public String prefixDigest() throws RemoteException;
+
+    /**
+     * Read the next chunk of a download
+     * @return bytes read from the file, an empty array once the end of the file is reached
+     * @throws RemoteException remote communication exception
+     */
+    public byte[] read() throws RemoteException;
+
+    /**
+     * Append the next chunk of an upload
+     * @param buffer bytes to be written
+     * @param bytes the number of bytes to write
+     * @return true if operation succeeded, false otherwise
+     * @throws RemoteException remote communication exception
+     */
+    public boolean write(byte[] buffer, int bytes) throws RemoteException;
+
+    /**
+     * Read the chunk that starts at a given offset, calls may be issued concurrently and complete in any order
+     * @param offset position of the first byte to read
+     * @return bytes read from the file, an empty array if the offset is at or past the end of the file
+     * @throws RemoteException remote communication exception
+     */
+    public byte[] read(long offset) throws RemoteException;
+
+    /**
+     * Read a range of a download without the server copying it into a new array, calls may be issued concurrently
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read (at most the chunk size)
+     * @return chunk holding the bytes, fewer than length if the end of the file is reached, null if the file could not be read
+     * @throws RemoteException remote communication exception
+     */
+    public Chunk readChunk(long offset, int length) throws RemoteException;
+
+    /**
+     * Write a chunk of an upload at a given offset, calls may be issued concurrently and complete in any order
+     * @param offset position in the file to write the first byte to
+     * @param buffer bytes to be written
+     * @param bytes the number of bytes to write
+     * @return true if operation succeeded, false otherwise
+     * @throws RemoteException remote communication exception
+     */
+    public boolean write(long offset, byte[] buffer, int bytes) throws RemoteException;
+
+    /**
+     * Write a chunk of an upload at a given offset, the chunk may be compressed with the codec agreed on
+     * @param offset position in the file to write the first byte to
+     * @param chunk bytes to be written
+     * @return true if operation succeeded, false otherwise (also if the chunk does not match its CRC32C)
+     * @throws RemoteException remote communication exception
+     */
+    public boolean writeChunk(long offset, Chunk chunk) throws RemoteException;
+
+    /**
+     * Mark a range of an upload as zeros without sending it, the range is left as a hole in the server's file
+     * calls may be issued concurrently with writes and complete in any order
+     * @param offset position in the file of the first byte
+     * @param length number of bytes, the range must end within the length the upload was opened with
+     * @return true if operation succeeded, false otherwise
+     * @throws RemoteException remote communication exception
+     */
+    public boolean writeZeros(long offset, int length) throws RemoteException;
+
+    /**
+     * Finish the transfer and release it on the server
+     * @return number of bytes the file holds after the transfer
+     * @throws RemoteException remote communication exception
+     */
+    public long close() throws RemoteException;
+}
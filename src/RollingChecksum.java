@@ -0,0 +1,66 @@
+/**
+ * Weak checksum of a block of bytes that can be rolled forward one byte at a time (the rsync checksum)
+ * used to find blocks of the server's copy of a file at any offset of the client's copy
+ */
+public class RollingChecksum {
+
+    private final int blockSize;
+    private int a;
+    private int b;
+
+    /**
+     * @param blockSize number of bytes in the window
+     */
+    public RollingChecksum(int blockSize){
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Compute the checksum of a window from scratch
+     * @param buffer bytes
+     * @param offset position of the first byte of the window
+     * @param length number of bytes in the window
+     */
+    public void reset(byte[] buffer, int offset, int length){
+        int a = 0;
+        int b = 0;
+        for (int i=0; i<length; i++){
+            int x = buffer[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        this.a = a & 0xffff;
+        this.b = b & 0xffff;
+    }
+
+    /**
+     * Slide the window forward by one byte
+     * @param out byte that leaves the window
+     * @param in byte that enters the window
+     */
+    public void roll(byte out, byte in){
+        int x = out & 0xff;
+        this.a = (this.a - x + (in & 0xff)) & 0xffff;
+        this.b = (this.b - this.blockSize * x + this.a) & 0xffff;
+    }
+
+    /**
+     * @return checksum of the current window
+     */
+    public int value(){
+        return this.a | (this.b << 16);
+    }
+
+    /**
+     * Compute the checksum of a block
+     * @param buffer bytes
+     * @param offset position of the first byte of the block
+     * @param length number of bytes in the block
+     * @return checksum of the block
+     */
+    public static int of(byte[] buffer, int offset, int length){
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(buffer, offset, length);
+        return checksum.value();
+    }
+}
@@ -0,0 +1,284 @@
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+/**
+ * Runs the disk work of the server's calls on a bounded pool of worker threads, shared fairly between clients
+ * - RMI runs every call on its own thread, the call hands its disk work to the scheduler and waits for it,
+ *   so no matter how many calls arrive only the workers touch the disk at once
+ * - every client (by host) has its own queue, the queues are served by deficit round robin weighted by bytes,
+ *   so a client moving large chunks gets the same bandwidth as one moving small chunks
+ * - queues and the number of open transfers are bounded, calls past the bounds fail right away with a
+ *   ServerBusyException that tells the client when to try again
+ * (platform threads are used, Java 17 has no virtual threads)
+ */
+public class Scheduler {
+
+    /**
+     * A transfer slot held by a client, disk work of the transfer is run through it
+     */
+    public class Lane {
+        private final String client;
+        private final long opened = System.nanoTime();
+        private boolean closed = false;
+
+        private Lane(String client){
+            this.client = client;
+        }
+
+        /**
+         * Run disk work on behalf of the transfer
+         * @param cost number of bytes the work moves
+         * @param work the work
+         * @return what the work returned
+         * @throws RemoteException ServerBusyException if the client's queue is full
+         */
+        public <T> T run(long cost, Supplier<T> work) throws RemoteException {
+            return Scheduler.this.run(this.client, cost, work);
+        }
+
+        /**
+         * Give the transfer slot back, can be called more than once
+         */
+        public void close(){
+            synchronized (Scheduler.this){
+                if (this.closed){
+                    return;
+                }
+                this.closed = true;
+                ClientQueue queue = Scheduler.this.clients.get(this.client);
+                queue.transfers--;
+                Scheduler.this.transfers--;
+                Scheduler.this.transferNanos = 0.9 * Scheduler.this.transferNanos + 0.1 * (System.nanoTime() - this.opened);
+                forgetIfIdle(queue);
+            }
+        }
+    }
+
+    private static class ClientQueue {
+        private final String client;
+        private final ArrayDeque<FutureTask<Object>> tasks = new ArrayDeque<>();
+        private final ArrayDeque<Long> costs = new ArrayDeque<>();
+        private long deficit = 0; // bytes the client may still move in the current round
+        private int transfers = 0; // open transfers of the client
+
+        private ClientQueue(String client){
+            this.client = client;
+        }
+    }
+
+    private static final long MIN_RETRY_MILLIS = 10;
+    private static final long MAX_RETRY_MILLIS = 5000;
+
+    private final int workers;
+    private final int maxQueued;
+    private final int maxQueuedPerClient;
+    private final int maxTransfers;
+    private final int maxTransfersPerClient;
+    private final long quantum;
+    private final Metrics metrics; // told how long work waited and how long it ran
+    private final Thread[] threads;
+    private final Map<String, ClientQueue> clients = new HashMap<>();
+    private final ArrayDeque<ClientQueue> ready = new ArrayDeque<>(); // clients with queued work, in serving order
+    private int queued = 0;
+    private int transfers = 0;
+    private double serviceNanos = 1000000; // moving average of the time a piece of work takes
+    private double transferNanos = 1000000000; // moving average of the time a transfer stays open
+    private boolean closed = false;
+
+    /**
+     * @param workers number of worker threads doing disk work
+     * @param maxQueued most pieces of work waiting at once
+     * @param maxQueuedPerClient most pieces of work waiting at once for a single client
+     * @param maxTransfers most transfers open at once
+     * @param maxTransfersPerClient most transfers open at once for a single client
+     * @param quantum bytes every client may move per round
+     * @param metrics metrics the time work waited and ran is recorded in
+     */
+    public Scheduler(int workers, int maxQueued, int maxQueuedPerClient, int maxTransfers, int maxTransfersPerClient, long quantum, Metrics metrics){
+        this.workers = Math.max(1, workers);
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerClient = maxQueuedPerClient;
+        this.maxTransfers = maxTransfers;
+        this.maxTransfersPerClient = maxTransfersPerClient;
+        this.quantum = Math.max(1, quantum);
+        this.metrics = metrics;
+        this.threads = new Thread[this.workers];
+        for (int i=0; i<this.workers; i++){
+            this.threads[i] = new Thread(this::work, "disk-worker-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Take a transfer slot for a client
+     * @param client host of the client
+     * @return lane to run the transfer's disk work through
+     * @throws ServerBusyException if the server or the client has too many transfers open
+     */
+    public synchronized Lane openTransfer(String client) throws ServerBusyException {
+        ClientQueue queue = queue(client);
+        if (this.transfers >= this.maxTransfers || queue.transfers >= this.maxTransfersPerClient){
+            forgetIfIdle(queue);
+            // on average one of the open transfers finishes every transferNanos / transfers
+            long millis = (long) (this.transferNanos / Math.max(1, this.transfers) / 1000000);
+            throw new ServerBusyException("too many transfers open", clamp(millis));
+        }
+        queue.transfers++;
+        this.transfers++;
+        return new Lane(client);
+    }
+
+    /**
+     * Run disk work on behalf of a client and wait for it
+     * @param client host of the client
+     * @param cost number of bytes the work moves
+     * @param work the work
+     * @return what the work returned
+     * @throws RemoteException ServerBusyException if the queues are full, RemoteException if the wait was interrupted
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T run(String client, long cost, Supplier<T> work) throws RemoteException {
+        long enqueued = System.nanoTime();
+        FutureTask<Object> task = new FutureTask<>(() -> {
+            this.metrics.queued(System.nanoTime() - enqueued);
+            return work.get();
+        });
+        synchronized (this){
+            ClientQueue queue = queue(client);
+            if (this.closed || this.queued >= this.maxQueued || queue.tasks.size() >= this.maxQueuedPerClient){
+                forgetIfIdle(queue);
+                throw new ServerBusyException("too many calls waiting for the disk", retryAfter(this.queued));
+            }
+            if (queue.tasks.isEmpty()){
+                this.ready.addLast(queue);
+            }
+            queue.tasks.addLast(task);
+            queue.costs.addLast(Math.max(1, cost));
+            this.queued++;
+            notify();
+        }
+
+        try {
+            return (T) task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(false);
+            throw new RemoteException("interrupted while waiting for the disk");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw (Error) e.getCause();
+        }
+    }
+
+    /**
+     * @return number of transfers open
+     */
+    public synchronized int transfers(){
+        return this.transfers;
+    }
+
+    /**
+     * @return number of pieces of work waiting for a worker
+     */
+    public synchronized int queued(){
+        return this.queued;
+    }
+
+    /**
+     * Stop the workers, work that is still queued is not run
+     */
+    public void close(){
+        synchronized (this){
+            this.closed = true;
+            for (ClientQueue queue : this.ready){
+                for (FutureTask<Object> task : queue.tasks){
+                    task.cancel(false);
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Loop run by every worker: pick the next piece of work by deficit round robin and run it
+     */
+    private void work(){
+        while (true){
+            FutureTask<Object> task;
+            synchronized (this){
+                while (this.ready.isEmpty() && !this.closed){
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (this.closed){
+                    return;
+                }
+
+                // a client whose next piece of work costs more than it has left waits for the next round
+                ClientQueue queue = this.ready.peekFirst();
+                if (queue.deficit < queue.costs.peekFirst()){
+                    queue.deficit += this.quantum;
+                    this.ready.addLast(this.ready.removeFirst());
+                    continue;
+                }
+                task = queue.tasks.removeFirst();
+                queue.deficit -= queue.costs.removeFirst();
+                this.queued--;
+                if (queue.tasks.isEmpty()){
+                    this.ready.removeFirst();
+                    queue.deficit = 0;
+                    forgetIfIdle(queue);
+                }
+                else if (queue.deficit < queue.costs.peekFirst()){
+                    this.ready.addLast(this.ready.removeFirst());
+                }
+            }
+
+            long started = System.nanoTime();
+            task.run();
+            long elapsed = System.nanoTime() - started;
+            this.metrics.ran(elapsed);
+            synchronized (this){
+                this.serviceNanos = 0.9 * this.serviceNanos + 0.1 * elapsed;
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the scheduler's lock
+     */
+    private ClientQueue queue(String client){
+        return this.clients.computeIfAbsent(client, ClientQueue::new);
+    }
+
+    /**
+     * Must be called while holding the scheduler's lock
+     */
+    private void forgetIfIdle(ClientQueue queue){
+        if (queue.tasks.isEmpty() && queue.transfers == 0){
+            this.clients.remove(queue.client);
+        }
+    }
+
+    /**
+     * Guess how long it takes for the work ahead to drain, must be called while holding the scheduler's lock
+     */
+    private long retryAfter(int ahead){
+        return clamp((long) (this.serviceNanos * (ahead + 1) / this.workers / 1000000));
+    }
+
+    private static long clamp(long millis){
+        return Math.max(MIN_RETRY_MILLIS, Math.min(MAX_RETRY_MILLIS, millis));
+    }
+}
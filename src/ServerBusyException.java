@@ -0,0 +1,41 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by the server when it is too busy to take a call, the call can be tried again after the given delay
+ */
+public class ServerBusyException extends RemoteException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    /**
+     * @param message what the server is out of
+     * @param retryAfterMillis how long the client should wait before trying again
+     */
+    public ServerBusyException(String message, long retryAfterMillis){
+        super(message + ", retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Find the ServerBusyException behind a failed call, RMI hands it to the client wrapped in a ServerException
+     * @param e exception thrown by the call
+     * @return the ServerBusyException, null if the call failed for another reason
+     */
+    public static ServerBusyException from(Throwable e){
+        for (; e != null; e = e.getCause()){
+            if (e instanceof ServerBusyException){
+                return (ServerBusyException) e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return how long the client should wait before trying again, in milliseconds
+     */
+    public long retryAfterMillis(){
+        return this.retryAfterMillis;
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Socket settings for every RMI connection, read from pa2.net.* system properties
+ * - noDelay: turn Nagle off so small calls are not held back waiting for an acknowledgement (default true)
+ * - keepAlive: notice peers that went away without closing their connection (default true)
+ * - sendBuffer / receiveBuffer: socket buffer sizes in bytes, 0 leaves them to the operating system,
+ *   which grows them on its own on most systems (default 0)
+ * - connectMillis: how long to wait for a connection to be made (default 10000)
+ * - tls: wrap every connection in TLS, configured with the javax.net.ssl.* properties (default false)
+ *
+ * the client factory is sent to clients inside every stub, so clients use the server's settings
+ * RMI keeps idle connections open and reuses them for later calls (for sun.rmi.transport.connectionTimeout, 15 s by default),
+ * the factories are equal whenever their settings are, so every object exported with them shares one endpoint and one pool of connections
+ * with TLS the same SSL context is used for every connection, so reconnecting resumes the cached session instead of a full handshake
+ */
+public class Sockets implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean noDelay;
+    private final boolean keepAlive;
+    private final int sendBuffer;
+    private final int receiveBuffer;
+    private final int connectMillis;
+    private final boolean tls;
+
+    /**
+     * @param noDelay true to turn Nagle off
+     * @param keepAlive true to send keep-alive probes
+     * @param sendBuffer send buffer size in bytes, 0 for the system default
+     * @param receiveBuffer receive buffer size in bytes, 0 for the system default
+     * @param connectMillis how long to wait for a connection, 0 to wait forever
+     * @param tls true to use TLS
+     */
+    public Sockets(boolean noDelay, boolean keepAlive, int sendBuffer, int receiveBuffer, int connectMillis, boolean tls){
+        this.noDelay = noDelay;
+        this.keepAlive = keepAlive;
+        this.sendBuffer = Math.max(0, sendBuffer);
+        this.receiveBuffer = Math.max(0, receiveBuffer);
+        this.connectMillis = Math.max(0, connectMillis);
+        this.tls = tls;
+    }
+
+    /**
+     * Read the settings from the pa2.net.* system properties
+     * @return the settings
+     */
+    public static Sockets fromProperties(){
+        return new Sockets(
+            Boolean.parseBoolean(System.getProperty("pa2.net.noDelay", "true")),
+            Boolean.parseBoolean(System.getProperty("pa2.net.keepAlive", "true")),
+            Integer.getInteger("pa2.net.sendBuffer", 0),
+            Integer.getInteger("pa2.net.receiveBuffer", 0),
+            Integer.getInteger("pa2.net.connectMillis", 10000),
+            Boolean.getBoolean("pa2.net.tls"));
+    }
+
+    /**
+     * @return factory for the sockets callers connect with
+     */
+    public Client client(){
+        return new Client(this);
+    }
+
+    /**
+     * @return factory for the sockets the server listens on
+     */
+    public Server server(){
+        return new Server(this);
+    }
+
+    /**
+     * Apply the settings to a connected socket
+     */
+    private void tune(Socket socket) throws IOException {
+        socket.setTcpNoDelay(this.noDelay);
+        socket.setKeepAlive(this.keepAlive);
+        if (this.sendBuffer > 0){
+            socket.setSendBufferSize(this.sendBuffer);
+        }
+    }
+
+    private static SSLSocketFactory ssl() throws IOException {
+        try {
+            return SSLContext.getDefault().getSocketFactory();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other){
+        if (!(other instanceof Sockets)){
+            return false;
+        }
+        Sockets sockets = (Sockets) other;
+        return this.noDelay == sockets.noDelay && this.keepAlive == sockets.keepAlive
+            && this.sendBuffer == sockets.sendBuffer && this.receiveBuffer == sockets.receiveBuffer
+            && this.connectMillis == sockets.connectMillis && this.tls == sockets.tls;
+    }
+
+    @Override
+    public int hashCode(){
+        return Objects.hash(this.noDelay, this.keepAlive, this.sendBuffer, this.receiveBuffer, this.connectMillis, this.tls);
+    }
+
+    @Override
+    public String toString(){
+        return "noDelay=" + this.noDelay + " keepAlive=" + this.keepAlive + " sendBuffer=" + this.sendBuffer
+            + " receiveBuffer=" + this.receiveBuffer + " tls=" + this.tls;
+    }
+
+    /**
+     * Makes the connections of callers, sent to clients inside stubs
+     */
+    public static class Client implements RMIClientSocketFactory, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Sockets sockets;
+
+        private Client(Sockets sockets){
+            this.sockets = sockets;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = new Socket();
+            try {
+                // the receive buffer has to be set before connecting for the window to be scaled to it
+                if (this.sockets.receiveBuffer > 0){
+                    socket.setReceiveBufferSize(this.sockets.receiveBuffer);
+                }
+                socket.connect(new InetSocketAddress(host, port), this.sockets.connectMillis);
+                this.sockets.tune(socket);
+                return this.sockets.tls ? ssl().createSocket(socket, host, port, true) : socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other){
+            return other instanceof Client && this.sockets.equals(((Client) other).sockets);
+        }
+
+        @Override
+        public int hashCode(){
+            return this.sockets.hashCode();
+        }
+    }
+
+    /**
+     * Makes the server's listening sockets
+     */
+    public static class Server implements RMIServerSocketFactory {
+
+        private final Sockets sockets;
+
+        private Server(Sockets sockets){
+            this.sockets = sockets;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            ServerSocket listener = new Listener(this.sockets);
+            try {
+                // accepted sockets take their receive buffer from the listening socket
+                if (this.sockets.receiveBuffer > 0){
+                    listener.setReceiveBufferSize(this.sockets.receiveBuffer);
+                }
+                listener.setReuseAddress(true);
+                listener.bind(new InetSocketAddress(port));
+                return listener;
+            } catch (IOException e) {
+                listener.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other){
+            return other instanceof Server && this.sockets.equals(((Server) other).sockets);
+        }
+
+        @Override
+        public int hashCode(){
+            return this.sockets.hashCode();
+        }
+    }
+
+    /**
+     * Listening socket that tunes every connection it accepts, and layers TLS over it
+     * the TLS handshake happens on the connection's first read, not in the thread accepting connections
+     */
+    private static class Listener extends ServerSocket {
+
+        private final Sockets sockets;
+
+        Listener(Sockets sockets) throws IOException {
+            super();
+            this.sockets = sockets;
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            Socket socket = super.accept();
+            try {
+                this.sockets.tune(socket);
+                return this.sockets.tls ? ssl().createSocket(socket, null, true) : socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+
+/**
+ * Where the server keeps its files, every access to the files the server serves goes through here
+ * paths are normalized absolute paths, methods fail the way the matching java.nio.file.Files methods do
+ * (i.e NoSuchFileException, FileAlreadyExistsException, DirectoryNotEmptyException)
+ * - DiskStorage keeps the files on the local file system
+ * - MemoryStorage keeps them off-heap in the server's memory, they are gone once the server stops
+ */
+public interface Storage extends Closeable {
+
+    String TEMPORARY_PREFIX = ".pa2-tmp-"; // names of the files the server writes before moving them over a file, reserved for the server
+
+    /**
+     * Read the attributes of a path
+     * @param path filepath
+     * @param options LinkOption.NOFOLLOW_LINKS to read a symbolic link itself
+     * @return attributes of the path
+     * @throws IOException if nothing exists at the path
+     */
+    BasicFileAttributes attributes(Path path, LinkOption... options) throws IOException;
+
+    /**
+     * Open a directory to iterate over its entries
+     * @param directory filepath to the directory
+     * @param filter entries to return
+     * @return stream of the entries' paths, must be closed
+     * @throws IOException if the path is not a directory
+     */
+    DirectoryStream<Path> list(Path directory, DirectoryStream.Filter<? super Path> filter) throws IOException;
+
+    /**
+     * Make a directory, its parent must exist
+     * @param directory filepath to the new directory
+     * @throws IOException if something exists at the path or the parent is not a directory
+     */
+    void createDirectory(Path directory) throws IOException;
+
+    /**
+     * Remove a file or an empty directory
+     * @param path filepath
+     * @throws IOException if nothing exists at the path or the directory is not empty
+     */
+    void delete(Path path) throws IOException;
+
+    /**
+     * Open a file for positional reads and writes
+     * @param file filepath to the file
+     * @param options StandardOpenOption READ, WRITE, CREATE, CREATE_NEW and TRUNCATE_EXISTING
+     * @return open channel
+     * @throws IOException if the file could not be opened
+     */
+    FileChannel open(Path file, OpenOption... options) throws IOException;
+
+    /**
+     * Move a file or directory, replacing a file at the target, the move is seen all at once
+     * @param source filepath to move
+     * @param target new filepath
+     * @throws IOException if the source does not exist or the target could not be replaced
+     */
+    void move(Path source, Path target) throws IOException;
+
+    /**
+     * Get a read-only view of part of an open file that follows later writes to those bytes (a memory mapped region)
+     * @param channel channel opened by this storage
+     * @param position position of the first byte
+     * @param size number of bytes, the range is within the file and within one region (see regionSize)
+     * @return view of the bytes, null if the range cannot be mapped yet and has to be read instead
+     * @throws IOException if the range could not be mapped
+     */
+    ByteBuffer map(FileChannel channel, long position, long size) throws IOException;
+
+    /**
+     * @return size of the regions files are mapped in, a region starts at a multiple of it
+     */
+    default long regionSize(){
+        return FileHandleCache.Handle.REGION_SIZE;
+    }
+
+    /**
+     * Watch the storage for changes made by other programs
+     * @return service that directories can be registered with, null if only the server changes the storage
+     * @throws IOException if the storage cannot be watched
+     */
+    WatchService newWatchService() throws IOException;
+
+    /**
+     * Check if a path is a directory
+     * @param path filepath
+     * @return true if the path is a directory, false if it is not or nothing exists at the path
+     */
+    default boolean isDirectory(Path path){
+        try {
+            return attributes(path).isDirectory();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if a path is a regular file
+     * @param path filepath
+     * @return true if the path is a regular file, false if it is not or nothing exists at the path
+     */
+    default boolean isFile(Path path){
+        try {
+            return attributes(path).isRegularFile();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create a new empty file next to a file, to write the file's new content to before it is moved over the file
+     * its name starts with TEMPORARY_PREFIX and is new, so creating it never replaces or truncates another file
+     * @param file filepath the temporary file is made next to
+     * @return filepath to the new file
+     * @throws IOException if the file could not be created
+     */
+    default Path createTemporary(Path file) throws IOException {
+        Path temp = file.resolveSibling(TEMPORARY_PREFIX + UUID.randomUUID());
+        open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW).close();
+        return temp;
+    }
+
+    /**
+     * Check if a path is a file made by createTemporary
+     * @param path filepath
+     * @return true if the path's name starts with TEMPORARY_PREFIX
+     */
+    static boolean isTemporary(Path path){
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(TEMPORARY_PREFIX);
+    }
+
+    /**
+     * Remove a file or an empty directory if it exists
+     * @param path filepath
+     * @return true if something was removed
+     * @throws IOException if the directory is not empty
+     */
+    default boolean deleteIfExists(Path path) throws IOException {
+        try {
+            delete(path);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+}
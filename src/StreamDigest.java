@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SHA-256 of a file computed while the file is moved, so the file does not have to be read again afterwards
+ * chunks may be handed over in any order, chunks that arrive ahead of the hashed prefix are held until the gap is filled
+ * (at most a transfer window of chunks), if more than the limit would be held the digest gives up,
+ * or, if it was given the file the chunks are written to, drops the chunk and reads it back from the file once the gap is filled
+ */
+public class StreamDigest {
+
+    private final MessageDigest sha256;
+    private final long limit; // most bytes held ahead of the hashed prefix
+    private final TreeMap<Long, byte[]> pending = new TreeMap<>(); // chunks past the hashed prefix, by offset
+    private final FileChannel file; // file the chunks are written to, null to give up instead of reading it
+    private final TreeMap<Long, Long> inFile = new TreeMap<>(); // ranges past the hashed prefix that are read from the file, offset to length
+    private long position; // every byte before this offset has been hashed
+    private long pendingBytes = 0;
+    private boolean abandoned = false;
+
+    /**
+     * @param sha256 digest that already hashed the first position bytes of the file
+     * @param position number of bytes the digest already hashed
+     * @param limit most bytes held while waiting for earlier chunks
+     */
+    public StreamDigest(MessageDigest sha256, long position, long limit){
+        this(sha256, position, limit, null);
+    }
+
+    /**
+     * @param sha256 digest that already hashed the first position bytes of the file
+     * @param position number of bytes the digest already hashed
+     * @param limit most bytes held while waiting for earlier chunks, chunks past that are read back from the file
+     * @param file readable channel of the file, every chunk must be written to it before it is handed over
+     */
+    public StreamDigest(MessageDigest sha256, long position, long limit, FileChannel file){
+        this.sha256 = sha256;
+        this.position = position;
+        this.limit = limit;
+        this.file = file;
+    }
+
+    /**
+     * Hash a chunk of the file, chunks that were hashed before are ignored
+     * @param offset position of the chunk's first byte in the file
+     * @param bytes buffer holding the chunk (copied if it has to be held)
+     * @param length number of bytes in the chunk
+     */
+    public synchronized void update(long offset, byte[] bytes, int length){
+        if (this.abandoned || offset + length <= this.position){
+            return;
+        }
+        if (offset > this.position){
+            if (this.pendingBytes + length > this.limit){
+                if (this.file != null){
+                    this.inFile.merge(offset, (long) length, Math::max);
+                    return;
+                }
+                this.abandoned = true;
+                this.pending.clear();
+                return;
+            }
+            byte[] copy = new byte[length];
+            System.arraycopy(bytes, 0, copy, 0, length);
+            if (this.pending.put(offset, copy) == null){
+                this.pendingBytes += length;
+            }
+            return;
+        }
+
+        int skip = (int) (this.position - offset);
+        this.sha256.update(bytes, skip, length - skip);
+        this.position = offset + length;
+        advance();
+    }
+
+    /**
+     * Hash a range from the file once the prefix reaches it, used for bytes that were in the file before the digest was made
+     * @param offset position of the range's first byte in the file
+     * @param length number of bytes
+     */
+    public synchronized void inFile(long offset, long length){
+        if (this.abandoned || this.file == null || length <= 0 || offset + length <= this.position){
+            return;
+        }
+        this.inFile.merge(offset, length, Math::max);
+        advance();
+    }
+
+    /**
+     * Hash the held chunks and the ranges in the file that now follow the prefix
+     */
+    private void advance(){
+        while (!this.abandoned){
+            Map.Entry<Long, byte[]> held = this.pending.firstEntry();
+            Map.Entry<Long, Long> stored = this.inFile.firstEntry();
+            if (held != null && held.getKey() <= this.position){
+                this.pending.pollFirstEntry();
+                this.pendingBytes -= held.getValue().length;
+                byte[] chunk = held.getValue();
+                if (held.getKey() + chunk.length > this.position){
+                    int skip = (int) (this.position - held.getKey());
+                    this.sha256.update(chunk, skip, chunk.length - skip);
+                    this.position = held.getKey() + chunk.length;
+                }
+            }
+            else if (stored != null && stored.getKey() <= this.position){
+                this.inFile.pollFirstEntry();
+                if (stored.getKey() + stored.getValue() > this.position){
+                    read(stored.getKey() + stored.getValue());
+                }
+            }
+            else{
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hash the file from the prefix up to an offset, the digest gives up if the file cannot be read
+     */
+    private void read(long end){
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end - this.position, 1024 * 1024));
+        try {
+            while (this.position < end){
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - this.position));
+                int bytes = this.file.read(buffer, this.position);
+                if (bytes < 0){
+                    throw new IOException("file ends before " + end);
+                }
+                buffer.flip();
+                this.sha256.update(buffer);
+                this.position += bytes;
+            }
+        } catch (IOException e) {
+            this.abandoned = true;
+            this.pending.clear();
+            this.inFile.clear();
+        }
+    }
+
+    /**
+     * Get the digest of the bytes hashed so far without finishing it
+     * @return SHA-256 of the first position() bytes (lowercase hex)
+     */
+    public synchronized String current(){
+        try {
+            return ContentChunker.hex(((MessageDigest) this.sha256.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return number of bytes hashed so far
+     */
+    public synchronized long position(){
+        return this.position;
+    }
+
+    /**
+     * Finish the digest, no more chunks can be hashed afterwards
+     * @param length length of the file
+     * @return SHA-256 of the file (lowercase hex), null if the digest gave up or did not hash exactly length bytes
+     */
+    public synchronized String digest(long length){
+        if (this.abandoned || this.position != length || !this.pending.isEmpty() || !this.inFile.isEmpty()){
+            return null;
+        }
+        this.abandoned = true;
+        return ContentChunker.hex(this.sha256.digest());
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Chunk sizes the server is willing to use for transfers
+ * clients ask for these before opening a transfer and adapt their chunk size within the bounds
+ */
+public class TransferParams implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int MIN_CHUNK_SIZE = 1024;
+    public static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final int defaultChunkSize;
+    private final boolean deduplication;
+
+    /**
+     * @param minChunkSize smallest chunk the server accepts
+     * @param maxChunkSize largest chunk the server accepts
+     * @param defaultChunkSize chunk size used when the client does not ask for one
+     */
+    public TransferParams(int minChunkSize, int maxChunkSize, int defaultChunkSize){
+        this(minChunkSize, maxChunkSize, defaultChunkSize, false);
+    }
+
+    /**
+     * @param minChunkSize smallest chunk the server accepts
+     * @param maxChunkSize largest chunk the server accepts
+     * @param defaultChunkSize chunk size used when the client does not ask for one
+     * @param deduplication true if the server stores uploads in its deduplicating chunk store
+     */
+    public TransferParams(int minChunkSize, int maxChunkSize, int defaultChunkSize, boolean deduplication){
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = Math.max(minChunkSize, maxChunkSize);
+        this.defaultChunkSize = Math.max(this.minChunkSize, Math.min(this.maxChunkSize, defaultChunkSize));
+        this.deduplication = deduplication;
+    }
+
+    public int minChunkSize(){
+        return this.minChunkSize;
+    }
+
+    public int maxChunkSize(){
+        return this.maxChunkSize;
+    }
+
+    public int defaultChunkSize(){
+        return this.defaultChunkSize;
+    }
+
+    /**
+     * Check if uploads should go through the deduplicating chunk store (missingChunks / putChunk / commitManifest)
+     * @return true if the server deduplicates uploads
+     */
+    public boolean deduplication(){
+        return this.deduplication;
+    }
+
+    /**
+     * Get the codecs the server can compress chunks with
+     * @return names of the supported codecs
+     */
+    public List<String> codecs(){
+        return Compression.CODECS;
+    }
+
+    /**
+     * Clamp a requested chunk size to what the server is willing to move per call
+     * @param requested chunk size asked for by the client, 0 or less for the default
+     * @return chunk size that will be used
+     */
+    public int negotiate(int requested){
+        if (requested <= 0){
+            return this.defaultChunkSize;
+        }
+        return Math.max(this.minChunkSize, Math.min(this.maxChunkSize, requested));
+    }
+}
@@ -0,0 +1,397 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Server side of a RemoteTransfer
+ * the session keeps its file channel for its whole lifetime and is unexported when it is closed,
+ * or when the client that opened it goes away without closing it
+ * uploads hash the file as it is written and store the digest in the server's digest store when they are closed
+ * uploads are buffered by the server's WriteBehind and only acknowledged by close once the Durability policy is satisfied
+ * an upload sets the file's length to its expected length when it is opened, so chunks can be written at any offset,
+ * the file is only extended sparsely (Java has no portable way to reserve the blocks), the blocks are allocated as chunks are written,
+ * ranges of zeros are not sent and stay holes in the file, a file that is closed before every range arrived is cut back
+ * to the bytes received in order, so the upload can be resumed from its length
+ * (the grown file is recorded in the server's PendingUploads until then, so a server that stops first cuts it back when it starts)
+ */
+public class TransferSession extends UnicastRemoteObject implements RemoteTransfer, Unreferenced{
+
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+    private final boolean upload;
+    private final int chunkSize;
+    private final FileHandleCache handles;
+    private final ChunkReader reader;
+    private final MetadataCache metadata;
+    private final ChangeFeed changes;
+    private final PathLocks locks;
+    private final Scheduler.Lane lane; // transfer slot the chunk reads / writes are run through
+    private volatile FileHandleCache.Handle handle;
+    private final DigestStore digests; // null if digests are not stored
+    private final Durability durability; // decides when the closed upload is acknowledged
+    private final WriteBehind.Upload buffered; // buffers the chunks of an upload, null for downloads or if uploads are not buffered
+    private final PendingUploads pending; // records the file while it is longer than the bytes that arrived, null if nothing is recorded
+    private volatile String codec = Compression.NONE; // codec chunks are compressed with on the wire
+    private volatile StreamDigest digest; // SHA-256 of an upload so far, null until the bytes before the upload were hashed
+    private final long start; // position of the first byte of the transfer
+    private long position;
+    private long expected; // length the file is grown to by an upload
+    private boolean grown = false; // true if the upload grew the file and recorded it in pending
+    private final TreeMap<Long, Long> ahead = new TreeMap<>(); // ranges of an upload received past the contiguous end, start to end
+    private long contiguous; // every byte of an upload before this offset was received
+    private static final byte[] ZEROS = new byte[64 * 1024]; // hashed in place of the ranges of zeros that are not sent
+    private static final long DIGEST_PENDING = Long.getLong("pa2.digest.maxPending", 64L * 1024 * 1024); // most bytes of an upload held to be hashed in order
+
+    /**
+     * @param sockets settings of the connections the session is exported with
+     * @param handles cache that the file channel is borrowed from
+     * @param reader reader used to serve the chunks of a download
+     * @param metadata cache that stops caching the file while it is uploaded to
+     * @param changes feed told about the file once an upload is closed
+     * @param locks locks whose claim (upload) or share (download) of the path is released when the session is closed (the caller takes it)
+     * @param lane transfer slot the chunk reads / writes are run through, given back when the transfer is closed
+     * @param digests store the digest of an upload is kept in, null if digests are not stored
+     * @param writeBehind buffers the chunks of uploads, null to write every chunk as it arrives
+     * @param pending records files grown by uploads until they are closed, null to grow them without a record
+     * @param durability policy deciding when a closed upload is acknowledged
+     * @param path filepath to the file
+     * @param upload true for an upload (data is appended), false for a download
+     * @param offset position of the first byte to read, ignored for uploads
+     * @param expectedLength length of the file once an upload is done, ignored for downloads
+     * @param chunkSize chunk size negotiated with the client
+     * @throws IOException if the file could not be opened
+     */
+    protected TransferSession(Sockets sockets, FileHandleCache handles, ChunkReader reader, MetadataCache metadata, ChangeFeed changes, PathLocks locks, Scheduler.Lane lane, DigestStore digests, WriteBehind writeBehind, PendingUploads pending, Durability durability, String path, boolean upload, long offset, long expectedLength, int chunkSize) throws IOException {
+        super(0, sockets.client(), sockets.server());
+        this.handles = handles;
+        this.reader = reader;
+        this.metadata = metadata;
+        this.changes = changes;
+        this.locks = locks;
+        this.lane = lane;
+        this.digests = digests;
+        this.durability = durability;
+        this.pending = pending;
+        this.path = path;
+        this.upload = upload;
+        this.chunkSize = chunkSize;
+        this.handle = handles.acquire(path, upload);
+        try {
+            this.position = upload ? this.handle.channel().size() : offset;
+            this.start = this.position;
+            this.contiguous = this.start;
+            this.expected = this.start;
+            if (upload && expectedLength > this.start){
+                // the length the file had is recorded first, the grown length would otherwise look like a finished upload after a crash
+                if (pending != null){
+                    pending.begin(Paths.get(path), this.start);
+                    this.grown = true;
+                }
+                // writing the last byte sets the length, the bytes before it stay a hole until they are written (nothing is reserved)
+                this.handle.channel().write(ByteBuffer.allocate(1), expectedLength - 1);
+                this.expected = expectedLength;
+            }
+            this.buffered = (upload && writeBehind != null) ? writeBehind.open(this.handle.channel(), this.start) : null;
+        } catch (IOException | RuntimeException e) {
+            // the session is already exported and holds the handle, neither outlives a session that could not be opened
+            if (this.grown){
+                pending.finish(Paths.get(path));
+            }
+            handles.release(this.handle);
+            UnicastRemoteObject.unexportObject(this, true);
+            throw e;
+        }
+        if (upload){
+            metadata.startWriting(path);
+            if (this.start == 0){
+                this.digest = new StreamDigest(ContentChunker.sha256(), 0, DIGEST_PENDING);
+            }
+        }
+    }
+
+    @Override
+    public int chunkSize() throws RemoteException {
+        return this.chunkSize;
+    }
+
+    @Override
+    public String useCompression(String codec) throws RemoteException {
+        FileHandleCache.Handle handle = this.handle;
+        if (handle == null || !Compression.supported(codec)){
+            return this.codec;
+        }
+
+        // skip compression for downloads of data that does not compress
+        if (!this.upload && !Compression.NONE.equals(codec)){
+            try {
+                if (!this.reader.worthCompressing(handle, this.position)){
+                    codec = Compression.NONE;
+                }
+            } catch (IOException e) {
+                System.err.println("server: error sampling file " + e);
+                codec = Compression.NONE;
+            }
+        }
+        this.codec = codec;
+        return codec;
+    }
+
+    @Override
+    public synchronized String prefixDigest() throws RemoteException {
+        FileHandleCache.Handle handle = this.handle;
+        if (handle == null){
+            return null;
+        }
+        return this.lane.run(this.start, () -> {
+            try {
+                MessageDigest sha256 = handle.sha256(this.start);
+                String prefix = ContentChunker.hex(((MessageDigest) sha256.clone()).digest());
+
+                // a resumed upload goes on hashing from the end of the bytes it already has
+                if (this.upload && this.digest == null){
+                    this.digest = new StreamDigest(sha256, this.start, DIGEST_PENDING);
+                }
+                return prefix;
+            } catch (IOException | CloneNotSupportedException e) {
+                System.err.println("server: error hashing " + this.path + " " + e);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public synchronized byte[] read() throws RemoteException {
+        byte[] buffer = read(this.position);
+        if (buffer != null){
+            this.position += buffer.length;
+        }
+        return buffer;
+    }
+
+    @Override
+    public synchronized boolean write(byte[] buffer, int bytes) throws RemoteException {
+        boolean written = write(this.position, buffer, bytes);
+        if (written){
+            this.position += bytes;
+        }
+        return written;
+    }
+
+    @Override
+    public byte[] read(long offset) throws RemoteException {
+        FileHandleCache.Handle handle = this.handle;
+        if (this.upload || handle == null){
+            return null;
+        }
+        return this.lane.run(this.chunkSize, () -> {
+            try {
+                return this.reader.read(handle, offset, this.chunkSize).bytes();
+            } catch (IOException e) {
+                System.err.println("server: error reading file " + e);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Chunk readChunk(long offset, int length) throws RemoteException {
+        FileHandleCache.Handle handle = this.handle;
+        if (this.upload || handle == null){
+            return null;
+        }
+        int bytes = Math.min(length, this.chunkSize);
+        return this.lane.run(bytes, () -> {
+            try {
+                return this.reader.read(handle, offset, bytes, this.codec);
+            } catch (IOException e) {
+                System.err.println("server: error reading file " + e);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean write(long offset, byte[] buffer, int bytes) throws RemoteException {
+        FileHandleCache.Handle handle = this.handle;
+        if (!this.upload || handle == null || !within(offset, bytes) || bytes > buffer.length){
+            return false;
+        }
+        return this.lane.run(bytes, () -> {
+            try {
+                if (this.buffered != null){
+                    this.buffered.write(offset, buffer, bytes);
+                }
+                else{
+                    ByteBuffer source = ByteBuffer.wrap(buffer, 0, bytes);
+                    for (long position = offset; source.hasRemaining(); ){
+                        position += handle.channel().write(source, position);
+                    }
+                    this.durability.written(handle.channel(), bytes);
+                }
+                StreamDigest digest = this.digest;
+                if (digest != null){
+                    digest.update(offset, buffer, bytes);
+                }
+                received(offset, bytes);
+                return true;
+            } catch (IOException e) {
+                System.err.println("server: error writing to file " + e);
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public boolean writeZeros(long offset, int length) throws RemoteException {
+        FileHandleCache.Handle handle = this.handle;
+        if (!this.upload || handle == null || !within(offset, length) || offset + length > this.expected){
+            return false;
+        }
+        try {
+            // the file was grown past the range when the upload was opened, the range already reads as zeros
+            if (this.buffered != null){
+                this.buffered.skip(offset, length);
+            }
+            StreamDigest digest = this.digest;
+            if (digest != null){
+                for (int done = 0; done < length; done += ZEROS.length){
+                    digest.update(offset + done, ZEROS, Math.min(ZEROS.length, length - done));
+                }
+            }
+            received(offset, length);
+            return true;
+        } catch (IOException e) {
+            System.err.println("server: error writing to file " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Check that a range may be written, the bytes before the start of the upload were already verified,
+     * and an upload that announced its length does not write past it
+     */
+    private boolean within(long offset, int length){
+        if (offset < this.start || length < 0){
+            return false;
+        }
+        return this.expected <= this.start || offset + length <= this.expected;
+    }
+
+    /**
+     * Record that a range of an upload arrived
+     */
+    private void received(long offset, long length){
+        synchronized (this.ahead){
+            long end = offset + length;
+            if (offset > this.contiguous){
+                this.ahead.merge(offset, end, Math::max);
+                return;
+            }
+            this.contiguous = Math.max(this.contiguous, end);
+            Map.Entry<Long, Long> next;
+            while ((next = this.ahead.firstEntry()) != null && next.getKey() <= this.contiguous){
+                this.ahead.pollFirstEntry();
+                this.contiguous = Math.max(this.contiguous, next.getValue());
+            }
+        }
+    }
+
+    @Override
+    public boolean writeChunk(long offset, Chunk chunk) throws RemoteException {
+        try {
+            byte[] bytes = chunk.bytes();
+            return write(offset, bytes, bytes.length);
+        } catch (IOException e) {
+            System.err.println("server: error reading chunk " + e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized long close() throws RemoteException {
+        long length = -1;
+        if (this.handle != null){
+            try {
+                // an upload is acknowledged once its bytes are written and as durable as the policy asks
+                if (this.buffered != null){
+                    this.buffered.finish();
+                }
+                if (this.upload){
+                    // an unfinished upload keeps what arrived in order, the rest is sent again when it is resumed
+                    synchronized (this.ahead){
+                        if (this.contiguous < this.handle.size()){
+                            this.handle.truncate(this.contiguous);
+                        }
+                    }
+                    this.durability.commit(this.handle.channel());
+                    if (this.grown){
+                        this.pending.finish(Paths.get(this.path));
+                    }
+                }
+                length = this.handle.size();
+                storeDigest(length);
+            } catch (IOException e) {
+                System.err.println("server: error closing transfer of " + this.path + " " + e);
+            }
+            this.handles.release(this.handle);
+            this.handle = null;
+            if (this.upload){
+                this.metadata.finishWriting(this.path);
+                // an upload that starts a file is reported as created, a resumed one as modified once it added bytes
+                if (this.start == 0 || this.contiguous > this.start){
+                    this.changes.changed(this.path, (this.start == 0) ? ChangeBatch.CREATED : ChangeBatch.MODIFIED);
+                }
+                this.locks.unclaim(this.path);
+            }
+            else{
+                this.locks.unshare(this.path);
+            }
+        }
+        this.lane.close();
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // already unexported
+        }
+        return length;
+    }
+
+    /**
+     * Keep the digest of a finished upload so it does not have to be computed when the file is asked for
+     */
+    private void storeDigest(long length) throws IOException {
+        StreamDigest digest = this.digest;
+        if (!this.upload || digest == null || this.digests == null){
+            return;
+        }
+        Path file = Paths.get(this.path);
+        String sha256 = digest.digest(length);
+        if (sha256 != null){
+            this.digests.put(file, sha256);
+        }
+        else{
+            this.digests.forget(file);
+        }
+    }
+
+    /**
+     * Called by RMI once no client holds a reference to this session
+     */
+    @Override
+    public void unreferenced() {
+        try {
+            close();
+        } catch (RemoteException e) {
+            System.err.println("server: error releasing transfer of " + this.path + " " + e);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind buffering of uploads
+ * the chunks of an upload are copied into a buffer of bufferSize bytes as they arrive,
+ * a full buffer is written to the file in one positional write by a background thread while the next one fills,
+ * so the disk sees a few large sequential writes instead of one small write per chunk
+ * (the buffers of one upload are written in order, different uploads are written by different threads at once)
+ * - chunks that arrive ahead of the buffer (uploads keep several chunks in flight) wait next to it until the gap is filled,
+ *   up to maxBuffers buffers' worth
+ * - at most maxBuffers buffers of an upload wait to be written, a chunk arriving past that waits for the disk
+ * - a failed write is reported by the next chunk of the upload, or when it is finished
+ * - the Durability policy is told about every write, the caller commits the finished upload with it
+ */
+public class WriteBehind {
+
+    /**
+     * Buffered writes of one upload, the upload must be the only writer of its file
+     */
+    public class Upload {
+        private final FileChannel channel;
+        private ByteBuffer buffer; // bytes not handed to the writer yet, null until the next chunk
+        private long bufferStart; // position in the file of the buffer's first byte
+        private final TreeMap<Long, Ahead> early = new TreeMap<>(); // chunks that arrived ahead of the buffer, by position
+        private long earlyBytes = 0;
+        private final ArrayDeque<Write> queue = new ArrayDeque<>(); // buffers handed to the writer, in file order
+        private boolean flushing = false; // true while a writer thread works through the queue
+        private int pending = 0; // buffers handed to the writer and not written yet
+        private IOException failure; // first write that failed
+        private boolean closed = false;
+
+        private Upload(FileChannel channel, long start){
+            this.channel = channel;
+            this.bufferStart = start;
+        }
+
+        /**
+         * Buffer the bytes of a chunk
+         * @param offset position in the file of the first byte
+         * @param bytes bytes of the chunk, copied before the call returns
+         * @param length number of bytes
+         * @throws IOException if an earlier write of the upload failed, or the upload is finished
+         */
+        public synchronized void write(long offset, byte[] bytes, int length) throws IOException {
+            check();
+            awaitRoom();
+            long end = end();
+            if (offset == end){
+                append(bytes, 0, length);
+                drainEarly();
+            }
+            else if (offset > end && this.earlyBytes + length <= (long) WriteBehind.this.bufferSize * WriteBehind.this.maxBuffers){
+                hold(offset, new Ahead(Arrays.copyOf(bytes, length), length));
+            }
+            else {
+                // a chunk sent again, or too far ahead, is written on its own after everything buffered before it
+                handOff();
+                handOffEarly();
+                submit(ByteBuffer.wrap(Arrays.copyOf(bytes, length)), offset, false);
+                this.bufferStart = Math.max(end, offset + length);
+            }
+            check();
+        }
+
+        /**
+         * Leave a range of the file unwritten, used for ranges of zeros of an upload into a file that was already grown past them
+         * @param offset position in the file of the first byte
+         * @param length number of bytes
+         * @throws IOException if an earlier write of the upload failed, or the upload is finished
+         */
+        public synchronized void skip(long offset, int length) throws IOException {
+            check();
+            long end = end();
+            if (offset == end){
+                handOff();
+                this.bufferStart = offset + length;
+                drainEarly();
+            }
+            else if (offset > end){
+                hold(offset, new Ahead(null, length));
+            }
+        }
+
+        /**
+         * Write every buffered byte, called before the upload is acknowledged (the caller then commits the file with the Durability policy)
+         * @throws IOException if a write failed
+         */
+        public synchronized void finish() throws IOException {
+            check();
+            handOff();
+            handOffEarly();
+            awaitWritten();
+            check();
+            this.closed = true;
+        }
+
+        /**
+         * @return position in the file after the last byte that is buffered in order
+         */
+        private long end(){
+            return this.bufferStart + ((this.buffer == null) ? 0 : this.buffer.position());
+        }
+
+        private void append(byte[] bytes, int from, int length) throws IOException {
+            while (length > 0){
+                if (this.buffer == null){
+                    this.buffer = WriteBehind.this.pool.acquire(WriteBehind.this.bufferSize);
+                }
+                int size = Math.min(length, this.buffer.remaining());
+                this.buffer.put(bytes, from, size);
+                from += size;
+                length -= size;
+                if (!this.buffer.hasRemaining()){
+                    handOff();
+                }
+            }
+        }
+
+        private void hold(long offset, Ahead ahead){
+            Ahead replaced = this.early.put(offset, ahead);
+            this.earlyBytes += ahead.held() - ((replaced == null) ? 0 : replaced.held());
+        }
+
+        private void drainEarly() throws IOException {
+            Map.Entry<Long, Ahead> next;
+            while ((next = this.early.firstEntry()) != null && next.getKey() <= end()){
+                this.early.remove(next.getKey());
+                Ahead ahead = next.getValue();
+                this.earlyBytes -= ahead.held();
+                long skip = end() - next.getKey();
+                if (skip >= ahead.length){
+                    continue;
+                }
+                if (ahead.bytes == null){
+                    handOff();
+                    this.bufferStart = next.getKey() + ahead.length;
+                }
+                else{
+                    append(ahead.bytes, (int) skip, ahead.length - (int) skip);
+                }
+            }
+        }
+
+        /**
+         * Give the buffer to the writer, must be called while holding the upload's lock
+         */
+        private void handOff(){
+            if (this.buffer == null){
+                return;
+            }
+            ByteBuffer full = this.buffer;
+            long position = this.bufferStart;
+            this.bufferStart += full.position();
+            this.buffer = null;
+            full.flip();
+            if (!full.hasRemaining()){
+                WriteBehind.this.pool.release(full);
+                return;
+            }
+            submit(full, position, true);
+        }
+
+        /**
+         * Give the chunks waiting ahead of the buffer to the writer as they are
+         */
+        private void handOffEarly(){
+            for (Map.Entry<Long, Ahead> entry : this.early.entrySet()){
+                if (entry.getValue().bytes != null){
+                    submit(ByteBuffer.wrap(entry.getValue().bytes), entry.getKey(), false);
+                }
+            }
+            this.early.clear();
+            this.earlyBytes = 0;
+        }
+
+        /**
+         * Queue bytes to be written, must be called while holding the upload's lock
+         */
+        private void submit(ByteBuffer bytes, long position, boolean pooled){
+            this.queue.add(new Write(bytes, position, pooled));
+            this.pending++;
+            WriteBehind.this.queued.incrementAndGet();
+            if (!this.flushing){
+                this.flushing = true;
+                WriteBehind.this.writer.execute(this::flush);
+            }
+        }
+
+        /**
+         * Write the queued buffers to the file one after the other, run by a writer thread
+         * the buffers of an upload are written in order, so a crash leaves the file without holes
+         */
+        private void flush(){
+            while (true){
+                Write write;
+                boolean failed;
+                synchronized (this){
+                    write = this.queue.poll();
+                    if (write == null){
+                        this.flushing = false;
+                        return;
+                    }
+                    failed = this.failure != null;
+                }
+
+                IOException failure = null;
+                int length = write.bytes.remaining();
+                try {
+                    // once a write failed the rest are dropped, the upload is reported as failed
+                    for (long position = write.position; !failed && write.bytes.hasRemaining(); ){
+                        position += this.channel.write(write.bytes, position);
+                    }
+                    if (!failed){
+                        WriteBehind.this.durability.written(this.channel, length);
+                        WriteBehind.this.written.addAndGet(length);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    if (write.pooled){
+                        WriteBehind.this.pool.release(write.bytes);
+                    }
+                    WriteBehind.this.queued.decrementAndGet();
+                }
+
+                synchronized (this){
+                    if (failure != null && this.failure == null){
+                        this.failure = failure;
+                    }
+                    this.pending--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait while too many buffers of the upload are queued, before the upload's state is changed
+         */
+        private void awaitRoom() throws IOException {
+            try {
+                while (this.pending >= WriteBehind.this.maxBuffers && this.failure == null){
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the disk", e);
+            }
+        }
+
+        private void awaitWritten() throws IOException {
+            try {
+                while (this.pending > 0){
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the disk", e);
+            }
+        }
+
+        private void check() throws IOException {
+            if (this.failure != null){
+                throw new IOException("buffered write failed", this.failure);
+            }
+            if (this.closed){
+                throw new IOException("upload is finished");
+            }
+        }
+    }
+
+    /**
+     * A chunk that arrived ahead of the buffer, or a range to skip
+     */
+    private static class Ahead {
+        private final byte[] bytes; // null for a range that is skipped
+        private final int length;
+
+        Ahead(byte[] bytes, int length){
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        int held(){
+            return (this.bytes == null) ? 0 : this.length;
+        }
+    }
+
+    /**
+     * Bytes waiting to be written at a position
+     */
+    private static class Write {
+        private final ByteBuffer bytes;
+        private final long position;
+        private final boolean pooled; // true if the bytes go back to the pool once written
+
+        Write(ByteBuffer bytes, long position, boolean pooled){
+            this.bytes = bytes;
+            this.position = position;
+            this.pooled = pooled;
+        }
+    }
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final BufferPool pool;
+    private final Durability durability;
+    private final ExecutorService writer;
+    private final AtomicInteger queued = new AtomicInteger(); // buffers waiting to be written
+    private final AtomicLong written = new AtomicLong(); // bytes written so far
+
+    /**
+     * @param bufferSize bytes of an upload gathered into one write
+     * @param maxBuffers most buffers of an upload waiting to be written
+     * @param threads number of threads writing buffers
+     * @param durability policy told about every write
+     */
+    public WriteBehind(int bufferSize, int maxBuffers, int threads, Durability durability){
+        this.bufferSize = Math.max(1, bufferSize);
+        this.maxBuffers = Math.max(1, maxBuffers);
+        this.durability = durability;
+        this.pool = new BufferPool(Math.max(1, threads * this.maxBuffers));
+        AtomicInteger count = new AtomicInteger();
+        this.writer = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "write-behind-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start buffering an upload
+     * @param channel channel of the file, only written by the upload until it is finished
+     * @param start position in the file of the upload's first byte
+     * @return buffer of the upload
+     */
+    public Upload open(FileChannel channel, long start){
+        return new Upload(channel, start);
+    }
+
+    /**
+     * @return number of buffers waiting to be written
+     */
+    public int queued(){
+        return this.queued.get();
+    }
+
+    /**
+     * @return number of bytes written by the background threads
+     */
+    public long written(){
+        return this.written.get();
+    }
+
+    /**
+     * Write what is queued and stop the background threads, called before the files are closed
+     * waits for the queued writes for at most closeMillis, writes still queued after that are dropped
+     * @param closeMillis longest time to wait for the queued writes
+     */
+    public void close(long closeMillis){
+        this.writer.shutdown();
+        try {
+            if (!this.writer.awaitTermination(closeMillis, TimeUnit.MILLISECONDS)){
+                System.err.println("server: " + this.queued.get() + " buffered writes were not written in time");
+                this.writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.writer.shutdownNow();
+        }
+    }
+}
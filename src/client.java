@@ -1,12 +1,41 @@
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.rmi.Naming;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class client {
     
@@ -27,15 +56,15 @@ public class client {
         }
 
         // check that the command is supported and the correct number of arguments was provided 
-        if (args[0].equals("shutdown")){
+        if (args[0].equals("shutdown") || args[0].equals("stats")){
             if (args.length > 1){
-                System.err.println("client: the \"shutdown\" command does not take any arguments!");
+                System.err.println("client: the \"" + args[0] + "\" command does not take any arguments!");
                 return false;
             }
         }
-        else if (args[0].equals("dir")){ 
+        else if (args[0].equals("dir") || args[0].equals("tree") || args[0].equals("watch")){ 
             if (args.length > 2){
-                System.err.println("client: the \"dir\" command takes a maximum of 1 argument!");
+                System.err.println("client: the \"" + args[0] + "\" command takes a maximum of 1 argument!");
                 return false;
             }
         }
@@ -51,6 +80,18 @@ public class client {
                 return false;
             }
         }
+        else if (args[0].equals("sync-up") || args[0].equals("sync-down")){
+            if (args.length != 3){
+                System.err.println("client: the \"" + args[0] + "\" command takes exactly 2 argument!");
+                return false;
+            }
+        }
+        else if (args[0].equals("session")){
+            if (args.length > 2){
+                System.err.println("client: the \"session\" command takes a maximum of 1 argument!");
+                return false;
+            }
+        }
         else{ // all other commands are not supported 
             System.err.println("client: command not supported!");
             return false;
@@ -59,6 +100,53 @@ public class client {
         return true;
     }
 
+    private static final List<String> OPTIONS = Arrays.asList("chunk-size", "compress", "cache", "cache-size"); // options supported by every command
+
+    /**
+     * Separate options ("--name=value") from the command and its arguments 
+     * @param args arguements from main 
+     * @param options map that the options are put in
+     * @return the command and its arguments, null if an option is not supported or has no value
+     */
+    private static String[] parseOptions(String[] args, Map<String, String> options) {
+        List<String> command = new ArrayList<>();
+        for (String arg : args){
+            if (!arg.startsWith("--")){
+                command.add(arg);
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            String name = (equals < 0) ? arg.substring(2) : arg.substring(2, equals);
+            if (equals < 0 || !OPTIONS.contains(name)){
+                System.err.println("client: option " + arg + " not supported! (supported options: --" + String.join("=<value> --", OPTIONS) + "=<value>)");
+                return null;
+            }
+            options.put(name, arg.substring(equals + 1));
+        }
+        return command.toArray(new String[0]);
+    }
+
+    /**
+     * Get an option that holds a number
+     * @param options parsed options
+     * @param name name of the option
+     * @param defaultValue value used when the option is not given
+     * @return value of the option
+     */
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("client: option --" + name + " needs a number!");
+            System.exit(1);
+            return defaultValue;
+        }
+    }
+
     /**
      * Alter paths that start at the root directory (/) to start from the current working directory (./) instead
      * @param path path to be altered 
@@ -72,11 +160,66 @@ public class client {
     }
     //-------------------------------------------------- Client Methods & Variables --------------------------------------------------
     private FileSharingInterface FSI;
+    private int chunkSize = 0; // fixed chunk size given with --chunk-size, 0 to adapt the chunk size during each transfer
+    private TransferParams params; // asked for on the first transfer and kept for the rest of the session
+    private DownloadCache cache; // local copies of downloaded files given with --cache, null if downloads are not cached
+    private String compression = Compression.NONE; // codec given with --compress, used if the server supports it and the data compresses
+    private static final int WINDOW = Math.max(1, Integer.getInteger("pa2.window", 8)); // chunk requests kept in flight per transfer
+    private static final int STREAMS = Math.max(1, Integer.getInteger("pa2.streams", 4)); // ranges fetched in parallel for large downloads
+    private static final long DELTA_THRESHOLD = Long.getLong("pa2.deltaThreshold", 1024 * 1024); // smallest server copy worth sending changes against
+    private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("pa2.batchSize", 1000)); // metadata commands sent per batch in a session
+    private static final int PAGE_SIZE = Math.max(1, Integer.getInteger("pa2.pageSize", 1000)); // directory entries fetched per call
+    private static final long WATCH_MILLIS = Long.getLong("pa2.watch.millis", 30000); // longest a watch waits for changes in one call
+    private static final long PARALLEL_THRESHOLD = Long.getLong("pa2.parallelThreshold", 64L * 1024 * 1024); // smallest file split into ranges
+    private static final long DIGEST_PENDING = Long.getLong("pa2.digest.maxPending", 64L * 1024 * 1024); // most bytes of a split download held to be hashed in order
+    private static final int MAX_RANGES = Math.max(1, Integer.getInteger("pa2.ranges.max", 256)); // most ranges a download is split into
+    private static final int SYNC_WORKERS = Math.max(1, Integer.getInteger("pa2.sync.workers", 8)); // files synced at once
+    private static final long SMALL_FILE = Long.getLong("pa2.sync.smallFile", 64 * 1024); // largest file synced whole in a batch
+    private static final long SYNC_BATCH_BYTES = Long.getLong("pa2.sync.batchBytes", 4L * 1024 * 1024); // most bytes of small files per batch
+    private static final int BUSY_RETRIES = Math.max(1, Integer.getInteger("pa2.busyRetries", 50)); // tries of a call the server keeps turning away as busy
+    private static final boolean SPARSE = Boolean.parseBoolean(System.getProperty("pa2.sparse", "true")); // skip chunks of zeros on upload
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    /**
+     * Moves a single chunk of a transfer
+     */
+    private interface ChunkTask {
+        /**
+         * @param offset position of the first byte of the chunk
+         * @param length number of bytes in the chunk
+         * @return number of bytes that were moved
+         * @throws IOException if the chunk could not be moved
+         */
+        int transfer(long offset, int length) throws IOException;
+    }
+
+    /**
+     * A call to the server that may be turned away while the server is busy
+     */
+    private interface RemoteCall<T> {
+        /**
+         * @return what the server returned
+         * @throws IOException if the call failed
+         */
+        T call() throws IOException;
+    }
+
+    /**
+     * Told every time a transfer moves forward
+     */
+    private interface ChunkProgress {
+        /**
+         * @param done offset up to which every byte has been moved
+         * @throws IOException if the progress could not be recorded
+         */
+        void update(long done) throws IOException;
+    }
     
     public client(String host, String port){
         try {
-            this.FSI = (FileSharingInterface) Naming.lookup("rmi://localhost:8000" + "/file-sharing");
-        } catch (MalformedURLException | RemoteException | NotBoundException e) {
+            Registry registry = LocateRegistry.getRegistry(host, Integer.parseInt(port), Sockets.fromProperties().client());
+            this.FSI = (FileSharingInterface) registry.lookup("file-sharing");
+        } catch (NumberFormatException | RemoteException | NotBoundException e) {
             System.err.println("client: cannot connect to server (" + e + ")");
             System.exit(1);
         }
@@ -93,32 +236,109 @@ public class client {
     }
 
     /**
-     * Asks server for the content of a directory 
+     * Print the server's metrics
+     * @return true if successful, false otherwise
+     */
+    private boolean stats() {
+        try {
+            System.out.print(this.FSI.stats());
+            return true;
+        } catch (RemoteException e) {
+            System.err.println("client: error getting stats (" + e + ")");
+            return false;
+        }
+    }
+
+    /**
+     * Asks server for the content of a directory, the names are fetched and printed a page at a time
      * @param path server's filepath to the directory 
      * @return true if successful, false otherwise
      */
     public boolean dir(String path){
-        String[] contents = null;
+        return list("dir", path, false);
+    }
 
+    /**
+     * Asks server for everything under a directory and prints the length, modification time and path of every entry
+     * @param path server's filepath to the directory 
+     * @return true if successful, false otherwise
+     */
+    public boolean tree(String path){
+        return list("tree", path, true);
+    }
+
+    /**
+     * Wait for changes under a directory on the server and print them as they come, until the server goes away
+     * @param path server's filepath to the directory 
+     * @return false once the server cannot be reached
+     */
+    public boolean watch(String path){
+        String shown = path.startsWith(".") ? path.substring(1) : path;
+        shown = shown.endsWith("/") ? shown : shown + "/";
+        long version = 0;
         try {
-            contents = this.FSI.dir(path);
-        } catch (RemoteException e) {
-            System.err.println("client: dir error (" + e + ")");
-        }
+            while (true){
+                final long since = version;
+                ChangeBatch changes = retrying(() -> this.FSI.waitForChanges(path, since, WATCH_MILLIS));
 
-        // contents will be null if directory does not exists 
-        if (contents == null){
-            System.err.println("dir: no such directory");
+                // the first call only gets the current version, a reset after that means changes were missed
+                if (changes.reset() && since != 0){
+                    System.out.println("reset: changes were missed, list the directory again");
+                }
+                for (int i=0; i<changes.size(); i++){
+                    System.out.println(String.format("%-8s  %s", changes.kind(i), changes.name(i).equals(".") ? shown : shown + changes.name(i)));
+                }
+                version = changes.version();
+            }
+        } catch (IOException e) {
+            System.err.println("client: watch error (" + e + ")");
             return false;
         }
-        else{ 
-            if (contents.length == 0){
+    }
+
+    /**
+     * Page through a directory listing and print it
+     * @param command name of the command, used in messages
+     * @param path server's filepath to the directory 
+     * @param recursive true to list the whole tree with attributes, false to only print the names in the directory
+     * @return true if successful, false otherwise
+     */
+    private boolean list(String command, String path, boolean recursive){
+        try {
+            DirectoryPage page = recursive ? this.FSI.listTree(path, null, PAGE_SIZE) : this.FSI.listDir(path, null, PAGE_SIZE);
+
+            // page will be null if directory does not exists 
+            if (page == null){
+                System.err.println(command + ": no such directory");
+                return false;
+            }
+            if (page.size() == 0){
                 System.out.println("<Empty Directory>");
             }
-            for (int i=0; i<contents.length; i++){
-                System.out.println(contents[i]);
+            while (true){
+                for (int i=0; i<page.size(); i++){
+                    if (recursive){
+                        FileAttributes attributes = page.attributes(i);
+                        System.out.println(String.format("%12s  %tF %<tR  %s", attributes.isDirectory() ? "-" : Long.toString(attributes.length()), 
+                            attributes.lastModified(), attributes.isDirectory() ? page.name(i) + "/" : page.name(i)));
+                    }
+                    else{
+                        System.out.println(page.name(i));
+                    }
+                }
+                if (page.cursor() == null){
+                    return true;
+                }
+                String cursor = page.cursor();
+                page = recursive ? this.FSI.listTree(path, cursor, PAGE_SIZE) : this.FSI.listDir(path, cursor, PAGE_SIZE);
+                if (page == null){
+                    System.err.println(command + ": the server closed the listing of " + path + " before it was complete");
+                    return false;
+                }
             }
-            return true;
+        } catch (RemoteException e) {
+            System.err.println("client: " + command + " error (" + e + ")");
+            return false;
         }
     }
 
@@ -128,19 +348,12 @@ public class client {
      * @return true if successful, false otherwise
      */
     public boolean mkdir(String path){
-        boolean OK = false;
         try{
-            OK = this.FSI.mkdir(path);
-            if (OK){
-                System.out.println("mkdir: new directory created at " + path);
-            }
-            else{
-                System.err.println("mkdir: " + path + " is an invalid path or directory already exists");
-            }
+            return report(new BatchOp(BatchOp.MKDIR, path), new BatchResult(this.FSI.mkdir(path), -1, null));
         } catch (RemoteException e) {
             System.err.println("client: mkdir error (" + e + ")");
+            return false;
         }
-        return OK;
     }
 
     /**
@@ -149,19 +362,12 @@ public class client {
      * @return true if successful, false otherwise
      */
     public boolean rmdir(String path){
-        boolean OK = false;
         try{
-            OK = this.FSI.rmdir(path);
-            if (OK){
-                System.out.println("rmdir: " + path + " is removed");
-            }
-            else{
-                System.err.println("rmdir: " + path + " is an invalid path, not a directory, or is not empty");
-            }
+            return report(new BatchOp(BatchOp.RMDIR, path), new BatchResult(this.FSI.rmdir(path), -1, null));
         } catch (RemoteException e) {
             System.err.println("client: rmdir error (" + e + ")");
+            return false;
         }
-        return OK;
     }
 
     /**
@@ -170,21 +376,154 @@ public class client {
      * @return true if successful, false otherwise
      */
     public boolean rm(String path){
-        boolean OK = false;
         try{
-            OK = this.FSI.rm(path);
-            if (OK){
-                System.out.println("rm: " + path + " is removed");
-            }
-            else{
-                System.err.println("rm: " + path + " is an invalid path or not a file");
-            }
+            return report(new BatchOp(BatchOp.RM, path), new BatchResult(this.FSI.rm(path), -1, null));
         } catch (RemoteException e) {
             System.err.println("client: rm error (" + e + ")");
+            return false;
+        }
+    }
+
+    /**
+     * Print the outcome of a dir / mkdir / rmdir / rm command
+     * @param op the command
+     * @param result what the server answered
+     * @return true if the command succeeded, false otherwise
+     */
+    private static boolean report(BatchOp op, BatchResult result){
+        String path = op.path();
+        switch (op.command()){
+            case BatchOp.DIR:
+                // contents will be null if directory does not exists 
+                if (!result.ok()){
+                    System.err.println("dir: no such directory");
+                    break;
+                }
+                String[] contents = result.entries();
+                if (contents.length == 0){
+                    System.out.println("<Empty Directory>");
+                }
+                for (int i=0; i<contents.length; i++){
+                    System.out.println(contents[i]);
+                }
+                break;
+            case BatchOp.MKDIR:
+                if (result.ok()){
+                    System.out.println("mkdir: new directory created at " + path);
+                }
+                else{
+                    System.err.println("mkdir: " + path + " is an invalid path or directory already exists");
+                }
+                break;
+            case BatchOp.RMDIR:
+                if (result.ok()){
+                    System.out.println("rmdir: " + path + " is removed");
+                }
+                else{
+                    System.err.println("rmdir: " + path + " is an invalid path, not a directory, or is not empty");
+                }
+                break;
+            case BatchOp.RM:
+                if (result.ok()){
+                    System.out.println("rm: " + path + " is removed");
+                }
+                else{
+                    System.err.println("rm: " + path + " is an invalid path or not a file");
+                }
+                break;
+        }
+        return result.ok();
+    }
+
+    /**
+     * Run commands read from a script or typed in one after the other, all through the same connection to the server
+     * consecutive dir / mkdir / rmdir / rm commands are sent to the server together in a single batch
+     * blank lines and lines starting with # are skipped, "exit" ends the session
+     * @param script path to the file holding the commands, null to read them from standard input
+     * @return true if every command succeeded, false otherwise
+     */
+    public boolean session(String script){
+        boolean interactive = (script == null && System.console() != null);
+        boolean OK = true;
+        List<BatchOp> pending = new ArrayList<>();
+
+        try (BufferedReader input = new BufferedReader((script == null) ? new InputStreamReader(System.in) : new FileReader(script))){
+            while (true){
+                if (interactive){
+                    System.out.print("pa2> ");
+                    System.out.flush();
+                }
+                String line = input.readLine();
+                if (line == null){
+                    break;
+                }
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                if (line.equals("exit") || line.equals("quit")){
+                    break;
+                }
+
+                String[] args = line.split("\\s+");
+                if (!checkCommand(args)){
+                    OK = false;
+                    continue;
+                }
+                if (args[0].equals("session")){
+                    System.err.println("client: sessions cannot be nested!");
+                    OK = false;
+                    continue;
+                }
+
+                // metadata commands are held back and sent together, anything else runs after them
+                if (BatchOp.batchable(args[0])){
+                    pending.add(new BatchOp(args[0], sanitizePath((args.length == 1) ? "/" : args[1])));
+                    if (interactive || pending.size() >= BATCH_SIZE){
+                        OK &= runBatch(pending);
+                    }
+                }
+                else{
+                    OK &= runBatch(pending);
+                    OK &= execute(args);
+                }
+            }
+            OK &= runBatch(pending);
+        } catch (IOException e) {
+            System.err.println("client: session error (" + e + ")");
+            return false;
         }
         return OK;
     }
 
+    /**
+     * Send pending metadata commands to the server in a single batch and print their results
+     * @param pending commands to send, cleared once they are sent
+     * @return true if every command succeeded, false otherwise
+     */
+    private boolean runBatch(List<BatchOp> pending){
+        if (pending.isEmpty()){
+            return true;
+        }
+        boolean OK = true;
+        try {
+            List<BatchResult> results = this.FSI.batch(pending);
+            if (results == null){
+                System.err.println("client: server refused a batch of " + pending.size() + " commands");
+                return false;
+            }
+            for (int i=0; i<pending.size(); i++){
+                OK &= report(pending.get(i), results.get(i));
+            }
+            return OK;
+        } catch (RemoteException e) {
+            System.err.println("client: batch error (" + e + ")");
+            return false;
+        } finally {
+            pending.clear();
+        }
+    }
+
     /**
      * Upload a file to the server 
      * @param clientPath path to the client file 
@@ -193,6 +532,7 @@ public class client {
      */
     public boolean upload(String clientPath, String serverPath){
         Boolean OK = false;
+        FileAttributes attributes;
 
         try {
 
@@ -202,44 +542,110 @@ public class client {
                 System.err.println("upload: client path " + clientPath + " is invalid or not a file");
             }
 
-            // check that the server's filepath is valid 
-            else if (!this.FSI.filepathValid(serverPath)){
+            // check that the server's filepath is valid, the same call tells how much of the file the server already has
+            else if (!(attributes = this.FSI.stat(serverPath)).writable()){
                 System.err.println("upload: server path " + serverPath + " is invalid");
             }
 
             else{
-            
-                FileInputStream fileInputStream = new FileInputStream(clientFile);
-
-                int bytes = 0; // number of bytes that was read from the file 
-                byte[] buffer = new byte[1024]; // buffer to hold the bytes that was read
+                TransferParams params = params();
 
+                // servers that deduplicate only need the chunks they do not hold yet
+                if (params.deduplication()){
+                    return uploadDeduplicated(clientFile, serverPath);
+                }
+            
                 // skip the bytes the server already has
-                long bytesUploaded = this.FSI.getFileLength(serverPath); // the number of bytes the server has recieved 
+                long bytesUploaded = attributes.length(); // the number of bytes the server has recieved 
                 if (bytesUploaded > 0 && bytesUploaded < clientFile.length()){
-                    fileInputStream.skip(bytesUploaded); // skip the bytes the server already has
                     System.out.println("upload: resuming upload");
                 }
 
+                // send only the changes if the server has an older copy that is large enough to be worth it
+                else if (bytesUploaded >= clientFile.length() && bytesUploaded >= DELTA_THRESHOLD){
+                    return uploadDelta(clientFile, serverPath, bytesUploaded);
+                }
+
                 // overwrite the file if the length is equal or greater 
-                else if (bytesUploaded >= clientFile.length()){ 
+                else if (attributes.isFile() && bytesUploaded >= clientFile.length()){ 
                    this.FSI.rm(serverPath);
                    bytesUploaded = 0;
                 }
 
                 System.out.println("upload: " + Long.toString(bytesUploaded) + " / " + Long.toString(clientFile.length())); // print the progress
                 
-                bytes = fileInputStream.read(buffer); 
-                while (bytesUploaded != clientFile.length()){
-                    if (this.FSI.write(serverPath, buffer, bytes)){
-                        bytesUploaded += bytes;
-                        System.out.println("upload: " + Long.toString(bytesUploaded) + " / " + Long.toString(clientFile.length())); // print the progress
-                        bytes = fileInputStream.read(buffer);
+                // a resumed upload only continues if the server's partial copy matches the start of the client file
+                StreamDigest digest = new StreamDigest(hashPrefix(clientFile, bytesUploaded), bytesUploaded, Long.MAX_VALUE);
+                RemoteTransfer transfer = retrying(() -> this.FSI.openUpload(serverPath, clientFile.length(), requestedChunkSize(params)));
+                if (transfer != null && bytesUploaded > 0 && !digest.current().equals(transfer.prefixDigest())){
+                    System.out.println("upload: the server's partial copy does not match " + clientPath + ", starting over");
+                    transfer.close();
+                    this.FSI.rm(serverPath);
+                    bytesUploaded = 0;
+                    digest = new StreamDigest(ContentChunker.sha256(), 0, Long.MAX_VALUE);
+                    transfer = retrying(() -> this.FSI.openUpload(serverPath, clientFile.length(), requestedChunkSize(params)));
+                }
+                if (transfer == null){
+                    System.err.println("upload: server could not open " + serverPath);
+                    return false;
+                }
+                final RemoteTransfer opened = transfer;
+                final StreamDigest hashed = digest;
+
+                // read each chunk from its offset in the client file and write it to the same offset on the server
+                FileChannel fileChannel = FileChannel.open(clientFile.toPath(), StandardOpenOption.READ);
+                long stored = -1; // length of the server's file once every byte is written, -1 if the server could not write it
+                try {
+                    // only compress if a sample of the file compresses well
+                    String codec = Compression.NONE;
+                    if (!Compression.NONE.equals(this.compression) && params.codecs().contains(this.compression)){
+                        ByteBuffer sample = ByteBuffer.allocate(Compression.SAMPLE_SIZE);
+                        fileChannel.read(sample, bytesUploaded);
+                        sample.flip();
+                        if (Compression.worthCompressing(sample)){
+                            codec = useCompression("upload", opened);
+                        }
                     }
+                    final boolean deflate = Compression.DEFLATE.equals(codec);
+
+                    bytesUploaded = pipeline("upload", bytesUploaded, clientFile.length(), chunkSizer(params, opened), printProgress("upload", clientFile.length()), (offset, length) -> {
+                        byte[] buffer = new byte[length];
+                        ByteBuffer target = ByteBuffer.wrap(buffer);
+                        while (target.hasRemaining()){
+                            if (fileChannel.read(target, offset + target.position()) < 0){
+                                break;
+                            }
+                        }
+                        // chunks of zeros are not sent, they stay holes in the server's file (sparse files stay sparse)
+                        if (SPARSE && target.position() == length && isZeros(buffer, length)){
+                            if (!opened.writeZeros(offset, length)){
+                                return -1;
+                            }
+                        }
+
+                        // chunks carry their CRC32C, the file is hashed as it is read
+                        else{
+                            Chunk chunk = Chunk.wrap(buffer, target.position());
+                            if (!opened.writeChunk(offset, deflate ? chunk.deflate(null) : chunk)){
+                                return -1;
+                            }
+                        }
+                        hashed.update(offset, buffer, target.position());
+                        return target.position();
+                    });
+                } finally {
+                    fileChannel.close();
+                    stored = opened.close();
                 }
 
-                fileInputStream.close();
-                OK = true;
+                // the server writes the chunks behind, closing tells whether they all reached the file
+                OK = (bytesUploaded == clientFile.length() && stored == clientFile.length());
+                if (!OK){
+                    System.err.println("upload: server could not write to " + serverPath);
+                }
+                else{
+                    OK = verify("upload", serverPath, hashed.digest(bytesUploaded));
+                }
             }
         } catch (IOException e) {
             System.err.println("client: upload error (" + e + ")");
@@ -247,8 +653,152 @@ public class client {
         return OK;
     }
 
+    /**
+     * Upload only the parts of a file that differ from the server's copy
+     * the server sends the checksums of the blocks of its copy, the client sends the blocks it can reuse and the bytes in between,
+     * and the server rebuilds the file next to its copy and swaps it in once everything arrived
+     * @param clientFile file to upload
+     * @param serverPath path to the file on the server
+     * @param serverLength length of the server's copy
+     * @return true if successful, false otherwise
+     * @throws IOException if the file could not be read or the server could not be reached
+     */
+    private boolean uploadDelta(File clientFile, String serverPath, long serverLength) throws IOException {
+        int blockSize = FileSignature.blockSize(serverLength);
+        FileSignature signature = retrying(() -> this.FSI.getSignature(serverPath, blockSize));
+        RemoteDelta delta = (signature == null) ? null : retrying(() -> this.FSI.openDelta(serverPath, blockSize));
+        if (delta == null){
+            System.err.println("upload: server could not open " + serverPath);
+            return false;
+        }
+        System.out.println("upload: sending changes against the server's copy");
+
+        DeltaEncoder encoder = new DeltaEncoder(signature, TransferParams.DEFAULT_CHUNK_SIZE);
+        MessageDigest sha256 = ContentChunker.sha256(); // the file is hashed while it is scanned
+        try (InputStream fileInputStream = new DigestInputStream(new FileInputStream(clientFile), sha256)){
+            encoder.encode(fileInputStream, (ops, scanned) -> {
+                if (!delta.apply(ops)){
+                    throw new IOException("server could not apply the changes to " + serverPath);
+                }
+                System.out.println("upload: " + Long.toString(scanned) + " / " + Long.toString(clientFile.length())); // print the progress
+            });
+        } catch (IOException e) {
+            delta.abort();
+            throw e;
+        }
+
+        long length = delta.commit();
+        if (length != clientFile.length()){
+            System.err.println("upload: server could not write to " + serverPath);
+            return false;
+        }
+        System.out.println("upload: sent " + encoder.literalBytes() + " changed bytes, reused " + encoder.copiedBytes() + " bytes of the server's copy");
+        return verify("upload", serverPath, ContentChunker.hex(sha256.digest()));
+    }
+
+    /**
+     * Upload a file to a server that deduplicates, only chunks the server does not hold yet are sent
+     * the file is split into content-defined chunks, the server is asked which of them it is missing,
+     * the missing chunks are sent in parallel and the file is committed as the list of its chunks
+     * @param clientFile file to upload
+     * @param serverPath path to the file on the server
+     * @return true if successful, false otherwise
+     * @throws IOException if the file could not be read or the server could not be reached
+     */
+    private boolean uploadDeduplicated(File clientFile, String serverPath) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        Map<String, Long> offsets = new HashMap<>(); // where each distinct chunk is in the client file
+        Map<String, Integer> chunkLengths = new HashMap<>();
+        MessageDigest sha256 = ContentChunker.sha256(); // the file is hashed while it is split
+        try (InputStream fileInputStream = new DigestInputStream(new FileInputStream(clientFile), sha256)){
+            ContentChunker.split(fileInputStream, (offset, length, hash) -> {
+                hashes.add(hash);
+                lengths.add(length);
+                offsets.putIfAbsent(hash, offset);
+                chunkLengths.putIfAbsent(hash, length);
+            });
+        }
+
+        // find the chunks the server does not hold yet (each one is only sent once)
+        Map<String, Integer> missing = new LinkedHashMap<>();
+        for (String hash : this.FSI.missingChunks(hashes)){
+            missing.put(hash, chunkLengths.get(hash));
+        }
+        long newBytes = 0;
+        for (int length : missing.values()){
+            newBytes += length;
+        }
+        System.out.println("upload: " + missing.size() + " of " + hashes.size() + " chunks are not on the server yet");
+
+        long total = clientFile.length();
+        long[] uploaded = {total - newBytes};
+        System.out.println("upload: " + Long.toString(uploaded[0]) + " / " + Long.toString(total)); // print the progress
+
+        ExecutorService pool = Executors.newFixedThreadPool(WINDOW);
+        FileChannel fileChannel = FileChannel.open(clientFile.toPath(), StandardOpenOption.READ);
+        boolean deflate = Compression.DEFLATE.equals(this.compression);
+        ArrayDeque<Future<Boolean>> results = new ArrayDeque<>();
+        try {
+            for (Map.Entry<String, Integer> entry : missing.entrySet()){
+                String hash = entry.getKey();
+                int length = entry.getValue();
+                long offset = offsets.get(hash);
+                results.add(pool.submit(() -> {
+                    byte[] buffer = new byte[length];
+                    ByteBuffer target = ByteBuffer.wrap(buffer);
+                    while (target.hasRemaining()){
+                        if (fileChannel.read(target, offset + target.position()) < 0){
+                            throw new IOException("client file changed during upload");
+                        }
+                    }
+                    Chunk chunk = Chunk.wrap(buffer, length);
+                    Chunk sent = deflate ? chunk.deflate(null) : chunk;
+                    if (!retrying(() -> this.FSI.putChunk(hash, sent))){
+                        return false;
+                    }
+                    synchronized (uploaded){
+                        uploaded[0] += length;
+                        System.out.println("upload: " + Long.toString(uploaded[0]) + " / " + Long.toString(total)); // print the progress
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results){
+                if (!result.get()){
+                    System.err.println("upload: server could not store a chunk of " + serverPath);
+                    return false;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            // chunks that were not started are dropped, the ones being read finish before the file is closed
+            for (Future<Boolean> result : results){
+                result.cancel(false);
+            }
+            pool.shutdown();
+            awaitTermination(pool);
+            fileChannel.close();
+        }
+
+        if (!this.FSI.commitManifest(serverPath, new Manifest(hashes, lengths))){
+            System.err.println("upload: server could not write to " + serverPath);
+            return false;
+        }
+        System.out.println("upload: sent " + newBytes + " bytes, reused " + (total - newBytes) + " bytes already on the server");
+        return verify("upload", serverPath, ContentChunker.hex(sha256.digest()));
+    }
+
     private boolean download(String serverPath, String clientPath) {
         Boolean Ok = false;
+        FileAttributes attributes;
 
         try{
 
@@ -259,36 +809,24 @@ public class client {
             }
 
             // check that the server's filepath is valid 
-            else if (!this.FSI.fileExists(serverPath)) {
+            else if (!(attributes = this.FSI.stat(serverPath)).isFile()) {
                 System.err.println("download: server path " + serverPath + " is invalid or not a file");
             }
 
-            else{
-                FileOutputStream fileOutputStream;
-
-                long fileSize = this.FSI.getFileLength(serverPath); 
-                long bytesDownloaded = clientFile.length();
-            
-                // check if we need to resume download 
-                if (clientFile.exists() && clientFile.length() < fileSize){
-                    fileOutputStream = new FileOutputStream(clientFile, true);
-                    System.out.println("download: resuming download");
-                }
-                else{
-                    bytesDownloaded = 0;
-                    fileOutputStream = new FileOutputStream(clientFile);
-                }
+            // files that did not change since they were cached are copied from the cache
+            else if (this.cache != null && this.cache.restore(serverPath, attributes, clientFile.toPath())){
+                System.out.println("download: " + serverPath + " has not changed, copied from the cache");
+                Files.deleteIfExists(DownloadProgress.sidecar(clientFile));
+                Ok = true;
+            }
 
-                System.out.println("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize));
+            else{
+                Ok = fetch(serverPath, clientFile, attributes.length());
 
-                while(bytesDownloaded != fileSize){
-                    byte[] buffer = this.FSI.read(serverPath, bytesDownloaded);
-                    fileOutputStream.write(buffer);
-                    bytesDownloaded += buffer.length;
-                    System.out.println("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize));
+                // the file is only cached if it did not change while it was downloaded
+                if (Ok && this.cache != null){
+                    this.cache.store(serverPath, attributes, this.FSI.stat(serverPath), clientFile.toPath());
                 }
-    
-                fileOutputStream.close();
             }
         }
         catch (IOException e) {
@@ -298,11 +836,838 @@ public class client {
         return Ok;
     }
 
+    /**
+     * Download a file, resuming from a shorter copy of it on the client
+     * @param serverPath path to the file on the server
+     * @param clientFile file to download into
+     * @param fileSize length of the server's file
+     * @return true if successful, false otherwise
+     * @throws IOException if the file could not be written or the server could not be reached
+     */
+    private boolean fetch(String serverPath, File clientFile, long fileSize) throws IOException {
+        // large files (and downloads that were split before) are fetched as parallel ranges
+        DownloadProgress progress = DownloadProgress.load(clientFile, fileSize);
+        if (progress != null || (STREAMS > 1 && fileSize >= PARALLEL_THRESHOLD)){
+            return downloadRanges(serverPath, clientFile, fileSize, progress);
+        }
+
+        long bytesDownloaded = clientFile.length();
+        FileChannel fileChannel;
+    
+        // check if we need to resume download 
+        if (clientFile.exists() && clientFile.length() < fileSize){
+            fileChannel = FileChannel.open(clientFile.toPath(), StandardOpenOption.WRITE);
+            System.out.println("download: resuming download");
+        }
+        else{
+            bytesDownloaded = 0;
+            fileChannel = FileChannel.open(clientFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        System.out.println("download: " + Long.toString(bytesDownloaded) + " / " + Long.toString(fileSize));
+
+        TransferParams params = params();
+        final long resumeFrom = bytesDownloaded;
+        RemoteTransfer transfer = retrying(() -> this.FSI.openDownload(serverPath, resumeFrom, requestedChunkSize(params)));
+        if (transfer == null){
+            System.err.println("download: server could not open " + serverPath);
+            fileChannel.close();
+            return false;
+        }
+
+        // a resumed download only continues if the client's partial copy matches the start of the server's file
+        StreamDigest digest = new StreamDigest(hashPrefix(clientFile, bytesDownloaded), bytesDownloaded, Long.MAX_VALUE);
+        if (bytesDownloaded > 0 && !digest.current().equals(transfer.prefixDigest())){
+            System.out.println("download: " + clientFile + " does not match the server's copy, starting over");
+            transfer.close();
+            fileChannel.truncate(0);
+            bytesDownloaded = 0;
+            digest = new StreamDigest(ContentChunker.sha256(), 0, Long.MAX_VALUE);
+            transfer = retrying(() -> this.FSI.openDownload(serverPath, 0, requestedChunkSize(params)));
+            if (transfer == null){
+                System.err.println("download: server could not open " + serverPath);
+                fileChannel.close();
+                return false;
+            }
+        }
+        final RemoteTransfer opened = transfer;
+        final StreamDigest hashed = digest;
+
+        // chunks may arrive in any order, each one is written to its own offset in the client file
+        try {
+            if (!Compression.NONE.equals(this.compression) && params.codecs().contains(this.compression)){
+                useCompression("download", opened);
+            }
+            bytesDownloaded = pipeline("download", bytesDownloaded, fileSize, chunkSizer(params, opened), printProgress("download", fileSize), (offset, length) -> {
+                Chunk chunk = opened.readChunk(offset, length);
+                if (chunk == null){
+                    return -1;
+                }
+                // chunks are checked against their CRC32C, the file is hashed as it arrives
+                byte[] buffer = chunk.bytes();
+                ByteBuffer source = ByteBuffer.wrap(buffer);
+                while (source.hasRemaining()){
+                    fileChannel.write(source, offset + source.position());
+                }
+                hashed.update(offset, buffer, buffer.length);
+                return source.position();
+            });
+        } finally {
+            opened.close();
+            fileChannel.close();
+        }
+
+        boolean Ok = (bytesDownloaded == fileSize);
+        if (!Ok){
+            System.err.println("download: server stopped sending " + serverPath);
+        }
+        else if (!verify("download", serverPath, hashed.digest(fileSize))){
+            Files.deleteIfExists(clientFile.toPath());
+            Ok = false;
+        }
+        return Ok;
+    }
+
+    /**
+     * Download a file as several byte ranges that are fetched at the same time
+     * the client file is preallocated to its full length and every range writes straight to its own offsets,
+     * the progress of each range is saved so that a resumed download only fetches the missing bytes
+     * the file is split into more ranges than are fetched at once and STREAMS workers take them in file order,
+     * so the ranges in flight stay close to the hashed prefix and the file is hashed as the chunks arrive,
+     * chunks too far ahead of the prefix (and bytes from an earlier run) are read back from the file once the prefix reaches them
+     * @param serverPath path to the file on the server
+     * @param clientFile file to download into
+     * @param fileSize length of the server's file
+     * @param progress saved progress of an earlier attempt, null to start a new split download
+     * @return true if successful, false otherwise
+     * @throws IOException if a range failed with a communication or file error
+     */
+    private boolean downloadRanges(String serverPath, File clientFile, long fileSize, DownloadProgress progress) throws IOException {
+        if (progress != null){
+            System.out.println("download: resuming download");
+        }
+        else{
+            // keep the bytes of an earlier download that was not split
+            long start = (clientFile.exists() && clientFile.length() < fileSize) ? clientFile.length() : 0;
+            if (start > 0){
+                System.out.println("download: resuming download");
+            }
+            progress = splitRanges(clientFile, start, fileSize);
+        }
+
+        // every range reads through the same download, its reads may be issued concurrently
+        // it is opened at the end of the contiguous bytes the client has, so the server hashes that prefix
+        TransferParams params = params();
+        final long prefix = progress.contiguous();
+        RemoteTransfer transfer = retrying(() -> this.FSI.openDownload(serverPath, prefix, requestedChunkSize(params)));
+        if (transfer == null){
+            System.err.println("download: server could not open " + serverPath);
+            return false;
+        }
+
+        // a resumed download only continues if the client's partial copy matches the start of the server's file
+        MessageDigest prefixHash = hashPrefix(clientFile, prefix);
+        if (prefix > 0 && !new StreamDigest(prefixHash, prefix, 0).current().equals(transfer.prefixDigest())){
+            System.out.println("download: " + clientFile + " does not match the server's copy, starting over");
+            transfer.close();
+            progress.delete();
+            try (FileChannel truncated = FileChannel.open(clientFile.toPath(), StandardOpenOption.WRITE)){
+                truncated.truncate(0);
+            }
+            progress = splitRanges(clientFile, 0, fileSize);
+            prefixHash = ContentChunker.sha256();
+            transfer = retrying(() -> this.FSI.openDownload(serverPath, 0, requestedChunkSize(params)));
+            if (transfer == null){
+                System.err.println("download: server could not open " + serverPath);
+                return false;
+            }
+        }
+        final DownloadProgress ranges = progress;
+        final RemoteTransfer opened = transfer;
+        final ChunkSizer sizer = chunkSizer(params, opened);
+        if (!Compression.NONE.equals(this.compression) && params.codecs().contains(this.compression)){
+            useCompression("download", opened);
+        }
+
+        System.out.println("download: " + Long.toString(ranges.completed()) + " / " + Long.toString(fileSize));
+
+        FileChannel fileChannel = FileChannel.open(clientFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(STREAMS, ranges.ranges()));
+
+        // the verified prefix is already hashed, other bytes kept from an earlier run are hashed from the file once the prefix reaches them
+        StreamDigest hashed = new StreamDigest(prefixHash, ranges.contiguous(), DIGEST_PENDING, fileChannel);
+        for (int i=0; i<ranges.ranges(); i++){
+            hashed.inFile(ranges.start(i), ranges.done(i) - ranges.start(i));
+        }
+        try {
+            // preallocate the client file so every range can write to its own offsets
+            if (fileChannel.size() > fileSize){
+                fileChannel.truncate(fileSize);
+            }
+            else if (fileChannel.size() < fileSize){
+                fileChannel.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+            ranges.save();
+
+            ArrayDeque<Future<Long>> results = new ArrayDeque<>();
+            for (int i=0; i<ranges.ranges(); i++){
+                final int range = i;
+                results.add(pool.submit(() -> pipeline("download-" + range, ranges.done(range), ranges.end(range), sizer, 
+                    done -> {
+                        ranges.advance(range, done);
+                        System.out.println("download: " + Long.toString(ranges.completed()) + " / " + Long.toString(fileSize)); // print the progress
+                    }, 
+                    (offset, length) -> {
+                        Chunk chunk = opened.readChunk(offset, length);
+                        if (chunk == null){
+                            return -1;
+                        }
+                        byte[] buffer = chunk.bytes();
+                        ByteBuffer source = ByteBuffer.wrap(buffer);
+                        while (source.hasRemaining()){
+                            fileChannel.write(source, offset + source.position());
+                        }
+                        hashed.update(offset, buffer, buffer.length);
+                        return buffer.length;
+                    })));
+            }
+
+            // wait for every range
+            for (Future<Long> result : results){
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // the ranges only wait for their chunks, interrupting them stops their pipelines,
+            // which wait for the chunks being written before they return, so nothing writes to the file once it is closed
+            pool.shutdownNow();
+            awaitTermination(pool);
+            fileChannel.close();
+            opened.close();
+        }
+
+        if (ranges.completed() != fileSize){
+            System.err.println("download: server stopped sending " + serverPath + ", run the download again to resume");
+            return false;
+        }
+        ranges.delete();
+
+        // the file is only read again if it could not be read back while it was hashed
+        String sha256 = hashed.digest(fileSize);
+        if (sha256 == null){
+            sha256 = ContentChunker.hex(hashPrefix(clientFile, fileSize).digest());
+        }
+        if (!verify("download", serverPath, sha256)){
+            Files.deleteIfExists(clientFile.toPath());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Split the missing bytes of a download into ranges small enough that the STREAMS ranges in flight fit in the bytes held for hashing
+     */
+    private static DownloadProgress splitRanges(File clientFile, long start, long fileSize){
+        long rangeSize = Math.max(1, DIGEST_PENDING / (2L * STREAMS));
+        return DownloadProgress.split(clientFile, start, fileSize, (int) Math.max(STREAMS, Math.min(MAX_RANGES, (fileSize - start) / rangeSize)));
+    }
+
+    /**
+     * Make a directory on the server hold the same files as a directory on the client
+     * both trees are listed once, then only the files that are new or whose length or modification time changed are sent
+     * files of up to SMALL_FILE bytes are sent whole, many per call, larger files are uploaded one at a time,
+     * SYNC_WORKERS of these run at once, nothing is removed from the server
+     * @param clientPath path to the client's directory
+     * @param serverPath path to the server's directory, made if it does not exist
+     * @return true if every directory and file was synced, false otherwise
+     */
+    public boolean syncUp(String clientPath, String serverPath){
+        try {
+            File clientDir = new File(clientPath);
+            if (!clientDir.isDirectory()){
+                System.err.println("sync-up: client path " + clientPath + " is invalid or not a directory");
+                return false;
+            }
+            Map<String, FileAttributes> remote = serverTree(serverPath);
+            if (remote == null){
+                if (!this.FSI.mkdir(serverPath)){
+                    System.err.println("sync-up: server path " + serverPath + " is invalid or not a directory");
+                    return false;
+                }
+                remote = new HashMap<>();
+            }
+            Map<String, BasicFileAttributes> local = clientTree(clientDir.toPath());
+
+            // compare the trees, parents sort before their children so directories are made in order
+            List<String> directories = new ArrayList<>();
+            Map<String, Long> lengths = new HashMap<>();
+            List<String> small = new ArrayList<>();
+            List<String> large = new ArrayList<>();
+            for (Map.Entry<String, BasicFileAttributes> entry : local.entrySet()){
+                FileAttributes attributes = remote.get(entry.getKey());
+                BasicFileAttributes file = entry.getValue();
+                if (file.isDirectory()){
+                    if (attributes == null){
+                        directories.add(entry.getKey());
+                    }
+                }
+                else if (attributes == null || attributes.length() != file.size() || attributes.lastModified() < file.lastModifiedTime().toMillis()){
+                    ((file.size() <= SMALL_FILE) ? small : large).add(entry.getKey());
+                    lengths.put(entry.getKey(), file.size());
+                }
+            }
+
+            boolean OK = true;
+            List<BatchOp> pending = new ArrayList<>();
+            for (int i=0; i<directories.size(); i++){
+                pending.add(new BatchOp(BatchOp.MKDIR, serverPath + "/" + directories.get(i)));
+                if (pending.size() >= BATCH_SIZE || i == directories.size() - 1){
+                    List<BatchResult> results = batch(pending);
+                    for (int j=0; j<results.size(); j++){
+                        if (!results.get(j).ok()){
+                            System.err.println("sync-up: could not make directory " + pending.get(j).path());
+                            OK = false;
+                        }
+                    }
+                    pending.clear();
+                }
+            }
+
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (List<String> group : groups(small, lengths)){
+                tasks.add(() -> {
+                    List<BatchOp> puts = new ArrayList<>();
+                    for (String name : group){
+                        byte[] bytes = Files.readAllBytes(clientDir.toPath().resolve(name));
+                        puts.add(new BatchOp(BatchOp.PUT, serverPath + "/" + name, Chunk.wrap(bytes, bytes.length)));
+                    }
+                    boolean sent = true;
+                    List<BatchResult> results = batch(puts);
+                    for (int i=0; i<results.size(); i++){
+                        if (!results.get(i).ok()){
+                            System.err.println("sync-up: server could not write to " + puts.get(i).path());
+                            sent = false;
+                        }
+                    }
+                    return sent;
+                });
+            }
+            for (String name : large){
+                tasks.add(() -> upload(new File(clientDir, name).getPath(), serverPath + "/" + name));
+            }
+            OK &= runAll(tasks);
+
+            System.out.println("sync-up: " + directories.size() + " directories made, " + (small.size() + large.size()) + " files sent, " 
+                + (local.size() - directories.size() - small.size() - large.size()) + " unchanged");
+            return OK;
+        } catch (IOException e) {
+            System.err.println("client: sync-up error (" + e + ")");
+            return false;
+        }
+    }
+
+    /**
+     * Make a directory on the client hold the same files as a directory on the server
+     * both trees are listed once, then only the files that are new or whose length or modification time changed are fetched
+     * files of up to SMALL_FILE bytes are fetched whole, many per call, larger files are downloaded one at a time,
+     * SYNC_WORKERS of these run at once, nothing is removed from the client
+     * @param serverPath path to the server's directory
+     * @param clientPath path to the client's directory, made if it does not exist
+     * @return true if every directory and file was synced, false otherwise
+     */
+    public boolean syncDown(String serverPath, String clientPath){
+        try {
+            Map<String, FileAttributes> remote = serverTree(serverPath);
+            if (remote == null){
+                System.err.println("sync-down: server path " + serverPath + " is invalid or not a directory");
+                return false;
+            }
+            Path clientDir = new File(clientPath).toPath();
+            if (Files.exists(clientDir) && !Files.isDirectory(clientDir)){
+                System.err.println("sync-down: client path " + clientPath + " is not a directory");
+                return false;
+            }
+            Files.createDirectories(clientDir);
+            Map<String, BasicFileAttributes> local = clientTree(clientDir);
+
+            // compare the trees, parents sort before their children so directories are made in order
+            Map<String, FileAttributes> sorted = new TreeMap<>(remote);
+            Map<String, Long> lengths = new HashMap<>();
+            int directories = 0;
+            List<String> small = new ArrayList<>();
+            List<String> large = new ArrayList<>();
+            for (Map.Entry<String, FileAttributes> entry : sorted.entrySet()){
+                BasicFileAttributes file = local.get(entry.getKey());
+                FileAttributes attributes = entry.getValue();
+                if (attributes.isDirectory()){
+                    if (file == null){
+                        Files.createDirectories(clientDir.resolve(entry.getKey()));
+                        directories++;
+                    }
+                }
+                else if (attributes.isFile() && (file == null || file.size() != attributes.length() || file.lastModifiedTime().toMillis() < attributes.lastModified())){
+                    ((attributes.length() <= SMALL_FILE) ? small : large).add(entry.getKey());
+                    lengths.put(entry.getKey(), attributes.length());
+                }
+            }
+
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (List<String> group : groups(small, lengths)){
+                tasks.add(() -> {
+                    List<BatchOp> gets = new ArrayList<>();
+                    for (String name : group){
+                        gets.add(new BatchOp(BatchOp.GET, serverPath + "/" + name));
+                    }
+                    boolean fetched = true;
+                    List<BatchResult> results = batch(gets);
+                    for (int i=0; i<results.size(); i++){
+                        File clientFile = clientDir.resolve(group.get(i)).toFile();
+                        // the file may have grown or be uploaded to since it was listed, it is downloaded on its own
+                        if (!results.get(i).ok()){
+                            fetched &= download(gets.get(i).path(), clientFile.getPath());
+                        }
+                        else{
+                            Files.write(clientFile.toPath(), results.get(i).data().bytes());
+                        }
+                    }
+                    return fetched;
+                });
+            }
+            for (String name : large){
+                tasks.add(() -> download(serverPath + "/" + name, clientDir.resolve(name).toString()));
+            }
+            boolean OK = runAll(tasks);
+
+            System.out.println("sync-down: " + directories + " directories made, " + (small.size() + large.size()) + " files fetched, " 
+                + (remote.size() - directories - small.size() - large.size()) + " unchanged");
+            return OK;
+        } catch (IOException e) {
+            System.err.println("client: sync-down error (" + e + ")");
+            return false;
+        }
+    }
+
+    /**
+     * List everything under a directory on the server, a page at a time
+     * @param path server's filepath to the directory
+     * @return attributes of every entry keyed by its path relative to the directory, null if the directory does not exist
+     * @throws IOException if the server could not be reached or closed the listing before it was complete
+     */
+    private Map<String, FileAttributes> serverTree(String path) throws IOException {
+        Map<String, FileAttributes> tree = new HashMap<>();
+        DirectoryPage page = this.FSI.listTree(path, null, PAGE_SIZE);
+        if (page == null){
+            return null;
+        }
+        while (true){
+            for (int i=0; i<page.size(); i++){
+                tree.put(page.name(i), page.attributes(i));
+            }
+            if (page.cursor() == null){
+                return tree;
+            }
+            page = this.FSI.listTree(path, page.cursor(), PAGE_SIZE);
+            if (page == null){
+                throw new IOException("the server closed the listing of " + path + " before it was complete");
+            }
+        }
+    }
+
+    /**
+     * List everything under a directory on the client
+     * @param root the directory
+     * @return attributes of every entry keyed by its path relative to the directory (separated by /), sorted so parents come first
+     * @throws IOException if the directory could not be read
+     */
+    private static Map<String, BasicFileAttributes> clientTree(Path root) throws IOException {
+        Map<String, BasicFileAttributes> tree = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes){
+                if (!directory.equals(root)){
+                    tree.put(name(directory), attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes){
+                if (attributes.isRegularFile()){
+                    tree.put(name(file), attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String name(Path entry){
+                List<String> names = new ArrayList<>();
+                for (Path name : root.relativize(entry)){
+                    names.add(name.toString());
+                }
+                return String.join("/", names);
+            }
+        });
+        return tree;
+    }
+
+    /**
+     * Split small files into groups sent in one batch each, of at most BATCH_SIZE files and SYNC_BATCH_BYTES bytes
+     * @param names files to split
+     * @param lengths length of every file
+     * @return the groups
+     */
+    private static List<List<String>> groups(List<String> names, Map<String, Long> lengths){
+        List<List<String>> groups = new ArrayList<>();
+        List<String> group = new ArrayList<>();
+        long bytes = 0;
+        for (String name : names){
+            long length = lengths.get(name);
+            if (!group.isEmpty() && (group.size() >= BATCH_SIZE || bytes + length > SYNC_BATCH_BYTES)){
+                groups.add(group);
+                group = new ArrayList<>();
+                bytes = 0;
+            }
+            group.add(name);
+            bytes += length;
+        }
+        if (!group.isEmpty()){
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    /**
+     * Send operations to the server in a single batch, waiting while the server is busy
+     * @param ops operations to run
+     * @return one result per operation
+     * @throws IOException if the server could not be reached or refused the batch
+     */
+    private List<BatchResult> batch(List<BatchOp> ops) throws IOException {
+        List<BatchResult> results = retrying(() -> this.FSI.batch(ops));
+        if (results == null){
+            throw new IOException("server refused a batch of " + ops.size() + " operations");
+        }
+        return results;
+    }
+
+    /**
+     * Run tasks on SYNC_WORKERS threads and wait for all of them
+     * @param tasks tasks to run, a task that throws is reported and counts as failed
+     * @return true if every task succeeded, false otherwise
+     */
+    private static boolean runAll(List<Callable<Boolean>> tasks){
+        boolean OK = true;
+        ExecutorService pool = Executors.newFixedThreadPool(SYNC_WORKERS);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (Callable<Boolean> task : tasks){
+                results.add(pool.submit(task));
+            }
+            for (Future<Boolean> result : results){
+                try {
+                    OK &= result.get();
+                } catch (ExecutionException e) {
+                    System.err.println("client: sync error (" + e.getCause() + ")");
+                    OK = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            OK = false;
+        } finally {
+            pool.shutdownNow();
+        }
+        return OK;
+    }
+
+    /**
+     * Check if the start of a buffer only holds zeros
+     * @param buffer buffer to check
+     * @param length number of bytes to check
+     * @return true if every byte is zero
+     */
+    private static boolean isZeros(byte[] buffer, int length){
+        for (int from = 0; from < length; from += ZEROS.length){
+            int size = Math.min(ZEROS.length, length - from);
+            if (Arrays.mismatch(buffer, from, from + size, ZEROS, 0, size) >= 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash the start of a client file
+     * @param file client file
+     * @param length number of bytes to hash
+     * @return SHA-256 digest that hashed the first length bytes, can be updated with the bytes that follow
+     * @throws IOException if the file could not be read or is shorter than length
+     */
+    private static MessageDigest hashPrefix(File file, long length) throws IOException {
+        MessageDigest sha256 = ContentChunker.sha256();
+        if (length == 0){
+            return sha256;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            for (long position = 0; position < length; ){
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                int bytes = channel.read(buffer, position);
+                if (bytes < 0){
+                    throw new IOException(file + " is shorter than " + length + " bytes");
+                }
+                buffer.flip();
+                sha256.update(buffer);
+                position += bytes;
+            }
+        }
+        return sha256;
+    }
+
+    /**
+     * Check the client's copy of a file against the server's copy once a transfer is done
+     * the server keeps the digests of its files, so this only hashes the server's copy if it changed since it was last hashed
+     * @param command name of the command used when printing errors
+     * @param serverPath path to the file on the server
+     * @param digest SHA-256 of the client's copy (lowercase hex), null if it could not be computed
+     * @return true if both copies have the same SHA-256, false otherwise
+     * @throws IOException if the server could not be reached
+     */
+    private boolean verify(String command, String serverPath, String digest) throws IOException {
+        FileAttributes attributes = retrying(() -> this.FSI.stat(serverPath, true));
+        if (digest != null && attributes != null && digest.equals(attributes.digest())){
+            return true;
+        }
+        System.err.println(command + ": SHA-256 of " + serverPath + " differs between the client and the server");
+        return false;
+    }
+
+    /**
+     * Get the chunk sizes the server is willing to use, they are only asked for once per client
+     * @return chunk sizes, codecs and features of the server
+     * @throws RemoteException remote communication exception
+     */
+    private TransferParams params() throws RemoteException {
+        if (this.params == null){
+            this.params = this.FSI.getTransferParams();
+        }
+        return this.params;
+    }
+
+    /**
+     * Get the chunk size to ask for when opening a transfer
+     * @param params chunk sizes the server is willing to use
+     * @return the fixed chunk size, or the server's largest chunk size so the transfer has room to adapt
+     */
+    private int requestedChunkSize(TransferParams params){
+        return (this.chunkSize > 0) ? this.chunkSize : params.maxChunkSize();
+    }
+
+    /**
+     * Get the chunk sizer for an open transfer
+     * @param params chunk sizes the server is willing to use
+     * @param transfer open transfer
+     * @return sizer that keeps the fixed chunk size, or adapts it starting from the server's default
+     * @throws RemoteException remote communication exception
+     */
+    private ChunkSizer chunkSizer(TransferParams params, RemoteTransfer transfer) throws RemoteException {
+        int limit = transfer.chunkSize();
+        if (this.chunkSize > 0){
+            return new ChunkSizer(limit, limit, limit, false);
+        }
+        return new ChunkSizer(params.minChunkSize(), limit, params.defaultChunkSize(), true);
+    }
+
+    /**
+     * Ask the server to compress the chunks of a transfer with the codec given with --compress
+     * @param command name of the command used when printing
+     * @param transfer open transfer
+     * @return codec the server agreed to use
+     * @throws RemoteException remote communication exception
+     */
+    private String useCompression(String command, RemoteTransfer transfer) throws RemoteException {
+        String codec = transfer.useCompression(this.compression);
+        if (!Compression.NONE.equals(codec)){
+            System.out.println(command + ": compressing with " + codec);
+        }
+        return codec;
+    }
+
+    /**
+     * Get a progress listener that prints the progress of a transfer
+     * @param command name of the command used when printing progress
+     * @param end offset after the last byte of the transfer
+     * @return progress listener
+     */
+    private static ChunkProgress printProgress(String command, long end){
+        return done -> System.out.println(command + ": " + Long.toString(done) + " / " + Long.toString(end));
+    }
+
+    /**
+     * Move the bytes between two offsets in chunks, keeping up to WINDOW chunks in flight at once
+     * progress is only counted for chunks that completed in order, so the return value is always a safe point to resume from
+     * @param command name of the command used when printing progress
+     * @param start offset of the first byte to move
+     * @param end offset after the last byte to move
+     * @param sizer picks the size of each chunk and is told how long each chunk took
+     * @param progress told every time the transfer moves forward
+     * @param task moves a single chunk
+     * @return offset up to which every chunk was moved successfully
+     * @throws IOException if a chunk failed with a communication or file error
+     */
+    private static long pipeline(String command, long start, long end, ChunkSizer sizer, ChunkProgress progress, ChunkTask task) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(WINDOW, r -> {
+            Thread thread = new Thread(r, command);
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<Integer>> window = new ArrayDeque<>();
+        ArrayDeque<Integer> lengths = new ArrayDeque<>();
+        long done = start; // every byte before this offset has been moved
+        long next = start; // offset of the next chunk to schedule
+
+        try {
+            while (done < end){
+
+                // keep the window full
+                while (next < end && window.size() < WINDOW){
+                    final long offset = next;
+                    final int length = (int) Math.min(sizer.next(), end - next);
+                    window.add(pool.submit(() -> {
+                        long started = System.nanoTime();
+                        int bytes = retrying(() -> task.transfer(offset, length));
+                        if (bytes == length){
+                            sizer.record(bytes, System.nanoTime() - started);
+                        }
+                        else{
+                            sizer.failed();
+                        }
+                        return bytes;
+                    }));
+                    lengths.add(length);
+                    next += length;
+                }
+
+                // wait for the oldest chunk
+                int bytes = window.remove().get();
+                if (bytes != lengths.remove()){
+                    break;
+                }
+                done += bytes;
+                progress.update(done);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // chunks that were not started are dropped, the ones in flight are not interrupted (an interrupted
+            // FileChannel call closes the channel) but waited for, so none of them writes after the caller closes or truncates the file
+            for (Future<Integer> chunk : window){
+                chunk.cancel(false);
+            }
+            pool.shutdown();
+            awaitTermination(pool);
+        }
+        return done;
+    }
+
+    /**
+     * Wait until every task of a pool that was shut down has finished, an interrupt is kept for the caller but does not cut the wait short
+     */
+    private static void awaitTermination(ExecutorService pool){
+        boolean interrupted = false;
+        while (true){
+            try {
+                if (pool.awaitTermination(1, TimeUnit.MINUTES)){
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Make a call, waiting and trying again as long as the server says it is busy
+     * the wait is the delay the server asked for plus up to half of it again, so turned away clients do not all come back at once
+     * @param call the call
+     * @return what the server returned
+     * @throws IOException if the call failed, or the server was still busy after BUSY_RETRIES tries
+     */
+    private static <T> T retrying(RemoteCall<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++){
+            try {
+                return call.call();
+            } catch (RemoteException e) {
+                ServerBusyException busy = ServerBusyException.from(e);
+                if (busy == null || attempt >= BUSY_RETRIES){
+                    throw e;
+                }
+                long delay = busy.retryAfterMillis();
+                try {
+                    Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for a busy server");
+                }
+            }
+        }
+    }
+
     //-------------------------------------------------- Main Method --------------------------------------------------
+    /**
+     * Run a single command
+     * @param args the command and its arguments, already checked by checkCommand
+     * @return true if successful, false otherwise
+     */
+    private boolean execute(String[] args){
+        switch(args[0]){
+            case "shutdown":
+                return shutdownServer();
+            case "stats":
+                return stats();
+            case "dir":
+                return (args.length == 1) ? dir(sanitizePath("/")) : dir(sanitizePath(args[1])); 
+            case "tree":
+                return (args.length == 1) ? tree(sanitizePath("/")) : tree(sanitizePath(args[1])); 
+            case "watch":
+                return (args.length == 1) ? watch(sanitizePath("/")) : watch(sanitizePath(args[1])); 
+            case "mkdir":
+                return mkdir(sanitizePath(args[1]));
+            case "rmdir":
+                return rmdir(sanitizePath(args[1]));
+            case "rm":
+                return rm(sanitizePath(args[1]));
+            case "upload":
+                return upload(sanitizePath(args[1]), sanitizePath(args[2]));
+            case "download":
+                return download(sanitizePath(args[1]), sanitizePath(args[2]));
+            case "sync-up":
+                return syncUp(sanitizePath(args[1]), sanitizePath(args[2]));
+            case "sync-down":
+                return syncDown(sanitizePath(args[1]), sanitizePath(args[2]));
+        }
+        return false;
+    }
+
     public static void main(String[] args) {
 
         // check that the command is valid and the correct number of arguments are provided
-        if (!checkCommand(args)){
+        Map<String, String> options = new HashMap<>();
+        args = parseOptions(args, options);
+        if (args == null || !checkCommand(args)){
             System.exit(1);
         }
 
@@ -317,31 +1682,24 @@ public class client {
 
         // setup the client 
         client myClient = new client(PA2_SERVER[0], PA2_SERVER[1]);
+        myClient.chunkSize = intOption(options, "chunk-size", 0);
+        myClient.compression = options.getOrDefault("compress", Compression.NONE);
+        if (!Compression.supported(myClient.compression)){
+            System.err.println("client: option --compress takes one of " + Compression.CODECS);
+            System.exit(1);
+        }
+        if (options.containsKey("cache")){
+            try {
+                myClient.cache = new DownloadCache(new File(options.get("cache")).toPath(), PA2_SERVER[0] + ":" + PA2_SERVER[1], 
+                    intOption(options, "cache-size", 1024) * 1024L * 1024L, Boolean.getBoolean("pa2.cache.link"));
+            } catch (IOException e) {
+                System.err.println("client: cannot open the cache at " + options.get("cache") + " (" + e + ")");
+                System.exit(1);
+            }
+        }
 
         // attempt to execute the command 
-        boolean success = false;
-        switch(args[0]){
-            case "shutdown":
-                success = myClient.shutdownServer();
-                break;
-            case "dir":
-                success = (args.length == 1) ? myClient.dir(sanitizePath("/")) : myClient.dir(sanitizePath(args[1])); 
-                break;
-            case "mkdir":
-                success = myClient.mkdir(sanitizePath(args[1]));
-                break;
-            case "rmdir":
-                success = myClient.rmdir(sanitizePath(args[1]));
-                break;
-            case "rm":
-                success = myClient.rm(sanitizePath(args[1]));
-                break;
-            case "upload":
-                success = myClient.upload(sanitizePath(args[1]), sanitizePath(args[2]));
-                break;
-            case "download":
-                success = myClient.download(sanitizePath(args[1]), sanitizePath(args[2]));
-        }
+        boolean success = (args[0].equals("session")) ? myClient.session((args.length == 1) ? null : args[1]) : myClient.execute(args);
 
         // check if the command was executed successfully 
         if (!success){
@@ -1,11 +1,33 @@
 import java.io.*;
-import java.net.MalformedURLException;
-import java.rmi.Naming;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.NotBoundException;
+import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class server extends UnicastRemoteObject implements FileSharingInterface{
 
@@ -39,12 +61,196 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
         return true;
     }
 
+    private static final List<String> OPTIONS = Arrays.asList("chunk-size", "max-chunk-size", "dedup", "max-transfers", "storage", "durability"); // options supported by "start"
+
+    /**
+     * Separate options ("--name=value") from the command and its arguments 
+     * @param args arguements from main 
+     * @param options map that the options are put in
+     * @return the command and its arguments, null if an option is not supported or has no value
+     */
+    private static String[] parseOptions(String[] args, Map<String, String> options) {
+        List<String> command = new ArrayList<>();
+        for (String arg : args){
+            if (!arg.startsWith("--")){
+                command.add(arg);
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            String name = (equals < 0) ? arg.substring(2) : arg.substring(2, equals);
+            if (equals < 0 || !OPTIONS.contains(name)){
+                System.err.println("server: option " + arg + " not supported! (supported options: --" + String.join("=<value> --", OPTIONS) + "=<value>)");
+                return null;
+            }
+            options.put(name, arg.substring(equals + 1));
+        }
+        return command.toArray(new String[0]);
+    }
+
+    /**
+     * Get an option that holds a number of bytes
+     * @param options parsed options
+     * @param name name of the option
+     * @param defaultValue value used when the option is not given
+     * @return value of the option
+     */
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("server: option --" + name + " needs a number!");
+            System.exit(1);
+            return defaultValue;
+        }
+    }
+
     //-------------------------------------------------- Server Methods & Variables --------------------------------------------------
     private String name;
+    private Sockets sockets; // settings of every connection to the server and its sessions
+    private Storage storage; // where the served files are kept
+    private Durability durability; // when written bytes are forced to the disk and writes are acknowledged
+    private WriteBehind writeBehind; // buffers the chunks of uploads, null if every chunk is written as it arrives
+    private FileHandleCache handles; // open channels reused across chunk reads / writes
+    private MetadataCache metadata; // attributes and listings of recently asked for paths
+    private ChangeFeed changes; // changes of the server's files that clients wait on
+    private PathLocks locks; // keeps concurrent calls on the same path apart
+    private ChunkReader reader; // serves download chunks from mapped regions and pooled buffers
+    private TransferParams params; // chunk sizes offered to clients
+    private ChunkStore store; // deduplicating chunk store, null if deduplication is off
+    private DigestStore digests; // digests of the server's files kept between downloads, null if digests are not stored
+    private PendingUploads uploads; // files grown by uploads that are not closed yet, null if they are not recorded
+    private Metrics metrics; // counters and latencies of every call
+    private Remote exported = this; // object exported to clients, the instrumented proxy once published
+    private Scheduler scheduler; // runs disk work on a bounded pool shared fairly between clients
+    private final Map<String, DirectoryListing> listings = new ConcurrentHashMap<>(); // listings kept open between pages, keyed by cursor
+    private final Set<String> uncommitted = ConcurrentHashMap.newKeySet(); // files written by the single write calls and not committed yet, by cache key
+    private static final int MAX_PAGE = Integer.getInteger("pa2.listing.maxPage", 10000); // most entries returned per page
+    private static final int MAX_LISTINGS = Integer.getInteger("pa2.listing.max", 256); // most listings kept open at once
+    private static final long LISTING_IDLE_MILLIS = Long.getLong("pa2.listing.idleMillis", 60000); // listings not read for this long are closed
+    private static final int MAX_BATCH = Integer.getInteger("pa2.batch.max", 10000); // most operations run by one call to batch
+    private static final long MAX_WAIT_MILLIS = Long.getLong("pa2.changes.maxWaitMillis", 60000); // longest a client waits for changes in one call
+    public static final int MAX_TRANSFERS = 64; // default for the most transfers open at once
+    public static final String METRICS_NAME = "pa2:type=Metrics"; // JMX name the metrics are registered under
 
     protected server(String name) throws RemoteException {
-        super();
+        this(name, new TransferParams(TransferParams.MIN_CHUNK_SIZE, TransferParams.MAX_CHUNK_SIZE, TransferParams.DEFAULT_CHUNK_SIZE));
+    }
+
+    protected server(String name, TransferParams params) throws RemoteException {
+        this(name, params, null);
+    }
+
+    protected server(String name, TransferParams params, ChunkStore store) throws RemoteException {
+        this(name, params, store, null, null, MAX_TRANSFERS, Sockets.fromProperties(), new DiskStorage(), Durability.fromProperties(Durability.NONE));
+    }
+
+    protected server(String name, TransferParams params, ChunkStore store, DigestStore digests, PendingUploads uploads, int maxTransfers, Sockets sockets, Storage storage, Durability durability) throws RemoteException {
+        super(0, sockets.client(), sockets.server());
+        // deduplicated files are manifests on the disk, read and written around the storage
+        if (store != null && !(storage instanceof DiskStorage)){
+            UnicastRemoteObject.unexportObject(this, true);
+            throw new IllegalArgumentException("deduplication needs disk storage");
+        }
         this.name = name;
+        this.sockets = sockets;
+        this.storage = storage;
+        this.durability = durability;
+        this.params = params;
+        this.store = store;
+        this.digests = digests;
+        this.uploads = uploads;
+        this.metrics = new Metrics(FileSharingInterface.class);
+        Chunk.measure(this.metrics);
+        this.handles = new FileHandleCache(
+            Integer.getInteger("pa2.handles.max", 64), 
+            Long.getLong("pa2.handles.idleMillis", 30000),
+            store,
+            storage);
+        int writeBehindBytes = Integer.getInteger("pa2.writeBehind.bytes", 4 * 1024 * 1024);
+        this.writeBehind = (writeBehindBytes <= 0) ? null : new WriteBehind(
+            writeBehindBytes,
+            Integer.getInteger("pa2.writeBehind.buffers", 4),
+            Integer.getInteger("pa2.writeBehind.threads", 4),
+            durability);
+        this.reader = new ChunkReader(new BufferPool(Integer.getInteger("pa2.buffers.perSize", 16)));
+        this.locks = new PathLocks(Integer.getInteger("pa2.locks.stripes", 256));
+        this.metadata = new MetadataCache(
+            Integer.getInteger("pa2.metadata.entries", 10000),
+            Integer.getInteger("pa2.metadata.listings", 256),
+            Integer.getInteger("pa2.metadata.watches", 1024),
+            storage);
+        this.changes = new ChangeFeed(
+            storage,
+            Integer.getInteger("pa2.changes.entries", 10000),
+            Integer.getInteger("pa2.changes.watches", 1024),
+            Integer.getInteger("pa2.changes.maxBatch", 1000),
+            Long.getLong("pa2.changes.batchMillis", 50),
+            path -> hidden(path) || Storage.isTemporary(path) || this.locks.claimed(path.toString()));
+        this.scheduler = new Scheduler(
+            Integer.getInteger("pa2.io.threads", Math.max(4, 2 * Runtime.getRuntime().availableProcessors())),
+            Integer.getInteger("pa2.io.queue", 1024),
+            Integer.getInteger("pa2.io.queuePerClient", 64),
+            maxTransfers,
+            Integer.getInteger("pa2.transfers.perClient", 16),
+            Long.getLong("pa2.io.quantum", 1024 * 1024),
+            this.metrics);
+        this.metrics.gauge("active transfers", this.scheduler::transfers);
+        this.metrics.gauge("queued disk work", this.scheduler::queued);
+        this.metrics.gauge("open handles", this.handles::size);
+        this.metrics.gauge("open listings", this.listings::size);
+        this.metrics.gauge("files forced to disk", durability::forces);
+        if (this.writeBehind != null){
+            this.metrics.gauge("write-behind queued buffers", this.writeBehind::queued);
+            this.metrics.gauge("write-behind bytes written", this.writeBehind::written);
+        }
+        if (storage instanceof MemoryStorage){
+            this.metrics.gauge("memory storage bytes", ((MemoryStorage) storage)::allocated);
+        }
+    }
+
+    /**
+     * Export the server behind a proxy that times every call, and register its metrics with JMX as METRICS_NAME
+     * the server's own export is dropped, clients must be given the returned stub
+     * @return stub to bind in the registry
+     * @throws RemoteException if the proxy could not be exported
+     */
+    protected Remote publish() throws RemoteException {
+        FileSharingInterface proxy = this.metrics.instrument(FileSharingInterface.class, this);
+        UnicastRemoteObject.unexportObject(this, true);
+        Remote stub = UnicastRemoteObject.exportObject(proxy, 0, this.sockets.client(), this.sockets.server());
+        this.exported = proxy;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, new ObjectName(METRICS_NAME));
+        } catch (JMException e) {
+            System.err.println("server: metrics could not be registered with JMX " + e);
+        }
+        return stub;
+    }
+
+    /**
+     * Get the server's metrics
+     * @return metrics as plain text
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public String stats() throws RemoteException {
+        return this.metrics.dump();
+    }
+
+    /**
+     * Get the host of the client that made the current call, calls made from inside the server count as one client
+     * @return host of the client
+     */
+    private static String client(){
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return "local";
+        }
     }
 
     /**
@@ -54,10 +260,27 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
     @Override
     public void shutdown() throws RemoteException {
         try {
-            UnicastRemoteObject.unexportObject(this, true);
-            Naming.unbind(this.name);
+            UnicastRemoteObject.unexportObject(this.exported, true);
+            URI url = URI.create(this.name);
+            LocateRegistry.getRegistry(url.getHost(), url.getPort(), this.sockets.client()).unbind(url.getPath().substring(1));
+            if (this.exported != this){
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(METRICS_NAME));
+            }
+            for (String path : this.uncommitted){
+                commitWrites(path);
+            }
+            // buffered writes go to the file handles, so they are written before the handles are closed
+            if (this.writeBehind != null){
+                this.writeBehind.close(Long.getLong("pa2.writeBehind.closeMillis", 30000));
+            }
+            this.durability.close();
+            this.handles.close();
+            this.metadata.close();
+            this.changes.close();
+            this.scheduler.close();
+            this.storage.close();
             System.out.println("server: shutdown");
-        } catch (MalformedURLException | NotBoundException e) {
+        } catch (NotBoundException | JMException | IOException e) {
             System.err.println("server: error shuting down + " + e);
         }
     }
@@ -72,8 +295,109 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
      */
     @Override
     public String[] dir(String path) throws RemoteException {
-        File directory = new File(path);
-        return directory.list();
+        return this.metadata.listing(path, key -> {
+            // hide the chunk store's and the digest store's directories
+            List<String> names = new ArrayList<>();
+            try (DirectoryStream<Path> entries = this.storage.list(key, entry -> !hidden(entry))){
+                for (Path entry : entries){
+                    names.add(entry.getFileName().toString());
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            return names.toArray(new String[0]);
+        });
+    }
+
+    /**
+     * List a page of the contents of a directory with the attributes of every entry
+     * @param path server's file path 
+     * @param cursor cursor of the previous page, null for the first page
+     * @param pageSize largest number of entries to return
+     * @return page of entries, null if the path is not a directory or the cursor expired
+     * @throws RemoteException remote communication exception 
+     */
+    @Override
+    public DirectoryPage listDir(String path, String cursor, int pageSize) throws RemoteException {
+        return page(path, false, cursor, pageSize);
+    }
+
+    /**
+     * List a page of everything under a directory, subdirectories included
+     * @param path server's file path 
+     * @param cursor cursor of the previous page, null for the first page
+     * @param pageSize largest number of entries to return
+     * @return page of entries named by their path relative to the directory, null if the path is not a directory or the cursor expired
+     * @throws RemoteException remote communication exception 
+     */
+    @Override
+    public DirectoryPage listTree(String path, String cursor, int pageSize) throws RemoteException {
+        return page(path, true, cursor, pageSize);
+    }
+
+    /**
+     * Read the next page of a listing, the listing is opened for the first page and kept open until its last page was read
+     */
+    private DirectoryPage page(String path, boolean recursive, String cursor, int pageSize){
+        closeIdleListings();
+
+        DirectoryListing listing;
+        if (cursor == null){
+            try {
+                // the chunk store's and the digest store's directories are hidden from listings
+                listing = new DirectoryListing(this.storage, Paths.get(path), recursive, entry -> !hidden(entry));
+            } catch (IOException e) {
+                return null;
+            }
+            cursor = UUID.randomUUID().toString();
+        }
+        else if ((listing = this.listings.remove(cursor)) == null){
+            return null;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<FileAttributes> attributes = new ArrayList<>();
+        pageSize = Math.max(1, Math.min(pageSize, MAX_PAGE));
+        while (names.size() < pageSize){
+            Path entry = listing.next();
+            if (entry == null){
+                listing.close();
+                return new DirectoryPage(names, attributes, null);
+            }
+            names.add(listing.name(entry));
+            attributes.add(attributes(entry, true));
+        }
+
+        this.listings.put(cursor, listing);
+        return new DirectoryPage(names, attributes, cursor);
+    }
+
+    /**
+     * Close listings whose client stopped asking for pages, and make room if too many are open
+     */
+    private void closeIdleListings(){
+        long now = System.nanoTime();
+        long idle = TimeUnit.MILLISECONDS.toNanos(LISTING_IDLE_MILLIS);
+        for (Map.Entry<String, DirectoryListing> entry : this.listings.entrySet()){
+            if (now - entry.getValue().lastUsed() > idle || this.listings.size() > MAX_LISTINGS){
+                if (this.listings.remove(entry.getKey(), entry.getValue())){
+                    entry.getValue().close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for files under a directory to be created, removed or changed, instead of polling dir / getFileLength
+     * @param path server's file path 
+     * @param sinceVersion version of the last batch of changes, 0 for the first call
+     * @param timeoutMillis longest time to wait for a change (at most pa2.changes.maxWaitMillis)
+     * @return changes made since the version, none if nothing changed in time
+     * @throws RemoteException remote communication exception 
+     */
+    @Override
+    public ChangeBatch waitForChanges(String path, long sinceVersion, long timeoutMillis) throws RemoteException {
+        return this.changes.waitFor(path, sinceVersion, Math.min(timeoutMillis, MAX_WAIT_MILLIS));
     }
 
     /**
@@ -85,8 +409,16 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
     @Override
     public boolean mkdir(String path) throws RemoteException {
         // try to make the directory
-        File directory = new File(path);
-        if (directory.mkdir()){ 
+        boolean created;
+        try {
+            this.storage.createDirectory(Paths.get(path));
+            created = true;
+        } catch (IOException e) {
+            created = false;
+        }
+        this.metadata.invalidateTree(path);
+        if (created){ 
+            this.changes.changed(path, ChangeBatch.CREATED);
             return true;
         }
         else{
@@ -103,8 +435,12 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
     @Override
     public boolean rmdir(String path) throws RemoteException {
         // try to delete the directory
-        File directory = new File(path);
-        if (directory.isDirectory() && directory.delete()){
+        Path directory = Paths.get(path);
+        this.handles.invalidateTree(path);
+        boolean removed = this.storage.isDirectory(directory) && delete(directory);
+        this.metadata.invalidateTree(path);
+        if (removed){
+            this.changes.changed(path, ChangeBatch.DELETED);
             return true;
         }
         else{
@@ -121,8 +457,32 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
     @Override
     public boolean rm(String path) throws RemoteException {
         // try to delete the directory and let the client know whether the operation succeded or not
-        File file = new File(path);
-        if (file.isFile() && file.delete()){
+        Path file = Paths.get(path);
+        boolean removed = false;
+        Lock lock = this.locks.lock(path).writeLock();
+        lock.lock();
+        try {
+            // files that are being uploaded to or downloaded are not removed under the transfer
+            if (!this.locks.busy(path)){
+                this.handles.invalidate(path);
+                if (this.store != null && this.storage.isFile(file)){
+                    try {
+                        this.store.forget(file);
+                    } catch (IOException e) {
+                        System.err.println("server: error releasing chunks of " + path + " " + e);
+                    }
+                }
+                removed = this.storage.isFile(file) && delete(file);
+                if (removed && this.digests != null){
+                    this.digests.forget(file);
+                }
+                this.metadata.invalidate(path);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (removed){
+            this.changes.changed(path, ChangeBatch.DELETED);
             return true;
         }
         else{
@@ -138,13 +498,7 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
      */
     @Override
     public boolean filepathValid(String path) throws RemoteException {
-        File file = new File(path);
-        if ((file.getParentFile() == null || file.getParentFile().isDirectory()) && !file.isDirectory()){
-            return true;
-        }
-        else{
-            return false;
-        }
+        return stat(path).writable();
     }
 
     /**
@@ -155,8 +509,7 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
      */
     @Override
     public boolean fileExists(String path) throws RemoteException {
-        File file = new File(path);
-        return file.isFile();
+        return stat(path).isFile();
     }
 
     /**
@@ -167,8 +520,168 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
      */
     @Override
     public long getFileLength(String path) throws RemoteException {
-        File file = new File(path);
-        return file.length();
+        return stat(path).length();
+    }
+
+    /**
+     * Get the type, length, modification time and parent validity of a path in a single call
+     * @param path Server's filepath 
+     * @return attributes of the path, never null (the type is MISSING if nothing exists at the path)
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public FileAttributes stat(String path) throws RemoteException {
+        return stat(path, false);
+    }
+
+    /**
+     * Get the attributes of a path, optionally with the SHA-256 of the file
+     * @param path Server's filepath 
+     * @param digest true to also hash the file (reads the whole file)
+     * @return attributes of the path, null if the file could not be hashed
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public FileAttributes stat(String path, boolean digest) throws RemoteException {
+        commitWrites(path);
+        FileAttributes attributes = this.metadata.attributes(path, file -> {
+            Path parent = file.getParent();
+            return attributes(file, parent == null || this.storage.isDirectory(parent));
+        });
+        if (!digest || !attributes.isFile()){
+            return attributes;
+        }
+
+        // files are only hashed again once they changed
+        Path file = Paths.get(path);
+        String stored = (this.digests == null) ? null : this.digests.get(file);
+        if (stored != null){
+            return new FileAttributes(FileAttributes.FILE, attributes.length(), attributes.lastModified(), attributes.parentValid(), stored);
+        }
+        return this.scheduler.run(client(), attributes.length(), () -> {
+            try {
+                BasicFileAttributes before = this.storage.attributes(file);
+                FileHandleCache.Handle handle = this.handles.acquire(path, false);
+                try {
+                    long length = handle.size();
+                    String sha256 = ContentChunker.hex(handle.sha256(length).digest());
+                    if (this.digests != null){
+                        this.digests.put(file, before, sha256);
+                    }
+                    return new FileAttributes(FileAttributes.FILE, length, attributes.lastModified(), attributes.parentValid(), sha256);
+                } finally {
+                    this.handles.release(handle);
+                }
+            } catch (IOException e) {
+                System.err.println("server: error reading file " + e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Read the attributes of a path with a single stat (deduplicated files also read their manifest)
+     * @param file filepath
+     * @param parentValid true if the path's parent is a directory
+     * @return attributes of the path without a digest
+     */
+    private FileAttributes attributes(Path file, boolean parentValid){
+        BasicFileAttributes attributes;
+        try {
+            attributes = this.storage.attributes(file);
+        } catch (IOException e) {
+            return new FileAttributes(FileAttributes.MISSING, 0, 0, parentValid, null);
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (attributes.isDirectory()){
+            return new FileAttributes(FileAttributes.DIRECTORY, 0, lastModified, parentValid, null);
+        }
+        if (!attributes.isRegularFile()){
+            return new FileAttributes(FileAttributes.OTHER, 0, lastModified, parentValid, null);
+        }
+        long length = attributes.size();
+        if (this.store != null){
+            try {
+                length = this.store.length(file);
+            } catch (IOException e) {
+                System.err.println("server: error reading manifest " + e);
+            }
+        }
+        return new FileAttributes(FileAttributes.FILE, length, lastModified, parentValid, null);
+    }
+
+    /**
+     * Check if a path is one of the server's own directories, which are hidden from clients
+     * @param path filepath
+     * @return true if the path is the chunk store's, the digest store's or the upload records' directory
+     */
+    private boolean hidden(Path path){
+        return (this.store != null && this.store.isStore(path)) || (this.digests != null && this.digests.isStore(path))
+            || (this.uploads != null && this.uploads.isStore(path));
+    }
+
+    /**
+     * Remove a file or an empty directory from the storage
+     * @param path filepath
+     * @return true if it was removed, false otherwise
+     */
+    private boolean delete(Path path){
+        try {
+            this.storage.delete(path);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the number of bytes a path takes in the storage
+     * @param path filepath
+     * @return length of the file, 0 if it is not a file
+     */
+    private long length(Path path){
+        try {
+            return this.storage.attributes(path).size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Remember that a single write call wrote to a file, the file is committed with the Durability policy once the writes end
+     * (the single write calls have no end of their own, so they end when the file is next stat'ed or read, or the server shuts down)
+     * @param path filepath to the file
+     */
+    private void wroteUncommitted(String path){
+        if (!Durability.NONE.equals(this.durability.policy())){
+            this.uncommitted.add(FileHandleCache.key(path));
+        }
+    }
+
+    /**
+     * Commit a file written by single write calls, once for the whole sequence of writes instead of once per call
+     * @param path filepath to the file
+     */
+    private void commitWrites(String path){
+        if (this.uncommitted.isEmpty() || !this.uncommitted.remove(FileHandleCache.key(path))){
+            return;
+        }
+        Lock lock = this.locks.lock(path).writeLock();
+        lock.lock();
+        try {
+            if (this.storage.isFile(Paths.get(path))){
+                FileHandleCache.Handle handle = this.handles.acquire(path, true);
+                try {
+                    this.durability.commit(handle.channel());
+                } finally {
+                    this.handles.release(handle);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("server: error forcing file to disk " + e);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -181,15 +694,81 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
      */
     @Override
     public boolean write(String path, byte[] buffer, int bytes) throws RemoteException {
-        try {
-            FileOutputStream fileOutputStream = new FileOutputStream(path, true);
-            fileOutputStream.write(buffer,0, bytes);
-            fileOutputStream.close();
-            return true;
-        } catch (IOException e) {
-            System.err.println("server: error writing to file " + e);
-            return false;
-        } 
+        return this.scheduler.run(client(), bytes, () -> {
+            Lock lock = this.locks.lock(path).writeLock();
+            lock.lock();
+            try {
+                // the file is being uploaded or downloaded, it is not written to under the transfer
+                if (this.locks.busy(path)){
+                    return false;
+                }
+                boolean existed = this.storage.isFile(Paths.get(path));
+                FileHandleCache.Handle handle = this.handles.acquire(path, true);
+                try {
+                    // append to the end of the file
+                    ByteBuffer source = ByteBuffer.wrap(buffer, 0, bytes);
+                    long position = handle.channel().size();
+                    while (source.hasRemaining()){
+                        position += handle.channel().write(source, position);
+                    }
+                    this.durability.written(handle.channel(), bytes);
+                    wroteUncommitted(path);
+                } finally {
+                    this.handles.release(handle);
+                    this.metadata.invalidate(path);
+                    this.changes.changed(path, existed ? ChangeBatch.MODIFIED : ChangeBatch.CREATED);
+                }
+                return true;
+            } catch (IOException e) {
+                System.err.println("server: error writing to file " + e);
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Write bytes to a file at a given offset
+     * @param path filepath to the file 
+     * @param offset position in the file to write the first byte to
+     * @param buffer bytes to be written 
+     * @param bytes the number of bytes to write
+     * @return true if operation succeeded, false otherwise 
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public boolean write(String path, long offset, byte[] buffer, int bytes) throws RemoteException {
+        return this.scheduler.run(client(), bytes, () -> {
+            Lock lock = this.locks.lock(path).writeLock();
+            lock.lock();
+            try {
+                // the file is being uploaded or downloaded, it is not written to under the transfer
+                if (this.locks.busy(path)){
+                    return false;
+                }
+                boolean existed = this.storage.isFile(Paths.get(path));
+                FileHandleCache.Handle handle = this.handles.acquire(path, true);
+                try {
+                    ByteBuffer source = ByteBuffer.wrap(buffer, 0, bytes);
+                    for (long position = offset; source.hasRemaining(); ){
+                        position += handle.channel().write(source, position);
+                    }
+                    this.durability.written(handle.channel(), bytes);
+                    wroteUncommitted(path);
+                } finally {
+                    this.handles.release(handle);
+                    this.metadata.invalidate(path);
+                    this.changes.changed(path, existed ? ChangeBatch.MODIFIED : ChangeBatch.CREATED);
+                }
+                return true;
+            } catch (IOException e) {
+                System.err.println("server: error writing to file " + e);
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        });
     }
 
     /**
@@ -201,41 +780,490 @@ public class server extends UnicastRemoteObject implements FileSharingInterface{
      */
     @Override
     public byte[] read(String path, long skip) throws RemoteException {
-        try{
-            FileInputStream fileInputStream = new FileInputStream(path);
-            fileInputStream.skip(skip);
+        return this.scheduler.run(client(), 1024, () -> {
+            commitWrites(path);
+            Lock lock = this.locks.lock(path).readLock();
+            lock.lock();
+            try{
+                // the file is being uploaded, its content is not complete yet
+                if (this.locks.claimed(path)){
+                    return null;
+                }
+                FileHandleCache.Handle handle = this.handles.acquire(path, false);
+                try {
+                    // read up to 1024 bytes from the file starting at the offset
+                    byte[] buffer = new byte[1024];
+                    int bytes = handle.read(ByteBuffer.wrap(buffer), skip);
+                    return (bytes == buffer.length) ? buffer : Arrays.copyOfRange(buffer, 0, Math.max(bytes, 0));
+                } finally {
+                    this.handles.release(handle);
+                }
+            } catch (IOException e) {
+                System.err.println("server: error reading file " + e);
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Read a range of bytes from a file
+     * @param path filepath to the file
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read (at most the server's largest chunk size)
+     * @return bytes read from the file, fewer than length if the end of the file is reached, null if the file could not be read
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public byte[] read(String path, long offset, int length) throws RemoteException {
+        return this.scheduler.run(client(), length, () -> {
+            commitWrites(path);
+            Lock lock = this.locks.lock(path).readLock();
+            lock.lock();
+            try{
+                // the file is being uploaded, its content is not complete yet
+                if (this.locks.claimed(path)){
+                    return null;
+                }
+                FileHandleCache.Handle handle = this.handles.acquire(path, false);
+                try {
+                    byte[] buffer = new byte[Math.max(0, Math.min(length, this.params.maxChunkSize()))];
+                    ByteBuffer target = ByteBuffer.wrap(buffer);
+                    while (target.hasRemaining()){
+                        if (handle.read(target, offset + target.position()) < 0){
+                            break;
+                        }
+                    }
+                    return (target.position() == buffer.length) ? buffer : Arrays.copyOf(buffer, target.position());
+                } finally {
+                    this.handles.release(handle);
+                }
+            } catch (IOException e) {
+                System.err.println("server: error reading file " + e);
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Get the chunk sizes the server is willing to use for transfers
+     * @return smallest, largest and default chunk size
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public TransferParams getTransferParams() throws RemoteException {
+        return this.params;
+    }
+
+    /**
+     * Open an upload, data written through the returned transfer is appended to the file
+     * @param path filepath to the file
+     * @param expectedLength total length the file will have once the upload is done
+     * @param chunkSize number of bytes the client would like to send per call
+     * @return transfer to write the file through, null if the file could not be opened
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public RemoteTransfer openUpload(String path, long expectedLength, int chunkSize) throws RemoteException {
+        Scheduler.Lane lane = this.scheduler.openTransfer(client());
+
+        // only one upload writes to a file at a time
+        if (!claim(path)){
+            lane.close();
+            System.err.println("server: " + path + " is already being written to or downloaded");
+            return null;
+        }
+        try {
+            return new TransferSession(this.sockets, this.handles, this.reader, this.metadata, this.changes, this.locks, lane, this.digests, this.writeBehind, this.uploads, this.durability, path, true, 0, expectedLength, this.params.negotiate(chunkSize));
+        } catch (IOException e) {
+            this.locks.unclaim(path);
+            lane.close();
+            System.err.println("server: error opening upload " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Open a download
+     * @param path filepath to the file
+     * @param offset number of bytes to skip
+     * @param chunkSize number of bytes the client would like to receive per call
+     * @return transfer to read the file through, null if the file could not be opened
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public RemoteTransfer openDownload(String path, long offset, int chunkSize) throws RemoteException {
+        // the file is being uploaded, its content is not complete yet
+        // otherwise it is shared until the download is closed, so no write replaces it under the download
+        if (!this.locks.share(path)){
+            return null;
+        }
+        Scheduler.Lane lane = this.scheduler.openTransfer(client());
+        try {
+            return new TransferSession(this.sockets, this.handles, this.reader, this.metadata, this.changes, this.locks, lane, this.digests, this.writeBehind, this.uploads, this.durability, path, false, offset, 0, this.params.negotiate(chunkSize));
+        } catch (IOException e) {
+            this.locks.unshare(path);
+            lane.close();
+            System.err.println("server: error opening download " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the block checksums of a file, used to upload only the parts of a file that changed
+     * @param path filepath to the file
+     * @param blockSize number of bytes per block
+     * @return signature of the file, null if the file could not be read
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public FileSignature getSignature(String path, int blockSize) throws RemoteException {
+        if (blockSize < FileSignature.MIN_BLOCK_SIZE || blockSize > FileSignature.MAX_BLOCK_SIZE || this.locks.claimed(path)){
+            return null;
+        }
+        return this.scheduler.run(client(), length(Paths.get(path)), () -> {
+            try {
+                FileHandleCache.Handle handle = this.handles.acquire(path, false);
+                try {
+                    return FileSignature.compute(handle, blockSize);
+                } finally {
+                    this.handles.release(handle);
+                }
+            } catch (IOException e) {
+                System.err.println("server: error computing signature " + e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Start rebuilding a file from its current copy and the changes sent by the client
+     * @param path filepath to the file
+     * @param blockSize block size of the signature the changes were computed against
+     * @return delta to send the changes through, null if the file could not be opened
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public RemoteDelta openDelta(String path, int blockSize) throws RemoteException {
+        if (!this.storage.isFile(Paths.get(path))){
+            return null;
+        }
+        Scheduler.Lane lane = this.scheduler.openTransfer(client());
+        if (!claim(path)){
+            lane.close();
+            return null;
+        }
+        try {
+            return new DeltaSession(this.sockets, this.handles, this.storage, this.store, this.metadata, this.changes, this.locks, lane, path, blockSize);
+        } catch (IOException e) {
+            this.locks.unclaim(path);
+            lane.close();
+            System.err.println("server: error opening delta " + e);
+            return null;
+        }
+    }
 
-            // read up to 1024 bytes from the file
-            byte[] buffer = new byte[1024];
-            int bytes = fileInputStream.read(buffer);
+    /**
+     * Find which chunks the server's chunk store does not hold yet
+     * @param hashes SHA-256 of the chunks (lowercase hex)
+     * @return hashes of the missing chunks, null if the server does not deduplicate
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public List<String> missingChunks(List<String> hashes) throws RemoteException {
+        return (this.store == null) ? null : this.store.missing(hashes);
+    }
 
-            fileInputStream.close();
-            return Arrays.copyOfRange(buffer, 0, bytes);
+    /**
+     * Add a chunk to the server's chunk store
+     * @param hash SHA-256 of the chunk (lowercase hex)
+     * @param chunk bytes of the chunk, may be compressed on the wire
+     * @return true if the chunk is stored, false if the bytes do not match the hash or the server does not deduplicate
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public boolean putChunk(String hash, Chunk chunk) throws RemoteException {
+        if (this.store == null){
+            return false;
+        }
+        return this.scheduler.run(client(), chunk.length(), () -> {
+            try {
+                return this.store.put(hash, chunk.bytes());
+            } catch (IOException e) {
+                System.err.println("server: error storing chunk " + e);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Create or replace a file made of chunks held by the server's chunk store
+     * @param path filepath to the file
+     * @param manifest chunks of the file in order
+     * @return true if operation succeeded, false if a chunk is missing or the server does not deduplicate
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public boolean commitManifest(String path, Manifest manifest) throws RemoteException {
+        if (this.store == null || !filepathValid(path)){
+            return false;
+        }
+        Lock lock = this.locks.lock(path).writeLock();
+        lock.lock();
+        try {
+            if (this.locks.busy(path)){
+                return false;
+            }
+            this.handles.invalidate(path);
+            boolean existed = this.storage.isFile(Paths.get(path));
+            boolean committed = this.store.commit(new File(path).toPath(), manifest);
+            this.metadata.invalidate(path);
+            if (committed){
+                this.changes.changed(path, existed ? ChangeBatch.MODIFIED : ChangeBatch.CREATED);
+            }
+            return committed;
         } catch (IOException e) {
-            System.err.println("server: error reading file " + e);
+            System.err.println("server: error writing manifest " + e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Claim a path for an upload or delta, waiting for single calls on the path to finish first
+     * @param path filepath
+     * @return true if the path was claimed, false if another upload or delta is writing to it or a download is reading it
+     */
+    private boolean claim(String path){
+        Lock lock = this.locks.lock(path).writeLock();
+        lock.lock();
+        try {
+            return this.locks.claim(path);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace a file with the bytes of a chunk, used by batches to send small files whole
+     * the bytes are written to a new temporary file next to the file and moved over it, so readers see either the old or the new file
+     * @param path filepath to the file
+     * @param chunk new content of the file
+     * @return true if the file was replaced, false if it is being uploaded to, the chunk is corrupt or the file could not be written
+     * @throws RemoteException if the server is too busy
+     */
+    private boolean put(String path, Chunk chunk) throws RemoteException {
+        if (chunk == null){
+            return false;
+        }
+        return this.scheduler.run(client(), chunk.length(), () -> {
+            Path file = Paths.get(path);
+            if (file.getFileName() == null || this.storage.isDirectory(file)){
+                return false;
+            }
+            Path temp = null;
+            Lock lock = this.locks.lock(path).writeLock();
+            lock.lock();
+            try {
+                // the file is being uploaded or downloaded, it is not replaced under the transfer
+                if (this.locks.busy(path)){
+                    return false;
+                }
+                ByteBuffer source = ByteBuffer.wrap(chunk.bytes());
+                temp = this.storage.createTemporary(file);
+                try (FileChannel channel = this.storage.open(temp, StandardOpenOption.WRITE)){
+                    while (source.hasRemaining()){
+                        channel.write(source, source.position());
+                    }
+                    this.durability.written(channel, source.position());
+                    this.durability.commit(channel);
+                }
+                this.handles.invalidate(path);
+                boolean existed = this.storage.isFile(file);
+                if (this.store != null && existed){
+                    this.store.forget(file);
+                }
+                this.storage.move(temp, file);
+                if (this.digests != null){
+                    this.digests.forget(file);
+                }
+                this.changes.changed(path, existed ? ChangeBatch.MODIFIED : ChangeBatch.CREATED);
+                return true;
+            } catch (IOException e) {
+                System.err.println("server: error replacing file " + e);
+                try {
+                    if (temp != null){
+                        this.storage.deleteIfExists(temp);
+                    }
+                } catch (IOException ignored) {
+                }
+                return false;
+            } finally {
+                this.metadata.invalidate(path);
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Read a whole small file, used by batches to fetch small files in one call
+     * @param path filepath to the file
+     * @return content of the file, null if it is not a file, is being uploaded to, or is larger than the largest chunk
+     * @throws RemoteException if the server is too busy
+     */
+    private Chunk get(String path) throws RemoteException {
+        Path file = Paths.get(path);
+        if (!this.storage.isFile(file)){
+            return null;
+        }
+        return this.scheduler.run(client(), length(file), () -> {
+            Lock lock = this.locks.lock(path).readLock();
+            lock.lock();
+            try {
+                // the file is being uploaded, its content is not complete yet
+                if (this.locks.claimed(path)){
+                    return null;
+                }
+                FileHandleCache.Handle handle = this.handles.acquire(path, false);
+                try {
+                    long size = handle.size();
+                    if (size > this.params.maxChunkSize()){
+                        return null;
+                    }
+                    byte[] buffer = new byte[(int) size];
+                    ByteBuffer target = ByteBuffer.wrap(buffer);
+                    while (target.hasRemaining()){
+                        if (handle.read(target, target.position()) < 0){
+                            break;
+                        }
+                    }
+                    return Chunk.wrap(buffer, target.position());
+                } finally {
+                    this.handles.release(handle);
+                }
+            } catch (IOException e) {
+                System.err.println("server: error reading file " + e);
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Run many operations in a single call
+     * @param ops operations to run, in order
+     * @return one result per operation in the same order, null if the batch is larger than the server accepts
+     * @throws RemoteException remote communication exception
+     */
+    @Override
+    public List<BatchResult> batch(List<BatchOp> ops) throws RemoteException {
+        if (ops.size() > MAX_BATCH){
             return null;
         }
+        List<BatchResult> results = new ArrayList<>(ops.size());
+        for (BatchOp op : ops){
+            String path = op.path();
+            switch (op.command()){
+                case BatchOp.DIR:
+                    String[] entries = dir(path);
+                    results.add(new BatchResult(entries != null, -1, entries));
+                    break;
+                case BatchOp.MKDIR:
+                    results.add(new BatchResult(mkdir(path), -1, null));
+                    break;
+                case BatchOp.RMDIR:
+                    results.add(new BatchResult(rmdir(path), -1, null));
+                    break;
+                case BatchOp.RM:
+                    results.add(new BatchResult(rm(path), -1, null));
+                    break;
+                case BatchOp.EXISTS:
+                    results.add(new BatchResult(fileExists(path), -1, null));
+                    break;
+                case BatchOp.VALID:
+                    results.add(new BatchResult(filepathValid(path), -1, null));
+                    break;
+                case BatchOp.LENGTH:
+                    boolean exists = fileExists(path);
+                    results.add(new BatchResult(exists, exists ? getFileLength(path) : -1, null));
+                    break;
+                case BatchOp.PUT:
+                    results.add(new BatchResult(put(path, op.data()), -1, null));
+                    break;
+                case BatchOp.GET:
+                    Chunk data = get(path);
+                    results.add(new BatchResult(data != null, (data == null) ? -1 : data.length(), null, data));
+                    break;
+                default:
+                    results.add(new BatchResult(false, -1, null));
+            }
+        }
+        return results;
     }
 
     public static void main(String[] args) {
 
         // check that the command is valid and the correct number of arguments are provided
-        if (!checkCommand(args)){
+        Map<String, String> options = new HashMap<>();
+        args = parseOptions(args, options);
+        if (args == null || !checkCommand(args)){
+            System.exit(1);
+        }
+
+        // chunk sizes offered to clients 
+        int maxChunkSize = intOption(options, "max-chunk-size", TransferParams.MAX_CHUNK_SIZE);
+        boolean dedup = Boolean.parseBoolean(options.getOrDefault("dedup", "false"));
+
+        // files kept on disk, or off-heap in memory for a scratch server whose files are gone once it stops
+        String storageName = options.getOrDefault("storage", "disk");
+        if (!storageName.equals("disk") && !storageName.equals("memory")){
+            System.err.println("server: option --storage needs \"disk\" or \"memory\"!");
+            System.exit(1);
+        }
+        boolean memory = storageName.equals("memory");
+        if (memory && dedup){
+            System.err.println("server: option --dedup=true needs --storage=disk!");
+            System.exit(1);
+        }
+
+        // when uploads are forced to the disk before they are acknowledged
+        String policy = options.getOrDefault("durability", Durability.NONE);
+        if (!policy.equals(Durability.NONE) && !policy.equals(Durability.COMMIT) && !policy.equals(Durability.PERIODIC)){
+            System.err.println("server: option --durability needs \"" + Durability.NONE + "\", \"" + Durability.COMMIT + "\" or \"" + Durability.PERIODIC + "\"!");
             System.exit(1);
         }
+        TransferParams params = new TransferParams(TransferParams.MIN_CHUNK_SIZE, maxChunkSize, 
+            intOption(options, "chunk-size", TransferParams.DEFAULT_CHUNK_SIZE), dedup);
  
         // put together the URL
         String url = "rmi://localhost:" + args[1] + "/file-sharing";
 
+        // release the uploads of clients that went away within half a minute instead of the default ten
+        if (System.getProperty("java.rmi.dgc.leaseValue") == null){
+            System.setProperty("java.rmi.dgc.leaseValue", "30000");
+        }
+
         try {
-            LocateRegistry.createRegistry(Integer.parseInt(args[1]));
-            server server = new server(url);
-            Naming.rebind(url, server);
+            Sockets sockets = Sockets.fromProperties();
+            Registry registry = LocateRegistry.createRegistry(Integer.parseInt(args[1]), sockets.client(), sockets.server());
+            ChunkStore store = dedup ? new ChunkStore(new File(".").toPath()) : null;
+            Storage storage = memory
+                ? new MemoryStorage(new File(".").toPath(), Long.getLong("pa2.memory.maxBytes", Long.MAX_VALUE))
+                : new DiskStorage();
+            DigestStore digests = memory ? new DigestStore(storage) : new DigestStore(new File(".").toPath());
+            PendingUploads uploads = memory ? null : new PendingUploads(new File(".").toPath());
+            server server = new server(url, params, store, digests, uploads, intOption(options, "max-transfers", MAX_TRANSFERS), sockets, storage, Durability.fromProperties(policy));
+            registry.rebind("file-sharing", server.publish());
             System.out.println("server is running at " + url);
         } catch (RemoteException e) {
             System.err.println("server: registry could not be contacted " + e);
-        } catch (MalformedURLException e) {
-            System.err.println("server: name is not an appropriately formatted URL " + e);
+        } catch (IOException e) {
+            System.err.println("server: chunk store, digest store or upload records could not be opened " + e);
         }
     }
 }